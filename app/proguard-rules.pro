@@ -1,4 +1,5 @@
 -keep public class com.android.cts.jtech.MainActivity
 -keep public class com.android.cts.jtech.PushService
+-keep public class com.android.cts.jtech.PollJobService
 -keep public class com.android.cts.jtech.BootReceiver
 -keep public class com.android.cts.jtech.NotificationControlReceiver
@@ -0,0 +1,684 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded disk LRU for the forum's static assets (CSS, JS, fonts, images),
+ * served to the WebView through shouldInterceptRequest.
+ *
+ * Entries live in files/ rather than cache/ so the system does not throw them
+ * away on low storage; the size cap keeps that honest. Each entry is one file:
+ * a small header (url, content type, validators, expiry) followed by the body,
+ * so a hit is a single sequential read. Fresh entries are served directly;
+ * stale ones are served immediately and revalidated in the background with
+ * If-None-Match / If-Modified-Since. Entries the origin gave no freshness
+ * lifetime (no-cache, max-age=0) are revalidated before every use instead.
+ * Misses stream from the network to the WebView while being written to disk.
+ */
+public class AssetCache {
+    private static final String TAG = "AssetCache";
+    private static final String DIR_NAME = "asset_cache";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4A414332;
+    private static final long MAX_BYTES = 32L * 1024 * 1024;
+    private static final long MIN_BYTES = 4L * 1024 * 1024;
+    private static final long MAX_ENTRY_BYTES = 4L * 1024 * 1024;
+    // Past this, a stale entry is revalidated before it is served
+    private static final long MAX_STALE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long HEURISTIC_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+    // Hits only bump the file's mtime (the persisted LRU order) this often
+    private static final long TOUCH_INTERVAL_MS = 60L * 60 * 1000;
+    private static final int TIMEOUT_MS = 30000;
+    private static final Set<String> STATIC_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "css", "js", "mjs", "woff", "woff2", "ttf", "otf", "eot",
+        "png", "jpg", "jpeg", "gif", "webp", "svg", "ico"));
+    // Request headers WebView sends that must not reach our own connection
+    private static final Set<String> SKIP_REQUEST_HEADERS = new HashSet<>(Arrays.asList(
+        "accept-encoding", "range", "if-none-match", "if-modified-since", "cookie"));
+
+    private static AssetCache instance;
+
+    public static synchronized AssetCache get(Context context) {
+        if (instance == null) {
+            instance = new AssetCache(new File(context.getFilesDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    // key -> file size, in access order (eldest first)
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<String> revalidating = new HashSet<>();
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+    private long totalBytes;
+    private boolean loaded;
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong staleHits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+    public final AtomicLong notModified = new AtomicLong();
+    public final AtomicLong refreshed = new AtomicLong();
+    public final AtomicLong evictions = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    public final AtomicLong bytesFromCache = new AtomicLong();
+    public final AtomicLong bytesFromNetwork = new AtomicLong();
+
+    AssetCache(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+        long usable = dir.getUsableSpace();
+        this.maxBytes = usable > 0 ? Math.max(MIN_BYTES, Math.min(MAX_BYTES, usable / 10)) : MAX_BYTES;
+    }
+
+    /** Cached entry header; the body follows it in the same file. */
+    private static class Meta {
+        String url;
+        String mimeType;
+        String encoding;
+        String etag;
+        String lastModified;
+        String allowOrigin;
+        long expiresAt;
+        // Came with no freshness lifetime, so it is never served without revalidating
+        boolean revalidateFirst;
+    }
+
+    /**
+     * Returns a response for a cacheable static asset, or null to let the
+     * WebView load the request itself. Called on WebView's IO threads.
+     */
+    public WebResourceResponse intercept(WebResourceRequest request) {
+        if (!isCacheable(request)) {
+            return null;
+        }
+        ensureLoaded();
+        String url = request.getUrl().toString();
+        String key = keyFor(url);
+        Map<String, String> headers = request.getRequestHeaders();
+
+        Meta meta = null;
+        InputStream in = openEntry(key);
+        if (in != null) {
+            meta = readEntryHeader(key, url, in);
+            long now = System.currentTimeMillis();
+            if (meta != null && now < meta.expiresAt) {
+                return serve(key, meta, in, hits);
+            }
+            if (meta != null && !meta.revalidateFirst && now - meta.expiresAt < MAX_STALE_MS) {
+                revalidateAsync(key, url, headers, meta);
+                return serve(key, meta, in, staleHits);
+            }
+            try { in.close(); } catch (Exception ignored) {}
+        }
+
+        try {
+            return fetch(key, url, headers, meta, false);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            Log.w(TAG, "Fetch failed for " + url + ": " + e.getMessage());
+            // Offline: an old copy beats no copy, unless the origin asked for every use to be checked
+            return meta != null && !meta.revalidateFirst ? open(key, url, staleHits) : null;
+        }
+    }
+
+    /** Builds the index now rather than on the first intercepted request. */
+    public void preload() {
+        ensureLoaded();
+    }
+
+    public String toJson() {
+        long served = hits.get() + staleHits.get();
+        long total = served + misses.get();
+        int entries;
+        long bytes;
+        synchronized (this) {
+            entries = lru.size();
+            bytes = totalBytes;
+        }
+        return "{\"entries\":" + entries
+            + ",\"bytes\":" + bytes
+            + ",\"maxBytes\":" + maxBytes
+            + ",\"hits\":" + hits.get()
+            + ",\"staleHits\":" + staleHits.get()
+            + ",\"misses\":" + misses.get()
+            + ",\"hitRate\":" + (total == 0 ? 0 : served * 100 / total)
+            + ",\"notModified\":" + notModified.get()
+            + ",\"refreshed\":" + refreshed.get()
+            + ",\"evictions\":" + evictions.get()
+            + ",\"errors\":" + errors.get()
+            + ",\"bytesFromCache\":" + bytesFromCache.get()
+            + ",\"bytesFromNetwork\":" + bytesFromNetwork.get()
+            + "}";
+    }
+
+    /**
+     * Fetches {@code url} into the cache in the background if it is a cacheable
+     * asset that is missing or stale. Used to warm assets a page is about to need.
+     */
+    public void warm(String url, Map<String, String> requestHeaders) {
+        if (!isCacheableUrl(Uri.parse(url))) {
+            return;
+        }
+        ensureLoaded();
+        String key = keyFor(url);
+        InputStream in = openEntry(key);
+        Meta meta = in != null ? readEntryHeader(key, url, in) : null;
+        if (meta != null) {
+            try { in.close(); } catch (Exception ignored) {}
+            if (System.currentTimeMillis() < meta.expiresAt) {
+                return;
+            }
+        }
+        revalidateAsync(key, url, requestHeaders, meta);
+    }
+
+    static boolean isCacheable(WebResourceRequest request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) {
+            return false;
+        }
+        for (String name : request.getRequestHeaders().keySet()) {
+            if ("range".equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        return isCacheableUrl(request.getUrl());
+    }
+
+    /** Static assets on the forum's hosts. */
+    static boolean isCacheableUrl(Uri url) {
+        String scheme = url.getScheme();
+        if (!"https".equals(scheme) && !"http".equals(scheme)) {
+            return false;
+        }
+        String host = url.getHost();
+        if (host == null || !(host.equals("jtechforums.org") || host.endsWith(".jtechforums.org"))) {
+            return false;
+        }
+        String path = url.getPath();
+        if (path == null) {
+            return false;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) {
+            return false;
+        }
+        return STATIC_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private synchronized void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        // Oldest mtime first so the rebuilt access order matches the last session
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            long size = f.length();
+            lru.put(f.getName(), size);
+            totalBytes += size;
+        }
+        trimLocked();
+        Log.i(TAG, "Loaded " + lru.size() + " entries, " + totalBytes / 1024 + " KB");
+    }
+
+    private InputStream openEntry(String key) {
+        synchronized (this) {
+            if (!lru.containsKey(key)) return null;
+        }
+        try {
+            return new BufferedInputStream(new FileInputStream(new File(dir, key)));
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    /** Reads the header, leaving {@code in} at the body. Null (and closed) if unusable. */
+    private Meta readEntryHeader(String key, String url, InputStream in) {
+        try {
+            Meta meta = readHeader(new DataInputStream(in));
+            // Hash collision or a file from another format
+            if (meta != null && url.equals(meta.url)) {
+                return meta;
+            }
+        } catch (IOException e) {
+            remove(key);
+        }
+        try { in.close(); } catch (Exception ignored) {}
+        return null;
+    }
+
+    private WebResourceResponse open(String key, String url, AtomicLong counter) {
+        InputStream in = openEntry(key);
+        Meta meta = in != null ? readEntryHeader(key, url, in) : null;
+        return meta != null ? serve(key, meta, in, counter) : null;
+    }
+
+    /** Serves an entry whose stream is positioned just past the header. */
+    private WebResourceResponse serve(String key, Meta meta, InputStream in, AtomicLong counter) {
+        File file = new File(dir, key);
+        synchronized (this) {
+            lru.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL_MS) {
+            file.setLastModified(now);
+        }
+        counter.incrementAndGet();
+        bytesFromCache.addAndGet(file.length());
+        return response(meta, 200, "OK", in);
+    }
+
+    private void revalidateAsync(String key, String url, Map<String, String> headers, Meta meta) {
+        synchronized (revalidating) {
+            if (!revalidating.add(key)) return;
+        }
+        final Map<String, String> requestHeaders = new HashMap<>(headers);
+        revalidator.execute(() -> {
+            try {
+                WebResourceResponse response = fetch(key, url, requestHeaders, meta, true);
+                if (response != null && response.getData() != null) {
+                    // Drain so the body lands in the cache
+                    InputStream in = response.getData();
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) != -1) {
+                        // keep reading
+                    }
+                    in.close();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                Log.w(TAG, "Revalidation failed for " + url + ": " + e.getMessage());
+            } finally {
+                synchronized (revalidating) {
+                    revalidating.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests {@code url}, conditionally if {@code meta} is known. A 304
+     * refreshes the entry and serves it from disk; a 200 streams the body to
+     * the caller while writing it to the cache.
+     */
+    private WebResourceResponse fetch(String key, String url, Map<String, String> requestHeaders,
+            Meta meta, boolean revalidation) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        boolean handedOff = false;
+        try {
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            for (Map.Entry<String, String> h : requestHeaders.entrySet()) {
+                if (!SKIP_REQUEST_HEADERS.contains(h.getKey().toLowerCase(Locale.ROOT))) {
+                    conn.setRequestProperty(h.getKey(), h.getValue());
+                }
+            }
+            String cookie = CookieManager.getInstance().getCookie(url);
+            if (cookie != null) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            if (meta != null) {
+                if (!meta.etag.isEmpty()) {
+                    conn.setRequestProperty("If-None-Match", meta.etag);
+                }
+                if (!meta.lastModified.isEmpty()) {
+                    conn.setRequestProperty("If-Modified-Since", meta.lastModified);
+                }
+            }
+
+            int code = conn.getResponseCode();
+            long now = System.currentTimeMillis();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+                long expiresAt = expiresAt(conn, now);
+                if (expiresAt < 0) {
+                    // Now no-store or private: this copy may answer this request, then it goes
+                    WebResourceResponse response = revalidation ? null : open(key, url, hits);
+                    remove(key);
+                    notModified.incrementAndGet();
+                    return response;
+                }
+                meta.expiresAt = expiresAt;
+                if (conn.getHeaderField("Cache-Control") != null || conn.getHeaderField("Expires") != null) {
+                    // A 304 without them leaves the stored policy alone
+                    meta.revalidateFirst = meta.expiresAt <= now;
+                }
+                String etag = conn.getHeaderField("ETag");
+                if (etag != null) meta.etag = etag;
+                rewriteHeader(key, meta);
+                notModified.incrementAndGet();
+                return revalidation ? null : open(key, url, hits);
+            }
+            if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+                remove(key);
+            }
+            if (code >= 300 && code < 400) {
+                // Redirect HttpURLConnection would not follow (e.g. across schemes); let WebView do it
+                return null;
+            }
+
+            Meta fresh = new Meta();
+            fresh.url = url;
+            String contentType = conn.getContentType();
+            fresh.mimeType = "application/octet-stream";
+            fresh.encoding = "";
+            if (contentType != null) {
+                int semi = contentType.indexOf(';');
+                fresh.mimeType = (semi < 0 ? contentType : contentType.substring(0, semi)).trim();
+                int cs = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+                if (cs >= 0) {
+                    fresh.encoding = contentType.substring(cs + 8).replace("\"", "").trim();
+                }
+            }
+            fresh.etag = nonNull(conn.getHeaderField("ETag"));
+            fresh.lastModified = nonNull(conn.getHeaderField("Last-Modified"));
+            fresh.allowOrigin = nonNull(conn.getHeaderField("Access-Control-Allow-Origin"));
+            fresh.expiresAt = expiresAt(conn, now);
+            fresh.revalidateFirst = fresh.expiresAt <= now;
+
+            InputStream body = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (body == null) {
+                body = new ByteArrayInputStream(new byte[0]);
+            }
+            long contentLength = conn.getContentLength();
+            boolean store = code == HttpURLConnection.HTTP_OK && fresh.expiresAt >= 0
+                && contentLength <= MAX_ENTRY_BYTES;
+            if (!revalidation) {
+                misses.incrementAndGet();
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                refreshed.incrementAndGet();
+            }
+            if (store) {
+                body = new StoringStream(body, conn, key, fresh);
+            } else {
+                body = new FilterInputStream(body) {
+                    @Override
+                    public void close() throws IOException {
+                        try { super.close(); } finally { conn.disconnect(); }
+                    }
+                };
+            }
+            handedOff = true;
+            String reason = conn.getResponseMessage();
+            return response(fresh, code, reason == null || reason.isEmpty() ? "OK" : reason, body);
+        } finally {
+            if (!handedOff) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /** Copies the network body to a temp file as it is read; commits on EOF. */
+    private class StoringStream extends FilterInputStream {
+        private final HttpURLConnection conn;
+        private final String key;
+        private final File tmp;
+        private OutputStream out;
+        private long written;
+        private boolean done;
+
+        StoringStream(InputStream in, HttpURLConnection conn, String key, Meta meta) throws IOException {
+            super(in);
+            this.conn = conn;
+            this.key = key;
+            this.tmp = new File(dir, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            writeHeader(header, meta);
+            this.out = header;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                finish(true);
+            } else {
+                append(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n == -1) {
+                finish(true);
+            } else {
+                append(buf, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // Closed before EOF: the copy is incomplete
+                finish(false);
+                conn.disconnect();
+            }
+        }
+
+        private void append(byte[] buf, int off, int len) {
+            bytesFromNetwork.addAndGet(len);
+            if (out == null) return;
+            written += len;
+            if (written > MAX_ENTRY_BYTES) {
+                finish(false);
+                return;
+            }
+            try {
+                out.write(buf, off, len);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                finish(false);
+            }
+        }
+
+        private void finish(boolean complete) {
+            if (done) return;
+            done = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                complete = false;
+            }
+            out = null;
+            if (complete) {
+                commit(key, tmp);
+            } else {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void commit(String key, File tmp) {
+        File target = new File(dir, key);
+        synchronized (this) {
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                return;
+            }
+            Long old = lru.put(key, target.length());
+            totalBytes += target.length() - (old != null ? old : 0);
+            trimLocked();
+        }
+    }
+
+    /** Rewrites an entry with a refreshed header, keeping its body. */
+    private void rewriteHeader(String key, Meta meta) {
+        File file = new File(dir, key);
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            if (readHeader(new DataInputStream(in)) == null) {
+                throw new IOException("Corrupt entry");
+            }
+            writeHeader(out, meta);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            remove(key);
+            return;
+        }
+        commit(key, tmp);
+    }
+
+    private synchronized void remove(String key) {
+        Long size = lru.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, key).delete();
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(dir, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static WebResourceResponse response(Meta meta, int code, String reason, InputStream body) {
+        Map<String, String> headers = Collections.emptyMap();
+        if (!meta.allowOrigin.isEmpty()) {
+            // Fonts are fetched in CORS mode
+            headers = Collections.singletonMap("Access-Control-Allow-Origin", meta.allowOrigin);
+        }
+        return new WebResourceResponse(meta.mimeType, meta.encoding.isEmpty() ? null : meta.encoding,
+            code, reason, headers, body);
+    }
+
+    /**
+     * Expiry time from the response headers, or -1 if it must not be stored.
+     * Requests carry the user's cookies, so "private" counts as no-store: this
+     * cache is not per user.
+     */
+    static long expiresAt(HttpURLConnection conn, long now) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            String cc = cacheControl.toLowerCase(Locale.ROOT);
+            if (cc.contains("no-store") || cc.contains("private")) {
+                return -1;
+            }
+            if (cc.contains("no-cache")) {
+                return now;
+            }
+            int i = cc.indexOf("max-age=");
+            if (i >= 0) {
+                long seconds = 0;
+                for (int j = i + 8; j < cc.length() && Character.isDigit(cc.charAt(j)); j++) {
+                    seconds = Math.min(seconds * 10 + (cc.charAt(j) - '0'), Integer.MAX_VALUE);
+                }
+                return now + seconds * 1000;
+            }
+        }
+        long expires = conn.getHeaderFieldDate("Expires", 0);
+        if (expires > 0) {
+            return expires;
+        }
+        long lastModified = conn.getHeaderFieldDate("Last-Modified", 0);
+        if (lastModified > 0 && lastModified < now) {
+            // Usual heuristic: a tenth of the time since it last changed
+            return now + Math.min((now - lastModified) / 10, HEURISTIC_MAX_AGE_MS);
+        }
+        return now;
+    }
+
+    private static Meta readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            return null;
+        }
+        Meta meta = new Meta();
+        meta.url = in.readUTF();
+        meta.mimeType = in.readUTF();
+        meta.encoding = in.readUTF();
+        meta.etag = in.readUTF();
+        meta.lastModified = in.readUTF();
+        meta.allowOrigin = in.readUTF();
+        meta.expiresAt = in.readLong();
+        meta.revalidateFirst = in.readBoolean();
+        return meta;
+    }
+
+    private static void writeHeader(DataOutputStream out, Meta meta) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(meta.url);
+        out.writeUTF(meta.mimeType);
+        out.writeUTF(meta.encoding);
+        out.writeUTF(meta.etag);
+        out.writeUTF(meta.lastModified);
+        out.writeUTF(meta.allowOrigin);
+        out.writeLong(meta.expiresAt);
+        out.writeBoolean(meta.revalidateFirst);
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -3,21 +3,13 @@ package com.android.cts.jtech;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Build;
 
 public class BootReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            String topic = PushService.getTopic(context);
-            if (topic != null && !topic.isEmpty()) {
-                Intent serviceIntent = new Intent(context, PushService.class);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    context.startForegroundService(serviceIntent);
-                } else {
-                    context.startService(serviceIntent);
-                }
-            }
+            // Starts the streaming service, or re-arms the poll job in low-power mode
+            PushService.start(context);
         }
     }
 }
@@ -0,0 +1,176 @@
+package com.android.cts.jtech;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The asynchronous half of PushBridge.
+ *
+ * Injects a small {@code window.NativePush} shim into each page. Through it the
+ * page reads the whole native state in one crossing, runs slow operations as
+ * promises ({@code NativePush.call("registerPush", [server, topic])}), and
+ * receives {@code nativepush} DOM events whenever the state changes, instead of
+ * polling the synchronous getters one by one.
+ */
+class BridgeChannel implements PushStats.Listener, Config.Listener {
+    private static final String TAG = "BridgeChannel";
+    // State pushes are coalesced to at most one per this interval
+    private static final long EMIT_DELAY_MS = 250;
+
+    static final String SHIM = "(function(){"
+        + "if(window.NativePush||!window.PushBridge)return;"
+        + "var pending={},seq=0;"
+        + "var np=window.NativePush={state:null,"
+        + "call:function(method,args){return new Promise(function(resolve,reject){"
+        + "var id=++seq;pending[id]={resolve:resolve,reject:reject};"
+        + "PushBridge.callAsync(method,JSON.stringify(args||[]),id);});},"
+        + "_resolve:function(id,ok,value){var p=pending[id];if(!p)return;delete pending[id];"
+        + "if(ok)p.resolve(value);else p.reject(new Error(value));},"
+        + "_emit:function(state){np.state=state;"
+        + "window.dispatchEvent(new CustomEvent('nativepush',{detail:state}));}};"
+        + "np._emit(JSON.parse(PushBridge.getState()));"
+        + "})();";
+
+    private final Activity activity;
+    private final WebView webView;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, TAG));
+    private final AtomicBoolean emitScheduled = new AtomicBoolean();
+    private boolean listening;
+
+    BridgeChannel(Activity activity, WebView webView) {
+        this.activity = activity;
+        this.webView = webView;
+    }
+
+    /** Snapshot of everything the page asks about, in one object. */
+    static JSONObject state(Activity activity) throws JSONException {
+        Config config = Config.get(activity);
+        Config.Snapshot s = config.snapshot();
+        String deviceId = s.deviceId;
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            config.edit().putString(Config.KEY_DEVICE_ID, deviceId).apply();
+        }
+        JSONObject state = new JSONObject();
+        state.put("native", true);
+        state.put("registered", s.topic != null && !s.topic.isEmpty());
+        state.put("server", s.server);
+        state.put("topic", s.topic == null ? "" : s.topic);
+        state.put("topics", new JSONArray(s.topics));
+        state.put("deviceId", deviceId);
+        state.put("deliveryMode", s.deliveryMode);
+        state.put("transport", s.transport(s.server));
+        state.put("messagesNotifEnabled", s.messagesNotifEnabled);
+        state.put("serviceNotifEnabled", s.serviceNotifEnabled);
+        state.put("connected", PushStats.get().isConnected());
+        state.put("unread", PushNotifier.unreadCount(activity));
+        return state;
+    }
+
+    /** Runs {@code task} off the bridge thread and settles the page's promise with its result. */
+    void runAsync(int requestId, Task task) {
+        try {
+            executor.execute(() -> settle(requestId, task));
+        } catch (RejectedExecutionException e) {
+            // Activity already destroyed; nobody is waiting for the answer
+        }
+    }
+
+    private void settle(int requestId, Task task) {
+        boolean ok = true;
+        String result;
+        try {
+            result = toJsLiteral(task.run());
+        } catch (Exception e) {
+            ok = false;
+            result = JSONObject.quote(String.valueOf(e.getMessage()));
+        }
+        evaluate("window.NativePush&&NativePush._resolve(" + requestId + "," + ok + "," + result + ")");
+    }
+
+    interface Task {
+        Object run() throws Exception;
+    }
+
+    /** Installs the shim; call when a page starts and again when it finishes. */
+    void inject() {
+        webView.evaluateJavascript(SHIM, null);
+    }
+
+    /** Starts pushing state changes while the page is visible. */
+    void start() {
+        if (listening) return;
+        listening = true;
+        PushStats.get().addListener(this);
+        Config.get(activity).addListener(this);
+        emitSoon();
+    }
+
+    void stop() {
+        if (!listening) return;
+        listening = false;
+        PushStats.get().removeListener(this);
+        Config.get(activity).removeListener(this);
+    }
+
+    void shutdown() {
+        stop();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void onPushStateChanged() {
+        emitSoon();
+    }
+
+    @Override
+    public void onConfigChanged(Config.Snapshot config, Set<String> changedKeys) {
+        emitSoon();
+    }
+
+    private void emitSoon() {
+        if (!emitScheduled.compareAndSet(false, true)) return;
+        mainHandler.postDelayed(() -> {
+            emitScheduled.set(false);
+            if (!listening || executor.isShutdown()) return;
+            // unreadCount is a binder call, so build the state off the main thread
+            executor.execute(() -> {
+                try {
+                    evaluate("window.NativePush&&NativePush._emit(" + state(activity) + ")");
+                } catch (JSONException e) {
+                    Log.w(TAG, "Could not build state: " + e.getMessage());
+                }
+            });
+        }, EMIT_DELAY_MS);
+    }
+
+    private void evaluate(String script) {
+        mainHandler.post(() -> {
+            if (!activity.isFinishing()) {
+                webView.evaluateJavascript(script, null);
+            }
+        });
+    }
+
+    private static String toJsLiteral(Object value) {
+        if (value == null) return "null";
+        if (value instanceof JSONObject || value instanceof JSONArray) return value.toString();
+        if (value instanceof Boolean || value instanceof Number) return String.valueOf(value);
+        return JSONObject.quote(String.valueOf(value));
+    }
+}
@@ -0,0 +1,384 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The app's settings and small persistent state, in one prefs file.
+ *
+ * The file is read once on a background thread, started by the first
+ * {@link #get}; after that every read is a field access on an immutable
+ * {@link Snapshot}. Writes swap in a new snapshot immediately and reach disk
+ * asynchronously; listeners hear about the keys that changed on a config
+ * thread of their own, outside any lock.
+ * Values from the older JtechPrefs, push_prefs and app_prefs files are
+ * moved over on first load.
+ */
+public final class Config {
+    private static final String TAG = "Config";
+    private static final String PREFS_NAME = "jtech_config";
+    private static final String[] LEGACY_PREFS = {"JtechPrefs", "push_prefs", "app_prefs"};
+    private static final String KEY_VERSION = "config_version";
+    private static final int VERSION = 1;
+
+    public static final String KEY_SERVER = "server";
+    // Comma-separated topic set
+    public static final String KEY_TOPIC = "topic";
+    public static final String KEY_DELIVERY_MODE = "delivery_mode";
+    public static final String KEY_POLL_INTERVAL = "poll_interval_min";
+    public static final String KEY_HEARTBEAT_TIMEOUT = "heartbeat_timeout_sec";
+    public static final String KEY_TRANSPORT_PREFIX = "transport:";
+    public static final String KEY_MESSAGES_NOTIF = "notif_messages_enabled";
+    public static final String KEY_SERVICE_NOTIF = "notif_service_enabled";
+    public static final String KEY_SCREEN_SIZE = "screen_size";
+    public static final String KEY_FIRST_LAUNCH = "first_launch";
+    public static final String KEY_DEVICE_ID = "device_id";
+    public static final String KEY_STALE_COUNT = "stale_connection_count";
+    public static final String KEY_LAST_EVENT_ID = "last_event_id";
+    public static final String KEY_LAST_EVENT_KEY = "last_event_key";
+    public static final String KEY_STARTUP_TRACES = "startup_traces";
+    public static final String KEY_DOWNLOAD_SEGMENTS = "download_segments";
+    public static final String KEY_WEBVIEW_POOL_BUDGET = "webview_pool_budget_percent";
+
+    public static final String MODE_STREAM = "stream";
+    public static final String MODE_POLL = "poll";
+    public static final int DEFAULT_POLL_INTERVAL_MIN = 15;
+    // ntfy sends a keepalive every 45 s by default, so allow for one missed keepalive
+    public static final int DEFAULT_HEARTBEAT_TIMEOUT_SEC = 120;
+    // Anything shorter than a keepalive interval plus slack would time out healthy connections
+    public static final int MIN_HEARTBEAT_TIMEOUT_SEC = 60;
+
+    public interface Listener {
+        /** Called on the config listener thread, in write order. Keep it quick. */
+        void onConfigChanged(Snapshot config, Set<String> changedKeys);
+    }
+
+    /** A change computed from the current settings; see {@link #update}. */
+    public interface Update {
+        /** Stages changes on {@code editor}; returns false to write nothing. */
+        boolean apply(Snapshot current, Editor editor);
+    }
+
+    /** Immutable view of every setting at one point in time. */
+    public static final class Snapshot {
+        private final Map<String, Object> values;
+        public final String server;
+        public final String topic;
+        public final List<String> topics;
+        public final String deliveryMode;
+        public final int pollIntervalMin;
+        public final int heartbeatTimeoutSec;
+        public final boolean messagesNotifEnabled;
+        public final boolean serviceNotifEnabled;
+        public final String screenSize;
+        public final boolean firstLaunch;
+        public final String deviceId;
+        public final int staleConnectionCount;
+        public final String lastEventId;
+        public final String lastEventKey;
+        public final String startupTraces;
+        public final int downloadSegments;
+        public final int webViewPoolBudget;
+
+        Snapshot(Map<String, Object> values) {
+            this.values = values;
+            server = string(KEY_SERVER, "");
+            topic = string(KEY_TOPIC, null);
+            topics = Collections.unmodifiableList(parseTopics(topic));
+            deliveryMode = string(KEY_DELIVERY_MODE, MODE_STREAM);
+            pollIntervalMin = integer(KEY_POLL_INTERVAL, DEFAULT_POLL_INTERVAL_MIN);
+            heartbeatTimeoutSec = Math.max(MIN_HEARTBEAT_TIMEOUT_SEC,
+                integer(KEY_HEARTBEAT_TIMEOUT, DEFAULT_HEARTBEAT_TIMEOUT_SEC));
+            messagesNotifEnabled = bool(KEY_MESSAGES_NOTIF, true);
+            serviceNotifEnabled = bool(KEY_SERVICE_NOTIF, true);
+            screenSize = string(KEY_SCREEN_SIZE, "small");
+            firstLaunch = bool(KEY_FIRST_LAUNCH, true);
+            deviceId = string(KEY_DEVICE_ID, null);
+            staleConnectionCount = integer(KEY_STALE_COUNT, 0);
+            lastEventId = string(KEY_LAST_EVENT_ID, null);
+            lastEventKey = string(KEY_LAST_EVENT_KEY, null);
+            startupTraces = string(KEY_STARTUP_TRACES, "[]");
+            downloadSegments = integer(KEY_DOWNLOAD_SEGMENTS, DownloadService.DEFAULT_SEGMENTS);
+            webViewPoolBudget = integer(KEY_WEBVIEW_POOL_BUDGET, WebViewPool.DEFAULT_BUDGET_PERCENT);
+        }
+
+        public boolean isConfigured() {
+            return !server.isEmpty() && !topics.isEmpty();
+        }
+
+        /** Transport used for {@code server}: sse (default), json or ws. */
+        public String transport(String server) {
+            return string(KEY_TRANSPORT_PREFIX + server, PushTransport.SSE);
+        }
+
+        private String string(String key, String def) {
+            Object v = values.get(key);
+            return v instanceof String ? (String) v : def;
+        }
+
+        private int integer(String key, int def) {
+            Object v = values.get(key);
+            return v instanceof Integer ? (Integer) v : def;
+        }
+
+        private boolean bool(String key, boolean def) {
+            Object v = values.get(key);
+            return v instanceof Boolean ? (Boolean) v : def;
+        }
+    }
+
+    /** Batches changes; nothing is visible until {@link #apply()}. */
+    public final class Editor {
+        private final Map<String, Object> changes = new HashMap<>();
+
+        public Editor putString(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            changes.put(key, null);
+            return this;
+        }
+
+        public void apply() {
+            commit(changes);
+        }
+    }
+
+    private static Config instance;
+
+    public static synchronized Config get(Context context) {
+        if (instance == null) {
+            instance = new Config(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // One thread, so listeners see changes in write order
+    private final ExecutorService listenerExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ConfigListeners");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile Snapshot snapshot;
+    private SharedPreferences prefs;
+    // Run on the main thread once loaded; guarded by this
+    private List<Runnable> onLoaded = new ArrayList<>();
+
+    private Config(Context context) {
+        this.context = context;
+        new Thread(this::load, "ConfigLoad").start();
+    }
+
+    /** Current settings, or null if the initial load has not finished. Never blocks. */
+    public Snapshot peek() {
+        return snapshot;
+    }
+
+    /**
+     * Runs {@code callback} on the main thread once the initial load has
+     * finished: right away if it already has (so call this on the main
+     * thread), otherwise posted when it does.
+     */
+    public void whenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (onLoaded != null) {
+                onLoaded.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /** Current settings. Only blocks if the initial load has not finished yet. */
+    public Snapshot snapshot() {
+        Snapshot s = snapshot;
+        if (s != null) {
+            return s;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return snapshot;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Read-modify-write in one step: no other write lands between {@code update}
+     * seeing the current settings and its changes being applied. Runs it under
+     * the write lock, so keep it quick. Returns what it returned.
+     */
+    public boolean update(Update update) {
+        snapshot();
+        synchronized (this) {
+            Editor editor = new Editor();
+            if (!update.apply(snapshot, editor)) {
+                return false;
+            }
+            commit(editor.changes);
+            return true;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void load() {
+        SharedPreferences p = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Map<String, Object> values = new HashMap<>(p.getAll());
+        if (!Integer.valueOf(VERSION).equals(values.get(KEY_VERSION))) {
+            migrate(p, values);
+        }
+        List<Runnable> callbacks;
+        synchronized (this) {
+            prefs = p;
+            snapshot = new Snapshot(values);
+            callbacks = onLoaded;
+            onLoaded = null;
+        }
+        loaded.countDown();
+        for (Runnable callback : callbacks) {
+            mainHandler.post(callback);
+        }
+    }
+
+    /** Moves everything from the legacy prefs files into this one. */
+    private void migrate(SharedPreferences p, Map<String, Object> values) {
+        SharedPreferences.Editor editor = p.edit();
+        List<SharedPreferences> legacy = new ArrayList<>();
+        for (String name : LEGACY_PREFS) {
+            SharedPreferences old = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> e : old.getAll().entrySet()) {
+                if (!values.containsKey(e.getKey())) {
+                    values.put(e.getKey(), e.getValue());
+                    put(editor, e.getKey(), e.getValue());
+                }
+            }
+            legacy.add(old);
+        }
+        values.put(KEY_VERSION, VERSION);
+        editor.putInt(KEY_VERSION, VERSION);
+        // Only drop the old files once the merged one is safely on disk
+        if (editor.commit()) {
+            for (SharedPreferences old : legacy) {
+                old.edit().clear().apply();
+            }
+            Log.i(TAG, "Migrated legacy prefs");
+        } else {
+            Log.w(TAG, "Could not write merged prefs; legacy files kept");
+        }
+    }
+
+    private void commit(Map<String, Object> changes) {
+        // Writes wait for the initial load so they are not lost under it
+        snapshot();
+        synchronized (this) {
+            Map<String, Object> values = new HashMap<>(snapshot.values);
+            Set<String> changed = new HashSet<>();
+            SharedPreferences.Editor editor = prefs.edit();
+            for (Map.Entry<String, Object> e : changes.entrySet()) {
+                String key = e.getKey();
+                Object value = e.getValue();
+                Object old = value == null ? values.remove(key) : values.put(key, value);
+                if (value == null ? old != null : !value.equals(old)) {
+                    changed.add(key);
+                    put(editor, key, value);
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            final Snapshot next = new Snapshot(values);
+            snapshot = next;
+            editor.apply();
+            final Set<String> keys = Collections.unmodifiableSet(changed);
+            // Queued under the lock to keep write order; run outside it, off the writer's thread
+            listenerExecutor.execute(() -> {
+                for (Listener listener : listeners) {
+                    listener.onConfigChanged(next, keys);
+                }
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if (value == null) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    /** Topics in subscription order from the stored comma-separated value. */
+    public static List<String> parseTopics(String value) {
+        List<String> topics = new ArrayList<>();
+        if (value == null) {
+            return topics;
+        }
+        for (String part : value.split(",")) {
+            String topic = part.trim();
+            if (!topic.isEmpty() && !topics.contains(topic)) {
+                topics.add(topic);
+            }
+        }
+        return topics;
+    }
+}
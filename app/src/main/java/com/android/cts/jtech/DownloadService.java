@@ -0,0 +1,472 @@
+package com.android.cts.jtech;
+
+import android.app.DownloadManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs {@link DownloadTask}s one at a time in the foreground, with a progress
+ * notification, and moves finished files into the public Downloads folder.
+ *
+ * Every task's state lives in its own JSON file, so unfinished downloads are
+ * picked up again by {@link #resumePending} after the process was killed.
+ */
+public class DownloadService extends Service {
+    private static final String TAG = "DownloadService";
+    private static final String CHANNEL_ID = "downloads";
+    private static final String DIR_NAME = "downloads";
+    // Negative so they never fall in PushNotifier's range of message ids
+    private static final int NOTIFICATION_ID = -1000;
+    private static final long NOTIFY_INTERVAL_MS = 1000;
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final int MAX_SEGMENTS = 8;
+
+    private static final String ACTION_ENQUEUE = "com.android.cts.jtech.DOWNLOAD_ENQUEUE";
+    private static final String ACTION_RESUME = "com.android.cts.jtech.DOWNLOAD_RESUME";
+    private static final String ACTION_CANCEL = "com.android.cts.jtech.DOWNLOAD_CANCEL";
+
+    // id -> task, in the order they were queued; guarded by itself
+    private static final Map<String, DownloadTask> tasks = new LinkedHashMap<>();
+    private static boolean tasksLoaded;
+
+    private final LinkedBlockingQueue<DownloadTask> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService segmentPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "DownloadSegment");
+        t.setDaemon(true);
+        return t;
+    });
+    private NotificationManager nm;
+    // Guarded by queue
+    private Thread worker;
+    private int lastStartId;
+    private volatile DownloadTask current;
+    private long lastNotifyAt;
+    private long speedSampleAt;
+    private long speedSampleBytes;
+    private long bytesPerSec;
+
+    /** Queues a download of {@code url} into Downloads/{@code fileName}. */
+    public static void enqueue(Context context, String url, String fileName, String mimeType, String userAgent) {
+        Intent intent = new Intent(context, DownloadService.class).setAction(ACTION_ENQUEUE)
+            .putExtra("url", url)
+            .putExtra("file_name", fileName)
+            .putExtra("mime_type", mimeType)
+            .putExtra("user_agent", userAgent);
+        start(context, intent);
+    }
+
+    /** Restarts downloads that were interrupted, e.g. by the process being killed. */
+    public static void resumePending(Context context) {
+        File[] states = dir(context).listFiles((d, name) -> name.endsWith(".json"));
+        if (states == null) {
+            return;
+        }
+        for (File f : states) {
+            DownloadTask task = DownloadTask.load(f);
+            if (task != null && !DownloadTask.FAILED.equals(task.status)) {
+                start(context, new Intent(context, DownloadService.class).setAction(ACTION_RESUME));
+                return;
+            }
+        }
+    }
+
+    /** All known downloads with their progress, for the page. */
+    public static String listJson(Context context) {
+        loadSaved(context);
+        JSONArray list = new JSONArray();
+        synchronized (tasks) {
+            for (DownloadTask task : tasks.values()) {
+                try {
+                    list.put(new JSONObject()
+                        .put("id", task.id)
+                        .put("fileName", task.fileName)
+                        .put("status", task.status)
+                        .put("error", task.error)
+                        .put("total", task.total)
+                        .put("done", task.bytesDone())
+                        .put("segments", task.segmentCount()));
+                } catch (JSONException ignored) {
+                }
+            }
+        }
+        return list.toString();
+    }
+
+    private static void start(Context context, Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    private static File dir(Context context) {
+        // Partial files can be hundreds of MB; keep them off the small internal partition if possible
+        File base = context.getExternalFilesDir(null);
+        File dir = new File(base != null ? base : context.getFilesDir(), DIR_NAME);
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(
+                CHANNEL_ID, "Downloads", NotificationManager.IMPORTANCE_LOW);
+            channel.setDescription("Progress of files being downloaded");
+            nm.createNotificationChannel(channel);
+        }
+        loadSaved(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, progressNotification(current));
+        // A sticky restart after the process died has no intent: resume from saved state
+        String action = intent != null ? intent.getAction() : ACTION_RESUME;
+        if (ACTION_ENQUEUE.equals(action)) {
+            String fileName = intent.getStringExtra("file_name");
+            DownloadTask task = new DownloadTask(UUID.randomUUID().toString(), intent.getStringExtra("url"),
+                fileName, intent.getStringExtra("mime_type"), intent.getStringExtra("user_agent"), dir(this));
+            task.save(true);
+            synchronized (tasks) {
+                tasks.put(task.id, task);
+            }
+            synchronized (queue) {
+                queue.add(task);
+            }
+        } else if (ACTION_CANCEL.equals(action)) {
+            cancel(intent.getStringExtra("id"));
+        } else if (ACTION_RESUME.equals(action)) {
+            String id = intent != null ? intent.getStringExtra("id") : null;
+            synchronized (tasks) {
+                for (DownloadTask task : tasks.values()) {
+                    // Failed downloads only come back when the user taps retry
+                    boolean wanted = id == null ? !DownloadTask.FAILED.equals(task.status) : id.equals(task.id);
+                    synchronized (queue) {
+                        if (wanted && task != current && !queue.contains(task)) {
+                            queue.add(task);
+                        }
+                    }
+                }
+            }
+        }
+        synchronized (queue) {
+            lastStartId = startId;
+            if (worker == null) {
+                worker = new Thread(this::work, TAG);
+                worker.start();
+            }
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (worker != null) {
+            worker.interrupt();
+        }
+        DownloadTask task = current;
+        if (task != null) {
+            task.stop();
+        }
+        segmentPool.shutdownNow();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private static void loadSaved(Context context) {
+        synchronized (tasks) {
+            if (tasksLoaded) {
+                return;
+            }
+            tasksLoaded = true;
+            File[] states = dir(context).listFiles((d, name) -> name.endsWith(".json"));
+            if (states == null) {
+                return;
+            }
+            for (File f : states) {
+                DownloadTask task = DownloadTask.load(f);
+                if (task == null) {
+                    f.delete();
+                } else if (!tasks.containsKey(task.id)) {
+                    tasks.put(task.id, task);
+                }
+            }
+        }
+    }
+
+    private void cancel(String id) {
+        DownloadTask task;
+        synchronized (tasks) {
+            task = tasks.remove(id);
+        }
+        if (task != null) {
+            queue.remove(task);
+            task.delete();
+            nm.cancel(resultNotificationId(task));
+            Log.i(TAG, "Cancelled " + task.fileName);
+        }
+    }
+
+    private void work() {
+        int stopId;
+        while (true) {
+            DownloadTask task;
+            synchronized (queue) {
+                task = queue.poll();
+                if (task == null) {
+                    worker = null;
+                    stopId = lastStartId;
+                    break;
+                }
+            }
+            synchronized (tasks) {
+                if (!tasks.containsKey(task.id)) continue;
+            }
+            current = task;
+            speedSampleAt = SystemClock.elapsedRealtime();
+            speedSampleBytes = task.bytesDone();
+            bytesPerSec = 0;
+            nm.notify(NOTIFICATION_ID, progressNotification(task));
+            int segments = Math.max(1, Math.min(MAX_SEGMENTS, Config.get(this).snapshot().downloadSegments));
+            try {
+                // A task can already be done if the process died before publishing it
+                if (!task.isFinished()) {
+                    task.run(segments, segmentPool, this::onProgress);
+                }
+                if (task.isFinished()) {
+                    publish(task);
+                }
+            } catch (IOException e) {
+                boolean cancelled;
+                synchronized (tasks) {
+                    cancelled = !tasks.containsKey(task.id);
+                }
+                if (!cancelled) {
+                    Log.w(TAG, "Download of " + task.fileName + " failed: " + e.getMessage());
+                    nm.notify(resultNotificationId(task), failedNotification(task));
+                }
+            }
+            current = null;
+            if (Thread.interrupted()) {
+                return;
+            }
+        }
+        // A start that raced in after the queue emptied keeps the service alive
+        if (stopSelfResult(stopId)) {
+            removeForeground();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void removeForeground() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        } else {
+            stopForeground(true);
+        }
+    }
+
+    private void onProgress(DownloadTask task) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (now - lastNotifyAt < NOTIFY_INTERVAL_MS) {
+                return;
+            }
+            lastNotifyAt = now;
+            long done = task.bytesDone();
+            if (now > speedSampleAt) {
+                long rate = (done - speedSampleBytes) * 1000 / (now - speedSampleAt);
+                // Smoothed so the estimate does not jump with every burst
+                bytesPerSec = bytesPerSec == 0 ? rate : (bytesPerSec * 3 + rate) / 4;
+            }
+            speedSampleAt = now;
+            speedSampleBytes = done;
+        }
+        nm.notify(NOTIFICATION_ID, progressNotification(task));
+    }
+
+    /** Moves a finished file into the public Downloads folder and tells the user. */
+    private void publish(DownloadTask task) {
+        String mimeType = task.mimeType != null ? task.mimeType : "application/octet-stream";
+        try {
+            Uri uri;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                ContentResolver resolver = getContentResolver();
+                ContentValues values = new ContentValues();
+                values.put(MediaStore.Downloads.DISPLAY_NAME, task.fileName);
+                values.put(MediaStore.Downloads.MIME_TYPE, mimeType);
+                values.put(MediaStore.Downloads.IS_PENDING, 1);
+                uri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+                if (uri == null) {
+                    throw new IOException("MediaStore insert failed");
+                }
+                try (InputStream in = new FileInputStream(task.partFile);
+                     OutputStream out = resolver.openOutputStream(uri)) {
+                    copy(in, out);
+                } catch (IOException e) {
+                    resolver.delete(uri, null, null);
+                    throw e;
+                }
+                values.clear();
+                values.put(MediaStore.Downloads.IS_PENDING, 0);
+                resolver.update(uri, values, null, null);
+                nm.notify(resultNotificationId(task), completeNotification(task, uri, mimeType));
+            } else {
+                File target = uniqueFile(
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), task.fileName);
+                target.getParentFile().mkdirs();
+                if (!task.partFile.renameTo(target)) {
+                    try (InputStream in = new FileInputStream(task.partFile);
+                         OutputStream out = new FileOutputStream(target)) {
+                        copy(in, out);
+                    }
+                }
+                // The Downloads app shows it and posts the completion notification
+                DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+                dm.addCompletedDownload(target.getName(), task.fileName, true, mimeType,
+                    target.getAbsolutePath(), target.length(), true);
+            }
+            Log.i(TAG, "Downloaded " + task.fileName + " (" + task.total + " bytes)");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not publish " + task.fileName, e);
+            task.error = e.getMessage();
+            nm.notify(resultNotificationId(task), failedNotification(task));
+            return;
+        }
+        task.delete();
+        synchronized (tasks) {
+            tasks.remove(task.id);
+        }
+    }
+
+    private static File uniqueFile(File dir, String name) {
+        File file = new File(dir, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + " (" + i + ")" + ext);
+        }
+        return file;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    private Notification progressNotification(DownloadTask task) {
+        Notification.Builder builder = newBuilder()
+            .setSmallIcon(android.R.drawable.stat_sys_download)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true);
+        if (task == null) {
+            return builder.setContentTitle("Preparing download").build();
+        }
+        long done = task.bytesDone();
+        builder.setContentTitle(task.fileName);
+        if (task.total > 0) {
+            int percent = (int) (done * 100 / task.total);
+            builder.setProgress(100, percent, false)
+                .setContentText(formatBytes(done) + " / " + formatBytes(task.total)
+                    + (bytesPerSec > 0 ? " · " + formatBytes(bytesPerSec) + "/s" : ""));
+        } else {
+            builder.setProgress(0, 0, true).setContentText(formatBytes(done));
+        }
+        Intent cancel = new Intent(this, DownloadService.class).setAction(ACTION_CANCEL).putExtra("id", task.id);
+        builder.addAction(new Notification.Action.Builder(android.R.drawable.ic_menu_close_clear_cancel, "Cancel",
+            PendingIntent.getService(this, resultNotificationId(task), cancel,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT)).build());
+        return builder.build();
+    }
+
+    private Notification completeNotification(DownloadTask task, Uri uri, String mimeType) {
+        Intent view = new Intent(Intent.ACTION_VIEW).setDataAndType(uri, mimeType)
+            .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
+        return newBuilder()
+            .setSmallIcon(android.R.drawable.stat_sys_download_done)
+            .setContentTitle(task.fileName)
+            .setContentText("Download complete")
+            .setContentIntent(PendingIntent.getActivity(this, resultNotificationId(task), view,
+                PendingIntent.FLAG_IMMUTABLE))
+            .setAutoCancel(true)
+            .build();
+    }
+
+    private Notification failedNotification(DownloadTask task) {
+        Intent retry = new Intent(this, DownloadService.class).setAction(ACTION_RESUME).putExtra("id", task.id);
+        PendingIntent retryIntent = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+            ? PendingIntent.getForegroundService(this, resultNotificationId(task), retry,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT)
+            : PendingIntent.getService(this, resultNotificationId(task), retry,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        return newBuilder()
+            .setSmallIcon(android.R.drawable.stat_notify_error)
+            .setContentTitle(task.fileName)
+            .setContentText("Download stopped: " + task.error + ". Tap to resume")
+            .setContentIntent(retryIntent)
+            .setAutoCancel(true)
+            .build();
+    }
+
+    private Notification.Builder newBuilder() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new Notification.Builder(this, CHANNEL_ID);
+        }
+        return new Notification.Builder(this).setPriority(Notification.PRIORITY_LOW);
+    }
+
+    private static int resultNotificationId(DownloadTask task) {
+        return NOTIFICATION_ID - 1 - (task.id.hashCode() & 0xFFFF);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return (bytes / 1024) + " KB";
+    }
+}
@@ -0,0 +1,757 @@
+package com.android.cts.jtech;
+
+import android.util.Base64;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One download, fetched as parallel HTTP Range segments into a partial file.
+ *
+ * Segment positions, validators and the expected checksum are saved as JSON
+ * next to the partial file (after an fsync of the data), so a download killed
+ * with the process resumes from where it stopped. Resumed requests carry
+ * If-Range, so a file that changed on the server restarts from zero instead
+ * of being spliced. Servers without range support get one plain stream.
+ *
+ * When the server publishes an MD5 (Content-MD5, x-ms-blob-content-md5 or
+ * x-goog-hash), the file is hashed while it downloads: whenever the written
+ * prefix of the file grows, the new bytes are read back and fed to the
+ * digest, so verification costs nothing extra at the end.
+ */
+class DownloadTask {
+    private static final String TAG = "DownloadTask";
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // Files smaller than two of these are fetched as one segment
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_RETRIES = 6;
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long SAVE_INTERVAL_MS = 1000;
+    private static final int TIMEOUT_MS = 30000;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final Pattern GOOG_MD5 = Pattern.compile("md5=([A-Za-z0-9+/=]+)");
+
+    static final String QUEUED = "queued";
+    static final String RUNNING = "running";
+    static final String PAUSED = "paused";
+    static final String FAILED = "failed";
+    static final String DONE = "done";
+
+    interface Listener {
+        /** Called from segment threads, often; must be cheap. */
+        void onProgress(DownloadTask task);
+    }
+
+    /** Thrown when the server's copy changed under a resumed download. */
+    static class ChangedException extends IOException {
+        ChangedException(String message) {
+            super(message);
+        }
+    }
+
+    static class Segment {
+        final long start;
+        // Inclusive; -1 while the length is unknown (single stream)
+        final long end;
+        volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        boolean isDone() {
+            return end >= 0 && position > end;
+        }
+    }
+
+    final String id;
+    final String url;
+    final String fileName;
+    final String mimeType;
+    final String userAgent;
+    final File partFile;
+    private final File stateFile;
+
+    volatile String status = QUEUED;
+    volatile String error;
+    volatile long total = -1;
+    private String etag;
+    private String lastModified;
+    private String md5;
+    private boolean ranges;
+    private List<Segment> segments = new ArrayList<>();
+
+    // stopped: by the user or the service; aborted: a sibling segment failed for good
+    private volatile boolean stopped;
+    private volatile boolean aborted;
+    private final Set<HttpURLConnection> connections = new CopyOnWriteArraySet<>();
+    private final Object saveLock = new Object();
+    private long lastSaveAt;
+
+    private final ReentrantLock hashLock = new ReentrantLock();
+    private MessageDigest digest;
+    private long hashedUpTo;
+
+    DownloadTask(String id, String url, String fileName, String mimeType, String userAgent, File dir) {
+        this.id = id;
+        this.url = url;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.userAgent = userAgent;
+        this.partFile = new File(dir, id + ".part");
+        this.stateFile = new File(dir, id + ".json");
+    }
+
+    /** Loads a saved task, or null if the state file is unreadable. */
+    static DownloadTask load(File stateFile) {
+        try {
+            String json = new String(readAll(stateFile), "UTF-8");
+            JSONObject o = new JSONObject(json);
+            DownloadTask task = new DownloadTask(o.getString("id"), o.getString("url"), o.getString("fileName"),
+                o.optString("mimeType", null), o.optString("userAgent", null), stateFile.getParentFile());
+            task.status = o.optString("status", PAUSED);
+            task.error = o.optString("error", null);
+            task.total = o.optLong("total", -1);
+            task.etag = o.optString("etag", null);
+            task.lastModified = o.optString("lastModified", null);
+            task.md5 = o.optString("md5", null);
+            task.ranges = o.optBoolean("ranges");
+            JSONArray segs = o.optJSONArray("segments");
+            if (segs != null) {
+                for (int i = 0; i < segs.length(); i++) {
+                    JSONArray s = segs.getJSONArray(i);
+                    task.segments.add(new Segment(s.getLong(0), s.getLong(1), s.getLong(2)));
+                }
+            }
+            return task;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unreadable download state " + stateFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    long bytesDone() {
+        long done = 0;
+        for (Segment s : segments) {
+            done += s.position - s.start;
+        }
+        return done;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    boolean isFinished() {
+        return DONE.equals(status);
+    }
+
+    private boolean allDone() {
+        if (total == 0 && !segments.isEmpty()) {
+            // An empty body has no byte for a segment to end on
+            return true;
+        }
+        for (Segment s : segments) {
+            if (!s.isDone()) return false;
+        }
+        return !segments.isEmpty();
+    }
+
+    private boolean halted() {
+        return stopped || aborted;
+    }
+
+    /**
+     * Downloads until complete, stopped, or out of retries. Segments run on
+     * {@code pool}; the calling thread waits for them.
+     */
+    void run(int maxSegments, ExecutorService pool, Listener listener) throws IOException {
+        stopped = false;
+        aborted = false;
+        status = RUNNING;
+        error = null;
+        try {
+            // Without range support there is nothing to resume from
+            if (segments.isEmpty() || !partFile.exists() || (!ranges && !allDone())) {
+                reset();
+                start(maxSegments, listener);
+            }
+            try {
+                fetchSegments(pool, listener);
+            } catch (ChangedException e) {
+                Log.i(TAG, fileName + " changed on the server, starting over");
+                reset();
+                aborted = false;
+                start(maxSegments, listener);
+                fetchSegments(pool, listener);
+            }
+            if (stopped) {
+                status = PAUSED;
+                save(true);
+                return;
+            }
+            // The part file is preallocated, so verify()'s size check cannot catch a missing segment
+            if (!allDone()) {
+                throw new IOException("Incomplete: a segment ended before its range did");
+            }
+            verify();
+            status = DONE;
+            save(true);
+        } catch (IOException e) {
+            status = stopped ? PAUSED : FAILED;
+            error = e.getMessage();
+            save(true);
+            throw e;
+        }
+    }
+
+    /** Stops the running download; its state stays on disk for a later resume. */
+    void stop() {
+        stopped = true;
+        for (HttpURLConnection conn : connections) {
+            conn.disconnect();
+        }
+    }
+
+    private void abort() {
+        aborted = true;
+        for (HttpURLConnection conn : connections) {
+            conn.disconnect();
+        }
+    }
+
+    void delete() {
+        stop();
+        partFile.delete();
+        stateFile.delete();
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("id", id);
+        o.put("url", url);
+        o.put("fileName", fileName);
+        o.put("mimeType", mimeType);
+        o.put("userAgent", userAgent);
+        o.put("status", status);
+        o.put("error", error);
+        o.put("total", total);
+        o.put("etag", etag);
+        o.put("lastModified", lastModified);
+        o.put("md5", md5);
+        o.put("ranges", ranges);
+        JSONArray segs = new JSONArray();
+        for (Segment s : segments) {
+            segs.put(new JSONArray().put(s.start).put(s.end).put(s.position));
+        }
+        o.put("segments", segs);
+        return o;
+    }
+
+    /**
+     * Probes with a one-byte range request. A 206 gives the length and proves
+     * range support; a 200 means the server ignores ranges, and that response
+     * becomes the single stream.
+     */
+    private void start(int maxSegments, Listener listener) throws IOException {
+        HttpURLConnection conn = open("bytes=0-0", null);
+        try {
+            int code = conn.getResponseCode();
+            readValidators(conn, code == HttpURLConnection.HTTP_OK);
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                Matcher m = CONTENT_RANGE.matcher(nonNull(conn.getHeaderField("Content-Range")));
+                if (m.matches() && !"*".equals(m.group(3))) {
+                    ranges = true;
+                    total = Long.parseLong(m.group(3));
+                    split(maxSegments);
+                    createPartFile();
+                    save(true);
+                    return;
+                }
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code);
+            }
+            ranges = false;
+            singleStream(contentLength(conn));
+            Log.i(TAG, fileName + ": no range support, single stream");
+            fetchSingle(conn, listener);
+            Segment segment = segments.get(0);
+            if (segment.end < 0 && !halted()) {
+                // Unknown length: EOF is the end
+                total = segment.position;
+                segments.set(0, new Segment(0, total - 1, total));
+            }
+        } finally {
+            connections.remove(conn);
+            conn.disconnect();
+        }
+    }
+
+    /** Sets up one segment covering a body of {@code length} bytes (-1 if unknown), from zero. */
+    private void singleStream(long length) throws IOException {
+        total = length;
+        segments = new ArrayList<>();
+        segments.add(new Segment(0, length >= 0 ? length - 1 : -1, 0));
+        resetHash();
+        createPartFile();
+        save(true);
+    }
+
+    /**
+     * Copies the body of {@code conn} as the only segment. Without ranges a
+     * drop cannot be resumed, so each retry asks for the whole file again and
+     * starts over from zero, with the same retries and backoff as a segment.
+     */
+    private void fetchSingle(HttpURLConnection conn, Listener listener) throws IOException {
+        int failures = 0;
+        while (!halted()) {
+            Segment segment = segments.get(0);
+            long before = segment.position;
+            try {
+                if (conn == null) {
+                    conn = open(null, null);
+                    int code = conn.getResponseCode();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("HTTP " + code);
+                    }
+                    readValidators(conn, true);
+                    singleStream(contentLength(conn));
+                    segment = segments.get(0);
+                    before = 0;
+                }
+                copy(segment, conn.getInputStream(), listener);
+                return;
+            } catch (IOException e) {
+                if (halted()) {
+                    return;
+                }
+                // As with segments, a drop after some progress only counts once
+                failures = segment.position > before ? 1 : failures + 1;
+                if (failures > MAX_RETRIES) {
+                    throw e;
+                }
+                long delay = RETRY_BASE_MS << Math.min(failures - 1, 5);
+                Log.w(TAG, fileName + " stream failed at " + segment.position + " (" + e.getMessage()
+                    + "), restarting, retry " + failures + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    // Halt, so the partial body is not taken for a complete one of unknown length
+                    stop();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                if (conn != null) {
+                    connections.remove(conn);
+                    conn.disconnect();
+                    conn = null;
+                }
+            }
+        }
+    }
+
+    private void split(int maxSegments) {
+        int count = (int) Math.max(1, Math.min(maxSegments, total / MIN_SEGMENT_BYTES));
+        long size = total / count;
+        segments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? total - 1 : start + size - 1;
+            segments.add(new Segment(start, end, start));
+        }
+        Log.i(TAG, fileName + ": " + total + " bytes in " + count + " segment(s)");
+    }
+
+    private void createPartFile() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            raf.setLength(total > 0 ? total : 0);
+        }
+    }
+
+    private void reset() {
+        segments = new ArrayList<>();
+        ranges = false;
+        total = -1;
+        etag = null;
+        lastModified = null;
+        md5 = null;
+        partFile.delete();
+        resetHash();
+    }
+
+    private void resetHash() {
+        hashLock.lock();
+        try {
+            digest = null;
+            hashedUpTo = 0;
+        } finally {
+            hashLock.unlock();
+        }
+    }
+
+    private void fetchSegments(ExecutorService pool, Listener listener) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        if (!ranges) {
+            return;
+        }
+        for (Segment segment : segments) {
+            if (!segment.isDone()) {
+                futures.add(pool.submit(() -> {
+                    fetchSegment(segment, listener);
+                    return null;
+                }));
+            }
+        }
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (failure == null || cause instanceof ChangedException) {
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                // One segment failing for good stops the rest; state keeps their progress
+                abort();
+            } catch (InterruptedException e) {
+                stop();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void fetchSegment(Segment segment, Listener listener) throws IOException {
+        int failures = 0;
+        while (!halted() && !segment.isDone()) {
+            long before = segment.position;
+            try {
+                fetchRange(segment, listener);
+            } catch (ChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (halted()) {
+                    return;
+                }
+                // A drop after some progress is the weak link, not a dead server
+                failures = segment.position > before ? 1 : failures + 1;
+                if (failures > MAX_RETRIES) {
+                    throw e;
+                }
+                long delay = RETRY_BASE_MS << Math.min(failures - 1, 5);
+                Log.w(TAG, fileName + " segment @" + segment.start + " failed (" + e.getMessage()
+                    + "), retry " + failures + " in " + delay + " ms");
+                save(true);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    // Halt the rest too, so the run ends paused rather than half done
+                    stop();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void fetchRange(Segment segment, Listener listener) throws IOException {
+        String range = "bytes=" + segment.position + "-" + segment.end;
+        HttpURLConnection conn = open(range, ifRange());
+        try {
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                Matcher m = CONTENT_RANGE.matcher(nonNull(conn.getHeaderField("Content-Range")));
+                if (!m.matches() || Long.parseLong(m.group(1)) != segment.position) {
+                    throw new ChangedException("Unexpected Content-Range");
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // If-Range failed: the file on the server is not the one we started
+                throw new ChangedException("Server sent the whole file");
+            } else if (code == 416) {
+                throw new ChangedException("Range not satisfiable");
+            } else {
+                throw new IOException("HTTP " + code);
+            }
+            copy(segment, conn.getInputStream(), listener);
+        } finally {
+            connections.remove(conn);
+            conn.disconnect();
+        }
+    }
+
+    private void copy(Segment segment, InputStream in, Listener listener) throws IOException {
+        byte[] buf = new byte[BUFFER_BYTES];
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            raf.seek(segment.position);
+            while (!halted()) {
+                int want = buf.length;
+                if (segment.end >= 0) {
+                    long left = segment.end - segment.position + 1;
+                    if (left <= 0) break;
+                    want = (int) Math.min(want, left);
+                }
+                int n = in.read(buf, 0, want);
+                if (n < 0) {
+                    if (segment.end >= 0) {
+                        throw new IOException("Connection closed early");
+                    }
+                    break;
+                }
+                raf.write(buf, 0, n);
+                segment.position += n;
+                advanceHash(false);
+                listener.onProgress(this);
+                saveIfDue();
+            }
+        } finally {
+            in.close();
+        }
+        save(false);
+    }
+
+    private HttpURLConnection open(String range, String ifRange) throws IOException {
+        String target = url;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            if (halted()) {
+                throw new IOException("Stopped");
+            }
+            HttpURLConnection conn = (HttpURLConnection) new URL(target).openConnection();
+            connections.add(conn);
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            // Compression would make the byte ranges meaningless
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (userAgent != null) {
+                conn.setRequestProperty("User-Agent", userAgent);
+            }
+            // Per hop, so forum cookies never follow a redirect to another host
+            String cookie = CookieManager.getInstance().getCookie(target);
+            if (cookie != null) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            if (range != null) {
+                conn.setRequestProperty("Range", range);
+                if (ifRange != null) {
+                    conn.setRequestProperty("If-Range", ifRange);
+                }
+            }
+            int code = conn.getResponseCode();
+            if (code < 300 || code >= 400 || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return conn;
+            }
+            String location = conn.getHeaderField("Location");
+            connections.remove(conn);
+            conn.disconnect();
+            if (location == null) {
+                throw new IOException("HTTP " + code + " without Location");
+            }
+            // Signed asset URLs expire, so every request starts from the original URL
+            target = new URL(new URL(target), location).toString();
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    private String ifRange() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    private void readValidators(HttpURLConnection conn, boolean fullBody) {
+        etag = conn.getHeaderField("ETag");
+        lastModified = conn.getHeaderField("Last-Modified");
+        String b64 = conn.getHeaderField("x-ms-blob-content-md5");
+        if (b64 == null) {
+            Matcher m = GOOG_MD5.matcher(nonNull(conn.getHeaderField("x-goog-hash")));
+            if (m.find()) {
+                b64 = m.group(1);
+            }
+        }
+        if (b64 == null && fullBody) {
+            // On a 206, Content-MD5 would describe just the range
+            b64 = conn.getHeaderField("Content-MD5");
+        }
+        md5 = null;
+        if (b64 != null) {
+            try {
+                md5 = hex(Base64.decode(b64.trim(), Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring malformed MD5 header: " + b64);
+            }
+        }
+    }
+
+    /**
+     * Feeds newly contiguous bytes to the digest. Segment threads call this
+     * after every write and skip it if another thread is already hashing.
+     */
+    private void advanceHash(boolean wait) throws IOException {
+        if (md5 == null) {
+            return;
+        }
+        if (wait) {
+            hashLock.lock();
+        } else if (!hashLock.tryLock()) {
+            return;
+        }
+        try {
+            long contiguous = 0;
+            for (Segment s : segments) {
+                if (s.start > contiguous) break;
+                contiguous = s.position;
+                if (!s.isDone()) break;
+            }
+            if (contiguous <= hashedUpTo) {
+                return;
+            }
+            if (digest == null) {
+                digest = MessageDigest.getInstance("MD5");
+                hashedUpTo = 0;
+            }
+            byte[] buf = new byte[BUFFER_BYTES];
+            try (RandomAccessFile raf = new RandomAccessFile(partFile, "r")) {
+                raf.seek(hashedUpTo);
+                while (hashedUpTo < contiguous) {
+                    int n = raf.read(buf, 0, (int) Math.min(buf.length, contiguous - hashedUpTo));
+                    if (n < 0) throw new IOException("Partial file truncated");
+                    digest.update(buf, 0, n);
+                    hashedUpTo += n;
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            hashLock.unlock();
+        }
+    }
+
+    private void verify() throws IOException {
+        if (partFile.length() != total) {
+            throw new IOException("Size mismatch: " + partFile.length() + " != " + total);
+        }
+        if (md5 == null) {
+            return;
+        }
+        advanceHash(true);
+        String actual = hex(digest.digest());
+        if (!actual.equalsIgnoreCase(md5)) {
+            // Corrupt beyond repair; do not let a resume build on it
+            reset();
+            throw new IOException("Checksum mismatch");
+        }
+        Log.i(TAG, fileName + ": MD5 verified");
+    }
+
+    private void saveIfDue() {
+        long now = System.currentTimeMillis();
+        synchronized (saveLock) {
+            if (now - lastSaveAt < SAVE_INTERVAL_MS) {
+                return;
+            }
+            lastSaveAt = now;
+        }
+        save(false);
+    }
+
+    /**
+     * Writes the state file. Positions must never run ahead of data that is
+     * actually on disk, so they are read first and the part file is synced
+     * after: every byte they count was written, by whichever segment, before
+     * the sync started.
+     */
+    void save(boolean force) {
+        synchronized (saveLock) {
+            if (force) {
+                lastSaveAt = System.currentTimeMillis();
+            }
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            try {
+                byte[] state = toJson().toString().getBytes("UTF-8");
+                syncPartFile();
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(state);
+                    out.getFD().sync();
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Could not save state for " + fileName + ": " + e.getMessage());
+                tmp.delete();
+                return;
+            }
+            if (!tmp.renameTo(stateFile)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /** Flushes every segment's writes; fsync covers the file, not just one handle. */
+    private void syncPartFile() throws IOException {
+        if (!partFile.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "r")) {
+            raf.getFD().sync();
+        }
+    }
+
+    private static long contentLength(HttpURLConnection conn) {
+        try {
+            return Long.parseLong(nonNull(conn.getHeaderField("Content-Length")).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,85 @@
+package com.android.cts.jtech;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps host names to values by domain suffix, using a trie keyed on labels
+ * from right to left ("org" -> "jtechforums" -> "forums").
+ *
+ * A domain added to the matcher also matches all of its subdomains, and the
+ * most specific entry wins, so "cdn.example.com" can override "example.com".
+ * A lookup walks at most one node per label of the host, however many
+ * domains the matcher holds.
+ */
+public final class HostMatcher<T> {
+
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>(4);
+        T value;
+    }
+
+    public static final class Builder<T> {
+        private final Node<T> root = new Node<>();
+
+        /** Adds {@code domain} and its subdomains; a later add of the same domain replaces the value. */
+        public Builder<T> add(String domain, T value) {
+            String host = normalize(domain);
+            Node<T> node = root;
+            int end = host.length();
+            while (end > 0) {
+                int dot = host.lastIndexOf('.', end - 1);
+                String label = host.substring(dot + 1, end);
+                Node<T> child = node.children.get(label);
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(label, child);
+                }
+                node = child;
+                end = dot;
+            }
+            node.value = value;
+            return this;
+        }
+
+        public HostMatcher<T> build() {
+            return new HostMatcher<>(root);
+        }
+    }
+
+    private final Node<T> root;
+
+    private HostMatcher(Node<T> root) {
+        this.root = root;
+    }
+
+    /** Value of the most specific domain covering {@code host}, or null. */
+    public T match(String host) {
+        if (host == null || host.isEmpty()) {
+            return null;
+        }
+        host = normalize(host);
+        Node<T> node = root;
+        T best = null;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                best = node.value;
+            }
+            end = dot;
+        }
+        return best;
+    }
+
+    private static String normalize(String host) {
+        host = host.toLowerCase(Locale.ROOT);
+        // A fully qualified "example.com." is the same host
+        return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+    }
+}
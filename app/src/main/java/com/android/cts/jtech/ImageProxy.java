@@ -0,0 +1,525 @@
+package com.android.cts.jtech;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves forum images (avatars, uploads, emoji) downscaled to the screen width
+ * and re-encoded as WebP, so the WebView renderer never has to fetch or decode
+ * a full-resolution original on a 240 px wide screen.
+ *
+ * Runs synchronously on WebView's IO threads. At most {@link #MAX_TRANSCODES}
+ * images are decoded at once. Every request reserves its estimated memory from
+ * a budget sized from the memory class: the compressed bytes before it reads
+ * them (from Content-Length, or as they arrive), the bitmaps before it decodes.
+ * When the budget is exhausted the request falls through and the WebView loads
+ * the original. Results are kept in a disk LRU under cache/, for no longer
+ * than the origin allows; images the origin marks no-store or private are
+ * served but never stored.
+ */
+public class ImageProxy {
+    private static final String TAG = "ImageProxy";
+    private static final String DIR_NAME = "image_cache";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x4A494D32;
+    private static final long MAX_BYTES = 16L * 1024 * 1024;
+    private static final int MAX_SOURCE_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_TRANSCODES = 2;
+    // Time a request may wait for decode memory before falling through
+    private static final long BUDGET_WAIT_MS = 2000;
+    // Step in which a source of unknown length grows its reservation
+    private static final int READ_RESERVE_STEP = 64 * 1024;
+    // Images already this small and narrow enough are stored untouched
+    private static final int PASSTHROUGH_BYTES = 16 * 1024;
+    private static final int WEBP_QUALITY = 75;
+    private static final int TIMEOUT_MS = 30000;
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "png", "jpg", "jpeg", "webp"));
+    private static final Set<String> SKIP_REQUEST_HEADERS = new HashSet<>(Arrays.asList(
+        "accept-encoding", "range", "if-none-match", "if-modified-since", "cookie"));
+
+    private static ImageProxy instance;
+
+    public static synchronized ImageProxy get(Context context) {
+        if (instance == null) {
+            instance = new ImageProxy(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final File dir;
+    private final int targetWidth;
+    // Decode memory budget in KB, one permit per KB
+    private final int budgetKb;
+    private final Semaphore memory;
+    private final Semaphore transcodeSlots = new Semaphore(MAX_TRANSCODES, true);
+    // key -> file size, in access order (eldest first)
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private boolean loaded;
+
+    public final AtomicLong requests = new AtomicLong();
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong transcoded = new AtomicLong();
+    public final AtomicLong passthrough = new AtomicLong();
+    public final AtomicLong overBudget = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    public final AtomicLong bytesOriginal = new AtomicLong();
+    public final AtomicLong bytesServed = new AtomicLong();
+
+    private ImageProxy(Context context) {
+        dir = new File(context.getCacheDir(), DIR_NAME);
+        dir.mkdirs();
+        targetWidth = context.getResources().getDisplayMetrics().widthPixels;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        // An eighth of the heap class, so image work never crowds out the app itself
+        budgetKb = Math.max(4 * 1024, Math.min(24 * 1024, am.getMemoryClass() * 1024 / 8));
+        memory = new Semaphore(budgetKb, true);
+    }
+
+    /** Stored image header; the encoded body follows it in the same file. */
+    private static class Meta {
+        String url;
+        String mimeType;
+        long originalBytes;
+        long expiresAt;
+    }
+
+    /** Decode memory held by one request, in KB permits of {@link #memory}. */
+    private final class Reservation {
+        private int kb;
+
+        /** Grows the reservation to cover {@code bytes}; false if the budget would not allow it in time. */
+        boolean cover(long bytes) throws InterruptedException {
+            int need = (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024) - kb;
+            if (need <= 0) {
+                return true;
+            }
+            if (kb + need > budgetKb || !memory.tryAcquire(need, BUDGET_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            kb += need;
+            return true;
+        }
+
+        void release() {
+            if (kb > 0) {
+                memory.release(kb);
+                kb = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns a downscaled image for a forum image request, or null to let
+     * the next handler (or the WebView) load it.
+     */
+    public WebResourceResponse intercept(WebResourceRequest request) {
+        if (!isProxyable(request)) {
+            return null;
+        }
+        requests.incrementAndGet();
+        ensureLoaded();
+        String url = request.getUrl().toString();
+        String key = AssetCache.keyFor(url + "@" + targetWidth);
+
+        WebResourceResponse cached = open(key, url);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        try {
+            return fetchAndTranscode(key, url, request.getRequestHeaders());
+        } catch (IOException | RuntimeException e) {
+            errors.incrementAndGet();
+            Log.w(TAG, "Could not proxy " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String toJson() {
+        long original = bytesOriginal.get();
+        long served = bytesServed.get();
+        int entries;
+        long bytes;
+        synchronized (this) {
+            entries = lru.size();
+            bytes = totalBytes;
+        }
+        return "{\"targetWidth\":" + targetWidth
+            + ",\"budgetKb\":" + budgetKb
+            + ",\"budgetFreeKb\":" + memory.availablePermits()
+            + ",\"entries\":" + entries
+            + ",\"bytes\":" + bytes
+            + ",\"requests\":" + requests.get()
+            + ",\"hits\":" + hits.get()
+            + ",\"transcoded\":" + transcoded.get()
+            + ",\"passthrough\":" + passthrough.get()
+            + ",\"overBudget\":" + overBudget.get()
+            + ",\"errors\":" + errors.get()
+            + ",\"bytesOriginal\":" + original
+            + ",\"bytesServed\":" + served
+            + ",\"bytesSaved\":" + Math.max(0, original - served)
+            + "}";
+    }
+
+    static boolean isProxyable(WebResourceRequest request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod()) || request.isForMainFrame()) {
+            return false;
+        }
+        for (String name : request.getRequestHeaders().keySet()) {
+            if ("range".equalsIgnoreCase(name)) {
+                return false;
+            }
+        }
+        Uri url = request.getUrl();
+        if (!AssetCache.isCacheableUrl(url)) {
+            return false;
+        }
+        // Animated GIFs and SVGs are left alone
+        String path = url.getPath();
+        return IMAGE_EXTENSIONS.contains(path.substring(path.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private WebResourceResponse fetchAndTranscode(String key, String url, Map<String, String> requestHeaders)
+            throws IOException {
+        Reservation reservation = new Reservation();
+        try {
+            return fetchAndTranscode(key, url, requestHeaders, reservation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            reservation.release();
+        }
+    }
+
+    private WebResourceResponse fetchAndTranscode(String key, String url, Map<String, String> requestHeaders,
+            Reservation reservation) throws IOException, InterruptedException {
+        byte[] source;
+        String sourceType;
+        long now = System.currentTimeMillis();
+        long expiresAt;
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            for (Map.Entry<String, String> h : requestHeaders.entrySet()) {
+                if (!SKIP_REQUEST_HEADERS.contains(h.getKey().toLowerCase(Locale.ROOT))) {
+                    conn.setRequestProperty(h.getKey(), h.getValue());
+                }
+            }
+            String cookie = CookieManager.getInstance().getCookie(url);
+            if (cookie != null) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            sourceType = conn.getContentType();
+            if (sourceType == null || !sourceType.startsWith("image/") || sourceType.startsWith("image/gif")
+                    || sourceType.startsWith("image/svg")) {
+                return null;
+            }
+            int length = conn.getContentLength();
+            if (length > MAX_SOURCE_BYTES) {
+                return null;
+            }
+            expiresAt = storableUntil(conn, now);
+            // The compressed bytes count against the budget before they are read
+            if (length > 0 && !reservation.cover(length)) {
+                overBudget.incrementAndGet();
+                return null;
+            }
+            source = readFully(conn.getInputStream(), length, reservation);
+            if (source == null) {
+                return null;
+            }
+        } finally {
+            conn.disconnect();
+        }
+        int semi = sourceType.indexOf(';');
+        if (semi >= 0) {
+            sourceType = sourceType.substring(0, semi).trim();
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(source, 0, source.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            // Not something we can decode; let the WebView try
+            return null;
+        }
+        bytesOriginal.addAndGet(source.length);
+
+        byte[] body = source;
+        String mimeType = sourceType;
+        if (bounds.outWidth > targetWidth || source.length > PASSTHROUGH_BYTES) {
+            byte[] encoded = transcode(source, bounds, sourceType, reservation);
+            if (encoded == null) {
+                // Over budget: hand the original over rather than make the page wait
+                bytesServed.addAndGet(source.length);
+                return response(sourceType, expiresAt, now, new ByteArrayInputStream(source));
+            }
+            if (encoded.length < source.length) {
+                body = encoded;
+                mimeType = "image/webp";
+                transcoded.incrementAndGet();
+            } else {
+                passthrough.incrementAndGet();
+            }
+        } else {
+            passthrough.incrementAndGet();
+        }
+
+        if (expiresAt > now) {
+            Meta meta = new Meta();
+            meta.url = url;
+            meta.mimeType = mimeType;
+            meta.originalBytes = source.length;
+            meta.expiresAt = expiresAt;
+            store(key, meta, body);
+        }
+        bytesServed.addAndGet(body.length);
+        return response(mimeType, expiresAt, now, new ByteArrayInputStream(body));
+    }
+
+    /**
+     * Until when a response may be kept, capped at {@link #MAX_AGE_MS}; at or
+     * before {@code now} if it must not be stored at all. Same rules as
+     * {@link AssetCache}, "private" included.
+     */
+    private static long storableUntil(HttpURLConnection conn, long now) {
+        long expiresAt = AssetCache.expiresAt(conn, now);
+        return expiresAt < 0 ? now : Math.min(expiresAt, now + MAX_AGE_MS);
+    }
+
+    /** Decodes, scales and re-encodes within the memory budget; null if it could not get the memory. */
+    private byte[] transcode(byte[] source, BitmapFactory.Options bounds, String sourceType,
+            Reservation reservation) throws InterruptedException {
+        int sample = 1;
+        while (bounds.outWidth / (sample * 2) >= targetWidth) {
+            sample *= 2;
+        }
+        boolean opaque = "image/jpeg".equals(sourceType);
+        int bpp = opaque ? 2 : 4;
+        long sampledW = (bounds.outWidth + sample - 1) / sample;
+        long sampledH = (bounds.outHeight + sample - 1) / sample;
+        long outW = Math.min(sampledW, targetWidth);
+        long outH = Math.max(1, sampledH * outW / sampledW);
+        // Compressed source (already held), sampled bitmap, scaled bitmap and the encoder's output
+        long costBytes = source.length + sampledW * sampledH * bpp + outW * outH * bpp + outW * outH;
+        if (costBytes > budgetKb * 1024L) {
+            overBudget.incrementAndGet();
+            return null;
+        }
+
+        boolean haveSlot = false;
+        try {
+            haveSlot = transcodeSlots.tryAcquire(BUDGET_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (!haveSlot || !reservation.cover(costBytes)) {
+                overBudget.incrementAndGet();
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sample;
+            if (opaque) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            Bitmap sampled = BitmapFactory.decodeByteArray(source, 0, source.length, options);
+            if (sampled == null) {
+                return null;
+            }
+            Bitmap scaled = sampled;
+            if (sampled.getWidth() > targetWidth) {
+                scaled = Bitmap.createScaledBitmap(sampled, (int) outW, (int) outH, true);
+                sampled.recycle();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(outW * outH, source.length));
+            scaled.compress(webpFormat(), WEBP_QUALITY, out);
+            scaled.recycle();
+            return out.toByteArray();
+        } finally {
+            if (haveSlot) transcodeSlots.release();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+            ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    /** Entries expire at the time stored with them, so hits do not touch the file. */
+    private WebResourceResponse open(String key, String url) {
+        synchronized (this) {
+            if (lru.get(key) == null) return null;
+        }
+        File file = new File(dir, key);
+        long now = System.currentTimeMillis();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != MAGIC) throw new IOException("bad magic");
+            Meta meta = new Meta();
+            meta.url = data.readUTF();
+            meta.mimeType = data.readUTF();
+            meta.originalBytes = data.readLong();
+            meta.expiresAt = data.readLong();
+            if (!url.equals(meta.url)) throw new IOException("key collision");
+            if (now >= meta.expiresAt) throw new IOException("expired");
+            long bodyBytes = file.length() - headerSize(meta);
+            bytesOriginal.addAndGet(meta.originalBytes);
+            bytesServed.addAndGet(bodyBytes);
+            return response(meta.mimeType, meta.expiresAt, now, in);
+        } catch (IOException e) {
+            if (in != null) {
+                try { in.close(); } catch (Exception ignored) {}
+            }
+            remove(key);
+            return null;
+        }
+    }
+
+    private void store(String key, Meta meta, byte[] body) {
+        File tmp = new File(dir, key + TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(meta.url);
+            out.writeUTF(meta.mimeType);
+            out.writeLong(meta.originalBytes);
+            out.writeLong(meta.expiresAt);
+            out.write(body);
+        } catch (IOException e) {
+            tmp.delete();
+            Log.w(TAG, "Could not store " + meta.url + ": " + e.getMessage());
+            return;
+        }
+        File file = new File(dir, key);
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            Long old = lru.put(key, file.length());
+            totalBytes += file.length() - (old != null ? old : 0);
+            trimLocked();
+        }
+    }
+
+    private static long headerSize(Meta meta) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeUTF(meta.url);
+        out.writeUTF(meta.mimeType);
+        return 4 + buf.size() + 8 + 8;
+    }
+
+    private synchronized void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX)) {
+                f.delete();
+                continue;
+            }
+            lru.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+        trimLocked();
+    }
+
+    private synchronized void remove(String key) {
+        Long size = lru.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, key).delete();
+    }
+
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (totalBytes > MAX_BYTES && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /**
+     * The WebView may keep the image for as long as we would, and no longer.
+     * No CORS header: these can be the user's private uploads, and the forum's
+     * own pages load them same-origin anyway.
+     */
+    private static WebResourceResponse response(String mimeType, long expiresAt, long now, InputStream body) {
+        String cacheControl = expiresAt > now ? "max-age=" + (expiresAt - now) / 1000 : "no-store";
+        return new WebResourceResponse(mimeType, null, 200, "OK",
+            Collections.singletonMap("Cache-Control", cacheControl), body);
+    }
+
+    /**
+     * Reads the source, {@code length} bytes if known, growing
+     * {@code reservation} as bytes of unknown length arrive. Returns null if
+     * it is too large or the budget ran out.
+     */
+    private byte[] readFully(InputStream in, int length, Reservation reservation)
+            throws IOException, InterruptedException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 16 * 1024);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                int size = out.size() + n;
+                if (size > MAX_SOURCE_BYTES) {
+                    return null;
+                }
+                if (size > length && !reservation.cover((size + READ_RESERVE_STEP - 1)
+                        / READ_RESERVE_STEP * (long) READ_RESERVE_STEP)) {
+                    overBudget.incrementAndGet();
+                    return null;
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
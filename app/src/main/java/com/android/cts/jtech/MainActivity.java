@@ -3,15 +3,14 @@ package com.android.cts.jtech;
 import android.Manifest;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.DownloadManager;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
-import android.webkit.CookieManager;
+import android.os.SystemClock;
+import android.util.Log;
 import android.webkit.URLUtil;
 import android.widget.Toast;
 import android.util.TypedValue;
@@ -21,8 +20,11 @@ import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.webkit.JavascriptInterface;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -30,21 +32,41 @@ import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 
-import java.util.Arrays;
-import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+
 import java.util.UUID;
 
 public class MainActivity extends Activity {
 
-    private static final String PREFS_NAME = "JtechPrefs";
-    private static final String PREF_SCREEN_SIZE = "screen_size";
-    private static final String PREF_FIRST_LAUNCH = "first_launch";
     private static final String BASE_URL = "https://forums.jtechforums.org/dumb";
     private static final int NOTIFICATION_PERMISSION_CODE = 1001;
     private static final int FILE_CHOOSER_CODE = 1002;
     private static final int STORAGE_PERMISSION_CODE = 1003;
 
+    private static final String TAG = "MainActivity";
+    private static final long RENDERER_DEATH_WINDOW_MS = 60 * 1000;
+    private static final int MAX_QUICK_RENDERER_DEATHS = 2;
+
+    // The current tab's WebView and bridge
     private WebView webView;
+    private FrameLayout webContainer;
+    // Set on the main thread in setupUI; read from the JavaBridge thread by getTabs()
+    private volatile WebViewPool pool;
+    // What the first tab resumes from after a recreate or process death
+    private final WebViewSession savedSession = new WebViewSession();
+    private int rendererCrashes;
+    private int rendererKills;
+    private int sessionRestores;
+    private int quickRendererDeaths;
+    private long lastRendererDeathAt;
+    private int lastTrimLevel;
+    private boolean timersPaused;
+    private AssetCache assetCache;
+    private PagePrefetcher pagePrefetcher;
+    private ImageProxy imageProxy;
+    private RequestPolicy requestPolicy;
+    private BridgeChannel bridgeChannel;
     private ValueCallback<Uri[]> fileChooserCallback;
     private boolean useFullscreen = true; // Default to fullscreen
     private String pendingDownloadUrl;
@@ -53,32 +75,50 @@ public class MainActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        // Check preference and set theme BEFORE super.onCreate()
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        boolean isFirstLaunch = prefs.getBoolean(PREF_FIRST_LAUNCH, true);
-
-        if (!isFirstLaunch) {
-            // Load saved preference and set theme
-            String screenSize = prefs.getString(PREF_SCREEN_SIZE, "small");
-            useFullscreen = screenSize.equals("small");
+        StartupTrace.mark("activity_create");
+        // Settings load, WebView provider load and DNS/TLS to the forum all start
+        // in the background while the activity sets up
+        Config config = Config.get(this);
+        Prewarmer.start(this, BASE_URL);
+
+        // The theme has to be set before super.onCreate(), but waiting for the
+        // settings file here would put disk I/O on the main thread. Use them if
+        // they are already in memory; otherwise start with the normal theme,
+        // which can still be switched to fullscreen in place once they load.
+        Config.Snapshot settings = config.peek();
+        if (settings != null && !settings.firstLaunch) {
+            useFullscreen = settings.screenSize.equals("small");
             setTheme(useFullscreen ? R.style.AppTheme : R.style.AppTheme_Normal);
         } else {
-            // First launch - use normal theme for dialog
+            // First launch (the dialog wants the normal theme) or not loaded yet
+            useFullscreen = false;
             setTheme(R.style.AppTheme_Normal);
         }
 
         super.onCreate(savedInstanceState);
+        // Back stack and scroll position from before a recreate or process death
+        savedSession.readFrom(savedInstanceState);
 
         // Request notification permission (Android 13+)
         requestNotificationPermission();
 
-        if (isFirstLaunch) {
-            // First launch - show screen size selection dialog
-            showScreenSizeDialog(prefs);
-        } else {
-            // Not first launch - setup UI normally
-            setupUI();
-        }
+        config.whenLoaded(() -> {
+            if (isDestroyed()) {
+                return;
+            }
+            StartupTrace.mark("config_loaded");
+            Config.Snapshot loaded = config.snapshot();
+            if (loaded.firstLaunch) {
+                // First launch - show screen size selection dialog
+                showScreenSizeDialog(config);
+            } else {
+                // Not first launch - setup UI normally
+                if (!useFullscreen && loaded.screenSize.equals("small")) {
+                    enterFullscreen();
+                }
+                setupUI();
+            }
+        });
     }
 
     private void requestNotificationPermission() {
@@ -109,7 +149,7 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void showScreenSizeDialog(SharedPreferences prefs) {
+    private void showScreenSizeDialog(Config config) {
         // Create custom layout with buttons
         LinearLayout layout = new LinearLayout(this);
         layout.setOrientation(LinearLayout.VERTICAL);
@@ -135,14 +175,6 @@ public class MainActivity extends Activity {
         LinearLayout.LayoutParams smallButtonParams = new LinearLayout.LayoutParams(widthPx, heightPx);
         smallButtonParams.setMargins(0, 0, 0, 15);
         smallButton.setLayoutParams(smallButtonParams);
-        smallButton.setOnClickListener(v -> {
-            prefs.edit()
-                .putString(PREF_SCREEN_SIZE, "small")
-                .putBoolean(PREF_FIRST_LAUNCH, false)
-                .apply();
-            recreate();
-        });
-
         // Normal Screen button
         Button normalButton = new Button(this);
         normalButton.setText("Normal Screen (has notch)");
@@ -153,14 +185,6 @@ public class MainActivity extends Activity {
         normalButton.setBackgroundResource(R.drawable.button_selector);
         LinearLayout.LayoutParams normalButtonParams = new LinearLayout.LayoutParams(widthPx, heightPx);
         normalButton.setLayoutParams(normalButtonParams);
-        normalButton.setOnClickListener(v -> {
-            prefs.edit()
-                .putString(PREF_SCREEN_SIZE, "normal")
-                .putBoolean(PREF_FIRST_LAUNCH, false)
-                .apply();
-            recreate();
-        });
-
         layout.addView(smallButton);
         layout.addView(normalButton);
 
@@ -169,6 +193,8 @@ public class MainActivity extends Activity {
             .setView(layout)
             .setCancelable(false)
             .create();
+        smallButton.setOnClickListener(v -> onScreenSizeChosen(config, dialog, "small"));
+        normalButton.setOnClickListener(v -> onScreenSizeChosen(config, dialog, "normal"));
 
         dialog.show();
 
@@ -177,7 +203,39 @@ public class MainActivity extends Activity {
         smallButton.requestFocusFromTouch();
     }
 
+    /**
+     * Applies the first-launch choice in place. The dialog runs under the normal
+     * theme, so "normal" needs nothing more and "small" only has to drop the
+     * action bar and go fullscreen; no recreate() and second WebView start.
+     */
+    private void onScreenSizeChosen(Config config, AlertDialog dialog, String screenSize) {
+        config.edit()
+            .putString(Config.KEY_SCREEN_SIZE, screenSize)
+            .putBoolean(Config.KEY_FIRST_LAUNCH, false)
+            .apply();
+        dialog.dismiss();
+
+        if (screenSize.equals("small")) {
+            enterFullscreen();
+        }
+        setupUI();
+    }
+
+    /** Switches a window started under the normal theme to fullscreen, without a recreate. */
+    private void enterFullscreen() {
+        useFullscreen = true;
+        if (getActionBar() != null) {
+            getActionBar().hide();
+        }
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
+    }
+
     private void setupUI() {
+        webContainer = new FrameLayout(this);
+        webContainer.setLayoutParams(new FrameLayout.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.MATCH_PARENT
+        ));
         if (!useFullscreen) {
             // Normal mode with action bar
             // Clear any fullscreen flags
@@ -189,68 +247,143 @@ public class MainActivity extends Activity {
                 getActionBar().setDisplayShowHomeEnabled(false);
             }
 
-            // Create container with fitsSystemWindows to position below action bar
-            FrameLayout container = new FrameLayout(this);
-            container.setFitsSystemWindows(true);
-            container.setLayoutParams(new FrameLayout.LayoutParams(
-                ViewGroup.LayoutParams.MATCH_PARENT,
-                ViewGroup.LayoutParams.MATCH_PARENT
-            ));
+            // fitsSystemWindows positions the WebView below the action bar
+            webContainer.setFitsSystemWindows(true);
+        }
+        setContentView(webContainer);
 
-            webView = new WebView(this);
-            webView.setLayoutParams(new FrameLayout.LayoutParams(
-                ViewGroup.LayoutParams.MATCH_PARENT,
-                ViewGroup.LayoutParams.MATCH_PARENT
-            ));
+        assetCache = AssetCache.get(this);
+        pagePrefetcher = PagePrefetcher.get(this);
+        imageProxy = ImageProxy.get(this);
+        requestPolicy = RequestPolicy.get();
 
-            container.addView(webView);
-            setContentView(container);
-        } else {
-            // Fullscreen mode
-            webView = new WebView(this);
-            setContentView(webView);
+        pool = new WebViewPool(this, webContainer, new WebViewPool.Host() {
+            @Override
+            public WebView createWebView(WebViewPool.Tab tab) {
+                return MainActivity.this.createWebView(tab);
+            }
+
+            @Override
+            public void onTabShown(WebViewPool.Tab tab) {
+                webView = tab.view;
+                bridgeChannel = tab.channel;
+            }
+        }, Config.get(this).snapshot().webViewPoolBudget);
+        WebViewPool.Tab tab = pool.add(null, savedSession);
+        if (useFullscreen) {
             hideSystemUI();
         }
 
+        // A recreated activity continues where it was; otherwise open the
+        // notification's page, or the forum
+        StartupTrace.mark("load_requested");
+        if (!tab.session.restore(webView)) {
+            String openUrl = getIntent().getStringExtra("open_url");
+            if (openUrl != null && !openUrl.isEmpty()) {
+                webView.loadUrl(openUrl);
+            } else {
+                webView.loadUrl(BASE_URL);
+            }
+        }
+
+        // Start notification service if already configured
+        startPushServiceIfConfigured();
+        DownloadService.resumePending(this);
+    }
+
+    /** Builds a tab's WebView with its settings, bridge and clients; the pool attaches it. */
+    private WebView createWebView(WebViewPool.Tab tab) {
+        WebView webView = new WebView(this);
+        StartupTrace.mark("webview_created");
+
         WebSettings settings = webView.getSettings();
         settings.setJavaScriptEnabled(true);
         settings.setDomStorageEnabled(true);
 
         // Add JavaScript interface for push notifications
-        webView.addJavascriptInterface(new PushInterface(), "PushBridge");
+        BridgeChannel bridgeChannel = new BridgeChannel(this, webView);
+        tab.channel = bridgeChannel;
+        webView.addJavascriptInterface(new PushInterface(bridgeChannel), "PushBridge");
+        tab.session.track(webView);
 
         webView.setWebViewClient(new WebViewClient() {
-            private final List<String> allowedDomains = Arrays.asList(
-                "jtechforums.org",
-                "forums.jtechforums.org",
-                "drive.usercontent.google.com",
-                "drive.google.com",
-                "dropbox.com",
-                "github.com",
-                "release-assets.githubusercontent.com"
-            );
-
-            private boolean isAllowed(String url) {
-                String host = Uri.parse(url).getHost();
-                if (host == null) return false;
-                host = host.toLowerCase();
-                for (String domain : allowedDomains) {
-                    if (host.equals(domain) || host.equals("www." + domain)
-                            || host.endsWith("." + domain)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
+            // Whether this tab's top-level page has its subresources policed. Set by
+            // the main-frame request, and again as the page commits, which also covers
+            // pages shown without a request (back/forward cache); read on the IO threads.
+            private volatile boolean policing = true;
 
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
-                if (isAllowed(url)) {
+                if (requestPolicy.allowsNavigation(Uri.parse(url))) {
                     return false;
                 }
                 Toast.makeText(MainActivity.this, "Not allowed", Toast.LENGTH_SHORT).show();
                 return true;
             }
+
+            @Override
+            public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+                policing = requestPolicy.policesSubresourcesOf(Uri.parse(url));
+            }
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                policing = requestPolicy.policesSubresourcesOf(Uri.parse(url));
+                StartupTrace.mark("page_started");
+                bridgeChannel.inject();
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                // Again in case the new document replaced the early injection
+                bridgeChannel.inject();
+                StartupTrace.mark("page_finished");
+                StartupTrace.finish(MainActivity.this);
+                tab.url = url;
+                tab.session.onPageFinished(view, url);
+                // Kept current so a dead renderer can be replaced without losing history
+                tab.session.capture(view);
+            }
+
+            @Override
+            public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+                Log.w(TAG, "Renderer " + (detail.didCrash() ? "crashed" : "killed to free memory")
+                    + " in tab " + tab.id);
+                if (detail.didCrash()) {
+                    rendererCrashes++;
+                } else {
+                    rendererKills++;
+                }
+                if (pool.owner(view) != tab) {
+                    // A WebView already replaced or evicted
+                    view.destroy();
+                } else if (tab != pool.current()) {
+                    // Rebuilt from its last capture when it is next shown
+                    pool.evict(tab, false);
+                } else {
+                    recoverWebView(tab);
+                }
+                return true;
+            }
+
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                // Requests the policy refuses get an empty 403; a page prefetched
+                // for a notification is served once; forum images are downscaled
+                // for the screen; other static assets come from our own disk
+                // cache; everything else loads normally
+                WebResourceResponse response = requestPolicy.intercept(request, policing);
+                if (response == null && request.isForMainFrame()) {
+                    policing = requestPolicy.policesSubresourcesOf(request.getUrl());
+                }
+                if (response == null) {
+                    response = pagePrefetcher.take(request);
+                }
+                if (response == null) {
+                    response = imageProxy.intercept(request);
+                }
+                return response != null ? response : assetCache.intercept(request);
+            }
         });
         webView.setWebChromeClient(new WebChromeClient() {
             @Override
@@ -277,17 +410,33 @@ public class MainActivity extends Activity {
             }
             startDownload(url, contentDisposition, mimetype);
         });
+        return webView;
+    }
+
+    /**
+     * Replaces a WebView whose renderer is gone with a new one showing the
+     * last captured session. If renderers keep dying the page itself is the
+     * likely cause, so the reader is taken back to the forum instead.
+     */
+    private void recoverWebView(WebViewPool.Tab tab) {
+        long now = SystemClock.elapsedRealtime();
+        quickRendererDeaths = now - lastRendererDeathAt < RENDERER_DEATH_WINDOW_MS ? quickRendererDeaths + 1 : 1;
+        lastRendererDeathAt = now;
+
+        pool.recreate(tab);
+        if (useFullscreen) {
+            hideSystemUI();
+        }
 
-        // Check if opened from notification
-        String openUrl = getIntent().getStringExtra("open_url");
-        if (openUrl != null && !openUrl.isEmpty()) {
-            webView.loadUrl(openUrl);
+        if (quickRendererDeaths > MAX_QUICK_RENDERER_DEATHS) {
+            Log.w(TAG, quickRendererDeaths + " renderer deaths in a row, reloading the forum");
+            tab.session.forgetHistory();
+            webView.loadUrl(BASE_URL);
+        } else if (tab.session.restore(webView)) {
+            sessionRestores++;
         } else {
             webView.loadUrl(BASE_URL);
         }
-
-        // Start notification service if already configured
-        startPushServiceIfConfigured();
     }
 
     @Override
@@ -308,23 +457,28 @@ public class MainActivity extends Activity {
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
         String openUrl = intent.getStringExtra("open_url");
-        if (openUrl != null && !openUrl.isEmpty() && webView != null) {
-            webView.loadUrl(openUrl);
+        if (openUrl != null && !openUrl.isEmpty() && pool != null) {
+            openInTab(openUrl);
         }
     }
 
-    private void startPushServiceIfConfigured() {
-        String topic = PushService.getTopic(this);
-        if (topic != null && !topic.isEmpty()) {
-            Intent serviceIntent = new Intent(this, PushService.class);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                startForegroundService(serviceIntent);
-            } else {
-                startService(serviceIntent);
-            }
+    /**
+     * Shows {@code url} without giving up the current page: switches to a tab
+     * already on it, or opens a new tab that back returns from.
+     */
+    private void openInTab(String url) {
+        WebViewPool.Tab tab = pool.find(url);
+        if (tab != null) {
+            pool.show(tab);
+        } else {
+            pool.add(pool.current(), new WebViewSession()).view.loadUrl(url);
         }
     }
 
+    private void startPushServiceIfConfigured() {
+        PushService.start(this);
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         super.onWindowFocusChanged(hasFocus);
@@ -337,17 +491,8 @@ public class MainActivity extends Activity {
         // Pass null mimetype so guessFileName preserves the original extension
         // instead of remapping it (e.g. .apk -> .bin) based on MIME type
         String fileName = URLUtil.guessFileName(url, contentDisposition, null);
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(url));
-        request.setMimeType(mimetype);
-        String cookie = CookieManager.getInstance().getCookie(url);
-        if (cookie != null) {
-            request.addRequestHeader("Cookie", cookie);
-        }
-        request.setTitle(fileName);
-        request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-        request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, fileName);
-        DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-        dm.enqueue(request);
+        // Our own engine: parallel ranges, resumes after drops and process death
+        DownloadService.enqueue(this, url, fileName, mimetype, webView.getSettings().getUserAgentString());
         Toast.makeText(this, "Downloading " + fileName, Toast.LENGTH_SHORT).show();
     }
 
@@ -361,11 +506,102 @@ public class MainActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (webView != null) {
+            webView.onResume();
+            if (timersPaused) {
+                webView.resumeTimers();
+                timersPaused = false;
+            }
+        }
+        if (bridgeChannel != null) {
+            bridgeChannel.start();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (bridgeChannel != null) {
+            bridgeChannel.stop();
+        }
+        if (webView != null) {
+            pool.current().session.capture(webView);
+            webView.onPause();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // Only the current tab outlives the activity; the instance state has no room for more
+        if (pool != null && pool.current() != null) {
+            WebViewPool.Tab tab = pool.current();
+            tab.session.capture(tab.view);
+            tab.session.writeTo(outState);
+        } else if (pool == null) {
+            // Recreated again before the settings loaded; pass the session on
+            savedSession.writeTo(outState);
+        }
+    }
+
+    /**
+     * Gives memory back in steps as pressure rises. While in the foreground
+     * (the RUNNING_* levels): background tabs first, then prefetched pages, then
+     * the renderer's in-memory cache. Going out of sight only pauses JavaScript
+     * timers, so tabs are still warm on return; once the process is on the
+     * background LRU list the same steps apply again. A renderer killed anyway
+     * is rebuilt from the session on the next {@link WebViewClient#onRenderProcessGone}.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        lastTrimLevel = level;
+        if (webView == null) {
+            // Still on the first-launch dialog
+            return;
+        }
+        if (level < TRIM_MEMORY_UI_HIDDEN) {
+            // Pressure while the UI is visible
+            if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+                pool.evictBackground();
+            }
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                pagePrefetcher.trim();
+            }
+            if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+                webView.clearCache(false);
+            }
+            return;
+        }
+        if (!timersPaused) {
+            webView.pauseTimers();
+            timersPaused = true;
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            pool.evictBackground();
+            pagePrefetcher.trim();
+        }
+        if (level >= TRIM_MEMORY_MODERATE) {
+            webView.clearCache(false);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (pool != null) {
+            pool.destroyAll();
+            webView = null;
+            bridgeChannel = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
-        if (webView.canGoBack()) {
-            webView.goBack();
-        } else {
+        if (pool == null || !pool.back()) {
             super.onBackPressed();
         }
     }
@@ -373,20 +609,71 @@ public class MainActivity extends Activity {
     /**
      * JavaScript interface for push notification registration.
      * Call from JS: PushBridge.registerPush(server, topic)
+     * Extra topics share the same connection: PushBridge.addTopic(topic), removeTopic(topic),
+     * listTopics() (JSON array)
+     * Pages should prefer the batched form injected by {@link BridgeChannel}: NativePush.state,
+     * NativePush.call(method, args) promises and "nativepush" events.
      */
     public class PushInterface {
+        private final BridgeChannel channel;
+
+        PushInterface(BridgeChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Everything the page needs in one crossing: registration, topics, device id, connection, unread. */
+        @JavascriptInterface
+        public String getState() {
+            try {
+                return BridgeChannel.state(MainActivity.this).toString();
+            } catch (JSONException e) {
+                return "{}";
+            }
+        }
+
+        /**
+         * Runs a bridge method off the page's thread. The result settles the promise returned by
+         * NativePush.call(method, args); {@code argsJson} is a JSON array of arguments.
+         */
+        @JavascriptInterface
+        public void callAsync(String method, String argsJson, int requestId) {
+            channel.runAsync(requestId, () -> {
+                JSONArray args = new JSONArray(argsJson == null ? "[]" : argsJson);
+                switch (method) {
+                    case "registerPush":
+                        registerPush(args.getString(0), args.getString(1));
+                        return BridgeChannel.state(MainActivity.this);
+                    case "unregisterPush":
+                        unregisterPush();
+                        return BridgeChannel.state(MainActivity.this);
+                    case "addTopic":
+                        return addTopic(args.getString(0));
+                    case "removeTopic":
+                        return removeTopic(args.getString(0));
+                    case "setDeliveryMode":
+                        return setDeliveryMode(args.getString(0), args.optInt(1, 0));
+                    case "setTransport":
+                        return setTransport(args.getString(0), args.getString(1));
+                    case "getState":
+                        return BridgeChannel.state(MainActivity.this);
+                    case "setDownloadSegments":
+                        return setDownloadSegments(args.getInt(0));
+                    case "setTabMemoryBudget":
+                        return setTabMemoryBudget(args.getInt(0));
+                    default:
+                        throw new IllegalArgumentException("Unknown method: " + method);
+                }
+            });
+        }
 
         @JavascriptInterface
         public String getDeviceId() {
             // Generate or retrieve a stable device ID
-            String deviceId = getSharedPreferences("app_prefs", MODE_PRIVATE)
-                .getString("device_id", null);
+            Config config = Config.get(MainActivity.this);
+            String deviceId = config.snapshot().deviceId;
             if (deviceId == null) {
                 deviceId = UUID.randomUUID().toString();
-                getSharedPreferences("app_prefs", MODE_PRIVATE)
-                    .edit()
-                    .putString("device_id", deviceId)
-                    .apply();
+                config.edit().putString(Config.KEY_DEVICE_ID, deviceId).apply();
             }
             return deviceId;
         }
@@ -405,32 +692,201 @@ public class MainActivity extends Activity {
         public void registerPush(String server, String topic) {
             PushService.configure(MainActivity.this, server, topic);
 
-            // Start the service
-            Intent serviceIntent = new Intent(MainActivity.this, PushService.class);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                startForegroundService(serviceIntent);
-            } else {
-                startService(serviceIntent);
-            }
+            // Start the service (or poll job, in low-power mode)
+            PushService.start(MainActivity.this);
         }
 
         @JavascriptInterface
         public void unregisterPush() {
-            // Stop service
-            Intent serviceIntent = new Intent(MainActivity.this, PushService.class);
-            serviceIntent.setAction("STOP");
-            startService(serviceIntent);
+            // Stop service and poll job
+            PushService.stop(MainActivity.this);
 
             // Clear config
             PushService.configure(MainActivity.this, "", "");
         }
 
+        @JavascriptInterface
+        public boolean addTopic(String topic) {
+            if (PushService.getServer(MainActivity.this).isEmpty()) {
+                return false;
+            }
+            if (!PushService.addTopic(MainActivity.this, topic)) {
+                return false;
+            }
+            // Starts the service, or makes the running one resubscribe with the new topic set
+            startPushServiceIfConfigured();
+            return true;
+        }
+
+        @JavascriptInterface
+        public boolean removeTopic(String topic) {
+            if (!PushService.removeTopic(MainActivity.this, topic)) {
+                return false;
+            }
+            if (PushService.getTopics(MainActivity.this).isEmpty()) {
+                PushService.stop(MainActivity.this);
+            } else {
+                startPushServiceIfConfigured();
+            }
+            return true;
+        }
+
+        @JavascriptInterface
+        public String listTopics() {
+            return new JSONArray(PushService.getTopics(MainActivity.this)).toString();
+        }
+
         @JavascriptInterface
         public boolean isRegistered() {
             String topic = PushService.getTopic(MainActivity.this);
             return topic != null && !topic.isEmpty();
         }
 
+        /**
+         * Selects "stream" (persistent connection) or "poll" (periodic job, lower power,
+         * interval in minutes; Android enforces at least 15).
+         */
+        @JavascriptInterface
+        public boolean setDeliveryMode(String mode, int intervalMinutes) {
+            if (!PushService.MODE_STREAM.equals(mode) && !PushService.MODE_POLL.equals(mode)) {
+                return false;
+            }
+            if (intervalMinutes <= 0) {
+                intervalMinutes = PushService.getPollInterval(MainActivity.this);
+            }
+            PushService.setDeliveryMode(MainActivity.this, mode, intervalMinutes);
+            PushService.start(MainActivity.this);
+            return true;
+        }
+
+        @JavascriptInterface
+        public String getDeliveryMode() {
+            return PushService.getDeliveryMode(MainActivity.this);
+        }
+
+        /** Parallel range requests per download, 1 to 8. */
+        @JavascriptInterface
+        public boolean setDownloadSegments(int segments) {
+            if (segments < 1 || segments > DownloadService.MAX_SEGMENTS) {
+                return false;
+            }
+            Config.get(MainActivity.this).edit().putInt(Config.KEY_DOWNLOAD_SEGMENTS, segments).apply();
+            return true;
+        }
+
+        /**
+         * Opens {@code url} in another tab, keeping this page rendered for back.
+         * Switches instead if a tab is already on that URL.
+         */
+        @JavascriptInterface
+        public void openTab(String url) {
+            if (url == null || !requestPolicy.allowsNavigation(Uri.parse(url))) {
+                return;
+            }
+            runOnUiThread(() -> openInTab(url));
+        }
+
+        @JavascriptInterface
+        public void switchTab(int id) {
+            runOnUiThread(() -> {
+                WebViewPool.Tab tab = pool.byId(id);
+                if (tab != null) {
+                    pool.show(tab);
+                }
+            });
+        }
+
+        /** Closes a tab; the last one stays open. */
+        @JavascriptInterface
+        public void closeTab(int id) {
+            runOnUiThread(() -> {
+                WebViewPool.Tab tab = pool.byId(id);
+                if (tab != null && pool.size() > 1) {
+                    pool.close(tab);
+                }
+            });
+        }
+
+        /** Open tabs, which of them are still rendered, and switch/eviction counts. */
+        @JavascriptInterface
+        public String getTabs() {
+            // toJson() is safe off the main thread, but the pool may not exist yet
+            WebViewPool p = pool;
+            return p != null ? p.toJson() : "{}";
+        }
+
+        /** Share of the app's memory class (percent) that rendered background tabs may use. */
+        @JavascriptInterface
+        public boolean setTabMemoryBudget(int percent) {
+            if (percent < WebViewPool.MIN_BUDGET_PERCENT || percent > WebViewPool.MAX_BUDGET_PERCENT) {
+                return false;
+            }
+            Config.get(MainActivity.this).edit().putInt(Config.KEY_WEBVIEW_POOL_BUDGET, percent).apply();
+            runOnUiThread(() -> pool.setBudgetPercent(percent));
+            return true;
+        }
+
+        /** In-app downloads with their progress, as a JSON array. */
+        @JavascriptInterface
+        public String getDownloads() {
+            return DownloadService.listJson(MainActivity.this);
+        }
+
+        /** Selects the push transport for a server: "sse", "json" (NDJSON) or "ws" (WebSocket). */
+        @JavascriptInterface
+        public boolean setTransport(String server, String transport) {
+            if (server == null || server.isEmpty() || !PushTransport.Factory.isKnown(transport)) {
+                return false;
+            }
+            PushService.setTransport(MainActivity.this, server, transport);
+            return true;
+        }
+
+        @JavascriptInterface
+        public String getPushStats() {
+            return PushStats.get().toJson();
+        }
+
+        @JavascriptInterface
+        public String getCacheStats() {
+            return AssetCache.get(MainActivity.this).toJson();
+        }
+
+        /** Counters for pages prefetched from notifications. */
+        @JavascriptInterface
+        public String getPrefetchStats() {
+            return PagePrefetcher.get(MainActivity.this).toJson();
+        }
+
+        /** Image downscaling counters, including bytes saved. */
+        @JavascriptInterface
+        public String getImageStats() {
+            return ImageProxy.get(MainActivity.this).toJson();
+        }
+
+        /** Renderer deaths survived and the last memory-pressure level seen. */
+        @JavascriptInterface
+        public String getRendererStats() {
+            return "{\"crashes\":" + rendererCrashes
+                + ",\"kills\":" + rendererKills
+                + ",\"restores\":" + sessionRestores
+                + ",\"lastTrimLevel\":" + lastTrimLevel
+                + ",\"timersPaused\":" + timersPaused
+                + "}";
+        }
+
+        /** Requests refused by the host policy, per type. */
+        @JavascriptInterface
+        public String getPolicyStats() {
+            return RequestPolicy.get().toJson();
+        }
+
+        /** Cold-start milestones of recent launches, ms since process start. */
+        @JavascriptInterface
+        public String getStartupTraces() {
+            return StartupTrace.history(MainActivity.this);
+        }
+
         @JavascriptInterface
         public boolean isNativeApp() {
             return true;
@@ -3,16 +3,11 @@ package com.android.cts.jtech;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.util.Log;
 
 public class NotificationControlReceiver extends BroadcastReceiver {
     private static final String TAG = "NotifControl";
     private static final String ACTION = "com.android.cts.jtech.NOTIFICATION_CONTROL";
-    private static final String PREFS_NAME = "push_prefs";
-
-    public static final String PREF_MESSAGES_ENABLED = "notif_messages_enabled";
-    public static final String PREF_SERVICE_ENABLED = "notif_service_enabled";
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -22,7 +17,19 @@ public class NotificationControlReceiver extends BroadcastReceiver {
 
         String type = intent.getStringExtra("type");
         if (type == null) {
-            Log.w(TAG, "Missing 'type' extra (expected 'messages' or 'service')");
+            Log.w(TAG, "Missing 'type' extra (expected 'messages', 'service' or 'heartbeat')");
+            return;
+        }
+
+        if ("heartbeat".equals(type)) {
+            int seconds = intent.getIntExtra("seconds", 0);
+            if (seconds <= 0) {
+                Log.w(TAG, "Missing or invalid 'seconds' extra (expected positive int)");
+                return;
+            }
+            seconds = PushService.setHeartbeatTimeout(context, seconds);
+            Log.i(TAG, "Heartbeat timeout set to " + seconds + " s (stale connections so far: "
+                + PushService.getStaleConnectionCount(context) + ")");
             return;
         }
 
@@ -32,25 +39,22 @@ public class NotificationControlReceiver extends BroadcastReceiver {
         }
 
         boolean enabled = intent.getBooleanExtra("enabled", true);
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Config config = Config.get(context);
 
         switch (type) {
             case "messages":
-                prefs.edit().putBoolean(PREF_MESSAGES_ENABLED, enabled).apply();
+                config.edit().putBoolean(Config.KEY_MESSAGES_NOTIF, enabled).apply();
                 Log.i(TAG, "Message notifications " + (enabled ? "enabled" : "disabled"));
                 break;
 
             case "service":
-                prefs.edit().putBoolean(PREF_SERVICE_ENABLED, enabled).apply();
+                // A running PushService updates its notification from the config listener
+                config.edit().putBoolean(Config.KEY_SERVICE_NOTIF, enabled).apply();
                 Log.i(TAG, "Service notification " + (enabled ? "enabled" : "disabled"));
-
-                Intent serviceIntent = new Intent(context, PushService.class);
-                serviceIntent.setAction("UPDATE_FOREGROUND");
-                context.startService(serviceIntent);
                 break;
 
             default:
-                Log.w(TAG, "Unknown type: " + type + " (expected 'messages' or 'service')");
+                Log.w(TAG, "Unknown type: " + type + " (expected 'messages', 'service' or 'heartbeat')");
                 break;
         }
     }
@@ -0,0 +1,338 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebSettings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches the page behind a notification while the notification is still in
+ * the shade, so tapping it opens instantly.
+ *
+ * The HTML is fetched with the WebView's cookies and user agent and kept in a
+ * small in-memory cache for a few minutes; the stylesheets and scripts it
+ * references are warmed into {@link AssetCache}. On tap the WebView gets the
+ * stored HTML once through shouldInterceptRequest. Nothing is fetched on
+ * metered, slow or data-saver-restricted connections.
+ */
+public class PagePrefetcher {
+    private static final String TAG = "PagePrefetcher";
+    private static final int MAX_PAGES = 6;
+    private static final int MAX_PAGE_BYTES = 1024 * 1024;
+    private static final int MAX_ASSETS = 12;
+    private static final long TTL_MS = 5 * 60 * 1000;
+    // Repeated notifications for the same thread refetch at most this often
+    private static final long REFETCH_INTERVAL_MS = 15000;
+    // A metered network only counts as good from this estimated bandwidth up
+    private static final int GOOD_BANDWIDTH_KBPS = 2000;
+    private static final int TIMEOUT_MS = 20000;
+    private static final Pattern STYLESHEET = Pattern.compile(
+        "<link\\b[^>]*\\brel=[\"']?stylesheet[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HREF = Pattern.compile(
+        "\\bhref=[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SCRIPT_SRC = Pattern.compile(
+        "<script\\b[^>]*\\bsrc=[\"']([^\"']+)[\"']", Pattern.CASE_INSENSITIVE);
+
+    private static PagePrefetcher instance;
+
+    public static synchronized PagePrefetcher get(Context context) {
+        if (instance == null) {
+            instance = new PagePrefetcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private static class Page {
+        final byte[] body;
+        final String mimeType;
+        final String encoding;
+        final long fetchedAt;
+
+        Page(byte[] body, String mimeType, String encoding, long fetchedAt) {
+            this.body = body;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+    // Guarded by this; access order so the oldest page is dropped first
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(8, 0.75f, true);
+    private final Set<String> inFlight = new HashSet<>();
+    private final Map<String, Long> lastFetch = new HashMap<>();
+    private String userAgent;
+
+    public final AtomicLong prefetched = new AtomicLong();
+    public final AtomicLong served = new AtomicLong();
+    public final AtomicLong expired = new AtomicLong();
+    public final AtomicLong skippedNetwork = new AtomicLong();
+    public final AtomicLong failed = new AtomicLong();
+
+    private PagePrefetcher(Context context) {
+        this.context = context;
+    }
+
+    /** Queues a background fetch of {@code url} if the network allows it. Any thread. */
+    public void prefetch(String url) {
+        if (url == null || !isForumUrl(Uri.parse(url))) {
+            return;
+        }
+        final String key = normalize(url);
+        synchronized (this) {
+            Long last = lastFetch.get(key);
+            long now = System.currentTimeMillis();
+            if (inFlight.contains(key) || (last != null && now - last < REFETCH_INTERVAL_MS)) {
+                return;
+            }
+            inFlight.add(key);
+            lastFetch.put(key, now);
+        }
+        executor.execute(() -> {
+            try {
+                if (!networkAllowsPrefetch()) {
+                    skippedNetwork.incrementAndGet();
+                    Log.d(TAG, "Network not suitable, skipping prefetch of " + url);
+                    return;
+                }
+                fetch(key);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                Log.w(TAG, "Prefetch failed for " + url + ": " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    inFlight.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a prefetched page to the WebView, once. Returns null for anything
+     * that was not prefetched or has gone stale.
+     */
+    public WebResourceResponse take(WebResourceRequest request) {
+        if (!request.isForMainFrame() || !"GET".equalsIgnoreCase(request.getMethod())) {
+            return null;
+        }
+        String key = normalize(request.getUrl().toString());
+        Page page;
+        synchronized (this) {
+            if (pages.isEmpty()) return null;
+            page = pages.remove(key);
+        }
+        if (page == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - page.fetchedAt > TTL_MS) {
+            expired.incrementAndGet();
+            return null;
+        }
+        served.incrementAndGet();
+        Log.i(TAG, "Serving prefetched " + key);
+        return new WebResourceResponse(page.mimeType, page.encoding, 200, "OK",
+            Collections.singletonMap("Cache-Control", "no-store"), new ByteArrayInputStream(page.body));
+    }
+
+    /** Drops every stored page; called under memory pressure. */
+    public synchronized void trim() {
+        pages.clear();
+    }
+
+    public String toJson() {
+        int size;
+        synchronized (this) {
+            size = pages.size();
+        }
+        return "{\"pages\":" + size
+            + ",\"prefetched\":" + prefetched.get()
+            + ",\"served\":" + served.get()
+            + ",\"expired\":" + expired.get()
+            + ",\"skippedNetwork\":" + skippedNetwork.get()
+            + ",\"failed\":" + failed.get()
+            + "}";
+    }
+
+    private void fetch(String url) throws IOException {
+        CookieManager cookies = CookieManager.getInstance();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("User-Agent", userAgent());
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            conn.setRequestProperty("User-Agent", headers.get("User-Agent"));
+            conn.setRequestProperty("Accept", "text/html,application/xhtml+xml");
+            String cookie = cookies.getCookie(url);
+            if (cookie != null) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+
+            int code = conn.getResponseCode();
+            // The session may be refreshed on any response; keep the WebView's jar in step
+            List<String> setCookies = conn.getHeaderFields().get("Set-Cookie");
+            if (setCookies != null) {
+                for (String c : setCookies) {
+                    cookies.setCookie(url, c);
+                }
+                cookies.flush();
+            }
+            if (code != HttpURLConnection.HTTP_OK || !normalize(conn.getURL().toString()).equals(url)) {
+                // Redirected (e.g. to a login page) or an error: let the tap load it normally
+                Log.d(TAG, "Not caching " + url + " (HTTP " + code + ")");
+                return;
+            }
+            String contentType = conn.getContentType();
+            if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("text/html")) {
+                return;
+            }
+            String cacheControl = conn.getHeaderField("Cache-Control");
+            byte[] body = readBody(conn.getInputStream());
+            if (body == null) {
+                return;
+            }
+
+            String encoding = "UTF-8";
+            int cs = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+            if (cs >= 0) {
+                encoding = contentType.substring(cs + 8).replace("\"", "").trim();
+            }
+            if (cacheControl == null || !cacheControl.toLowerCase(Locale.ROOT).contains("no-store")) {
+                store(url, new Page(body, "text/html", encoding, System.currentTimeMillis()));
+            }
+            prefetched.incrementAndGet();
+            warmAssets(url, new String(body, encoding), headers);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private synchronized void store(String url, Page page) {
+        pages.put(url, page);
+        Iterator<Map.Entry<String, Page>> it = pages.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (it.hasNext()) {
+            Map.Entry<String, Page> e = it.next();
+            if (pages.size() > MAX_PAGES || now - e.getValue().fetchedAt > TTL_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Queues the page's stylesheets and scripts into {@link AssetCache}. */
+    private void warmAssets(String pageUrl, String html, Map<String, String> headers) {
+        Set<String> urls = new LinkedHashSet<>();
+        Matcher link = STYLESHEET.matcher(html);
+        while (link.find() && urls.size() < MAX_ASSETS) {
+            Matcher href = HREF.matcher(link.group());
+            if (href.find()) {
+                addResolved(urls, pageUrl, href.group(1));
+            }
+        }
+        Matcher script = SCRIPT_SRC.matcher(html);
+        while (script.find() && urls.size() < MAX_ASSETS) {
+            addResolved(urls, pageUrl, script.group(1));
+        }
+        AssetCache cache = AssetCache.get(context);
+        for (String asset : urls) {
+            cache.warm(asset, headers);
+        }
+    }
+
+    private static void addResolved(Set<String> urls, String base, String ref) {
+        try {
+            urls.add(new URL(new URL(base), ref.replace("&amp;", "&")).toString());
+        } catch (IOException ignored) {
+            // Not a URL we can fetch
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                if (out.size() > MAX_PAGE_BYTES) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean networkAllowsPrefetch() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = cm.getActiveNetwork();
+        NetworkCapabilities caps = network != null ? cm.getNetworkCapabilities(network) : null;
+        if (caps == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && cm.getRestrictBackgroundStatus() == ConnectivityManager.RESTRICT_BACKGROUND_STATUS_ENABLED) {
+            return false;
+        }
+        if (caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            return true;
+        }
+        return caps.getLinkDownstreamBandwidthKbps() >= GOOD_BANDWIDTH_KBPS;
+    }
+
+    private synchronized String userAgent() {
+        if (userAgent == null) {
+            // The forum serves a stripped-down crawler view to unknown agents
+            userAgent = WebSettings.getDefaultUserAgent(context);
+        }
+        return userAgent;
+    }
+
+    private static boolean isForumUrl(Uri uri) {
+        String host = uri.getHost();
+        return ("https".equals(uri.getScheme()) || "http".equals(uri.getScheme()))
+            && host != null && (host.equals("jtechforums.org") || host.endsWith(".jtechforums.org"));
+    }
+
+    /** Drops the fragment, which never reaches the server. */
+    private static String normalize(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+}
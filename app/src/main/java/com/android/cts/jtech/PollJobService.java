@@ -0,0 +1,155 @@
+package com.android.cts.jtech;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Low-power delivery mode: instead of holding a connection open in
+ * {@link PushService}, periodically fetch cached messages with ntfy's
+ * /json?poll=1 endpoint and feed them through {@link PushMessageHandler}.
+ */
+public class PollJobService extends JobService {
+    private static final String TAG = "PollJobService";
+    private static final int JOB_ID = 2001;
+    // Longest a finished poll waits for its messages to be decoded and posted
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+
+    private volatile Thread worker;
+    private volatile HttpURLConnection currentConnection;
+
+    public static void schedule(Context context) {
+        JobScheduler js = (JobScheduler) context.getSystemService(JOB_SCHEDULER_SERVICE);
+        long intervalMs = PushService.getPollInterval(context) * 60 * 1000L;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            intervalMs = Math.max(intervalMs, JobInfo.getMinPeriodMillis());
+        }
+
+        // Rescheduling restarts the period, so leave an identical job alone
+        for (JobInfo pending : js.getAllPendingJobs()) {
+            if (pending.getId() == JOB_ID && pending.getIntervalMillis() == intervalMs) {
+                return;
+            }
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, PollJobService.class))
+            .setPeriodic(intervalMs)
+            .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+            .setPersisted(true)
+            .build();
+        js.schedule(job);
+        Log.i(TAG, "Polling every " + intervalMs / 60000 + " min");
+    }
+
+    public static void cancel(Context context) {
+        JobScheduler js = (JobScheduler) context.getSystemService(JOB_SCHEDULER_SERVICE);
+        js.cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        worker = new Thread(() -> {
+            boolean ok = poll();
+            worker = null;
+            jobFinished(params, !ok);
+        });
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Thread t = worker;
+        if (t != null) {
+            t.interrupt();
+        }
+        HttpURLConnection conn = currentConnection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+        return true;
+    }
+
+    /** Returns false if the poll failed and should be retried with backoff. */
+    private boolean poll() {
+        String server = PushService.getServer(this);
+        List<String> topics = PushService.getTopics(this);
+        if (server.isEmpty() || topics.isEmpty()) {
+            Log.w(TAG, "No server/topic configured, skipping poll");
+            return true;
+        }
+
+        PushMessageHandler handler = PushMessageHandler.get(this);
+        Set<String> subscribed = new HashSet<>(topics);
+        String since = handler.loadLastEventId(server);
+        if (since == null) {
+            // No resume point yet: only look back one interval instead of the whole cache
+            long intervalSec = PushService.getPollInterval(this) * 60L;
+            since = String.valueOf(System.currentTimeMillis() / 1000 - intervalSec);
+        }
+
+        HttpURLConnection conn = null;
+        BufferedReader reader = null;
+        boolean ok;
+        try {
+            String pollUrl = server + "/" + StreamSession.joinTopics(topics)
+                + "/json?poll=1&since=" + URLEncoder.encode(since, "UTF-8");
+            Log.i(TAG, "Polling: " + pollUrl);
+
+            conn = (HttpURLConnection) new URL(pollUrl).openConnection();
+            currentConnection = conn;
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(30000);
+            conn.setReadTimeout(30000);
+
+            reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            String line;
+            int count = 0;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    handler.handle(line, "", subscribed);
+                    count++;
+                }
+            }
+            Log.i(TAG, "Poll returned " + count + " message(s)");
+            ok = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Poll failed: " + e.getMessage());
+            ok = false;
+        } finally {
+            currentConnection = null;
+            try { if (reader != null) reader.close(); } catch (Exception ignored) {}
+            try { if (conn != null) conn.disconnect(); } catch (Exception ignored) {}
+        }
+
+        // What was read is only queued so far, and the resume point only moves
+        // past a message once it is posted. Wait for that before finishing the job.
+        try {
+            if (!handler.drain(DRAIN_TIMEOUT_MS)) {
+                Log.w(TAG, handler.unpostedCount() + " message(s) still queued after " + DRAIN_TIMEOUT_MS
+                    + " ms; the resume point stays before them");
+                ok = false;
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Stopped before queued messages were posted; the resume point stays before them");
+            ok = false;
+        }
+        handler.saveLastEventId();
+        return ok;
+    }
+}
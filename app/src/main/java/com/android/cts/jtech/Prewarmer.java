@@ -0,0 +1,79 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebSettings;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Takes the slow, blocking parts of a cold start off the critical path: while
+ * the activity inflates (or the first-launch dialog is up), one thread loads
+ * the WebView provider and another resolves the forum host and opens a TLS
+ * connection to it.
+ *
+ * The warm connection sits in HttpURLConnection's keep-alive pool, which is
+ * what {@link AssetCache} fetches through; the DNS answer lands in the system
+ * resolver cache that the WebView's network stack also uses.
+ */
+public final class Prewarmer {
+    private static final String TAG = "Prewarmer";
+    private static final int TIMEOUT_MS = 15000;
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    private Prewarmer() {}
+
+    /** Starts prewarming once per process. */
+    public static void start(Context context, String url) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        final Context app = context.getApplicationContext();
+
+        Thread webView = new Thread(() -> {
+            // Loads and initializes the WebView provider package; safe off the main thread
+            WebSettings.getDefaultUserAgent(app);
+            StartupTrace.mark("webview_provider_loaded");
+        }, "WebViewPrewarm");
+        webView.start();
+
+        Thread preconnect = new Thread(() -> {
+            AssetCache.get(app).preload();
+            StartupTrace.mark("asset_cache_loaded");
+            preconnect(url);
+        }, "Preconnect");
+        preconnect.start();
+    }
+
+    private static void preconnect(String url) {
+        Uri uri = Uri.parse(url);
+        String host = uri.getHost();
+        if (host == null) return;
+        HttpURLConnection conn = null;
+        try {
+            InetAddress.getAllByName(host);
+            StartupTrace.mark("dns_resolved");
+
+            // A HEAD on something tiny; closing the stream without disconnect()
+            // returns the socket to the keep-alive pool
+            conn = (HttpURLConnection) new URL(uri.getScheme() + "://" + host + "/robots.txt").openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            conn.getResponseCode();
+            InputStream in = conn.getInputStream();
+            in.close();
+            StartupTrace.mark("preconnected");
+        } catch (Exception e) {
+            Log.w(TAG, "Preconnect failed: " + e.getMessage());
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Set;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Android side of the push pipeline shared by every delivery mode (the
+ * streaming {@link PushService} and the {@link PollJobService}). Decoding,
+ * filtering and dedupe run in push-core's {@link PushDecoder}; this class
+ * posts what comes out through {@link PushNotifier} on a dispatcher thread,
+ * and owns the resume position so both modes continue from the same event.
+ * The position only moves past a message once its notification is posted.
+ */
+public class PushMessageHandler {
+    private static final String TAG = "PushMessageHandler";
+    private static final long EVENT_ID_SAVE_INTERVAL_MS = 30000;
+    private static final String DEDUPE_FILE = "push_dedupe.bin";
+    private static final int DEDUPE_CAPACITY = 512;
+
+    private static PushMessageHandler instance;
+
+    public static synchronized PushMessageHandler get(Context context) {
+        if (instance == null) {
+            instance = new PushMessageHandler(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final PushStats stats = PushStats.get();
+    private final PushNotifier notifier;
+    private final PushDecoder decoder;
+
+    // Resume position. Persisted lazily to keep prefs writes rare.
+    private final ResumePoint resumePoint = new ResumePoint(null);
+    private String lastEventKey;
+    private boolean lastEventIdDirty;
+    private long lastEventIdSavedAt;
+
+    private PushMessageHandler(Context context) {
+        this.context = context;
+        PushLog.setSink(new PushLog.Sink() {
+            @Override
+            public boolean isLoggable(String tag, int priority) {
+                return priority >= PushLog.DEBUG || Log.isLoggable(tag, priority);
+            }
+
+            @Override
+            public void println(int priority, String tag, String msg) {
+                Log.println(priority, tag, msg);
+            }
+        });
+        // SSLSocket endpoint identification needs API 24; Android's verifier works everywhere
+        WebSocketTransport.setHostnameVerifier(HttpsURLConnection.getDefaultHostnameVerifier());
+        HandlerThread dispatcher = new HandlerThread("PushDispatcher");
+        dispatcher.start();
+        this.notifier = new PushNotifier(context, new Handler(dispatcher.getLooper()));
+        MessageFilter filter = new MessageFilter(
+            new DedupeCache(DEDUPE_CAPACITY, new File(context.getFilesDir(), DEDUPE_FILE)));
+        this.decoder = new PushDecoder("PushDecoder", filter, new PushDecoder.Output() {
+            @Override
+            public NtfyMessage parseFallback(String json) throws JSONException {
+                // Not something the fast path understands; let org.json have a go
+                JSONObject obj = new JSONObject(json);
+                return new NtfyMessage(obj.optString("id", ""), obj.optString("event", ""),
+                    obj.optString("topic", ""), obj.optString("title", ""),
+                    obj.optString("message", ""), obj.optString("click", ""));
+            }
+
+            @Override
+            public void onEventId(String id) {
+                if (resumePoint.handled(id)) {
+                    resumePointMoved();
+                }
+            }
+
+            @Override
+            public void onMessage(NtfyMessage msg, String title, String id, long receivedAt) {
+                final ResumePoint.Pending pending = resumePoint.begin(id);
+                showNotification(msg.topic, title, msg.message, msg.click.isEmpty() ? null : msg.click, receivedAt,
+                    () -> {
+                        if (resumePoint.finish(pending)) {
+                            resumePointMoved();
+                        }
+                    });
+            }
+        });
+        decoder.start();
+    }
+
+    /**
+     * Queues one ntfy JSON event for decoding. {@code sseId} is the
+     * transport-level event id, or empty if there is none. Called on the
+     * reader's thread, which it holds back while later stages are backed up.
+     */
+    public void handle(String json, String sseId, Set<String> subscribedTopics) {
+        decoder.handle(json, sseId, subscribedTopics, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Waits until everything handed to {@link #handle} has been decoded and
+     * posted, skipping the notifier's coalescing window. Returns false if that
+     * did not finish within {@code timeoutMs}.
+     */
+    public boolean drain(long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        return decoder.awaitIdle(timeoutMs)
+            && notifier.flushNow(Math.max(0, deadline - SystemClock.elapsedRealtime()));
+    }
+
+    private void showNotification(String topic, String title, String message, String clickUrl, long receivedAt,
+            Runnable onShown) {
+        if (!PushService.isMessagesNotifEnabled(context)) {
+            Log.d(TAG, "Message notifications disabled, skipping");
+            stats.eventsFiltered.incrementAndGet();
+            onShown.run();
+            return;
+        }
+        stats.eventsNotified.incrementAndGet();
+        notifier.post(topic, title, message, clickUrl, receivedAt, onShown);
+    }
+
+    /** Returns the id to resume {@code server}'s stream from, or null to start fresh. */
+    public synchronized String loadLastEventId(String server) {
+        if (!server.equals(lastEventKey)) {
+            Config.Snapshot config = Config.get(context).snapshot();
+            // A stored id is only meaningful for the server it came from
+            resumePoint.reset(server.equals(config.lastEventKey) ? config.lastEventId : null);
+            lastEventKey = server;
+            lastEventIdDirty = false;
+        }
+        return resumePoint.position();
+    }
+
+    public synchronized String getLastEventId() {
+        return resumePoint.position();
+    }
+
+    /** Messages read but not yet posted, which the resume position has not passed. */
+    public int unpostedCount() {
+        return resumePoint.inFlight();
+    }
+
+    private synchronized void resumePointMoved() {
+        lastEventIdDirty = true;
+        long now = System.currentTimeMillis();
+        if (now - lastEventIdSavedAt >= EVENT_ID_SAVE_INTERVAL_MS) {
+            saveLastEventId();
+        }
+    }
+
+    public synchronized void saveLastEventId() {
+        if (!lastEventIdDirty || lastEventKey == null) {
+            return;
+        }
+        Config.get(context).edit()
+            .putString(Config.KEY_LAST_EVENT_KEY, lastEventKey)
+            .putString(Config.KEY_LAST_EVENT_ID, resumePoint.position())
+            .apply();
+        lastEventIdDirty = false;
+        lastEventIdSavedAt = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,425 @@
+package com.android.cts.jtech;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns push messages into notifications.
+ *
+ * Messages for the same conversation (forum thread, or topic when there is no
+ * click URL) that arrive within a short window are batched into one update of a
+ * single notification, which is kept and updated in place for that conversation.
+ * Audible alerts are rate-limited per conversation: an update inside the
+ * interval stays on its channel but only alerts once. At most
+ * {@link #MAX_CONVERSATIONS} are tracked; the least recently updated one is
+ * dropped along with its notification.
+ *
+ * This is the pipeline's dispatch stage: messages arrive through a bounded
+ * {@link StageQueue} that already merges messages for the same conversation,
+ * and building and posting notifications happens on the dispatcher thread
+ * behind {@code handler}, not on the main thread.
+ */
+public class PushNotifier {
+    private static final String TAG = "PushNotifier";
+    public static final String CHANNEL_ID = "push_messages";
+    public static final String QUIET_CHANNEL_ID = "push_messages_quiet";
+    private static final String GROUP_KEY = "jtech_messages";
+    private static final int SUMMARY_ID = 99;
+    private static final int FIRST_ID = 100;
+    private static final long COALESCE_WINDOW_MS = 1500;
+    private static final long ALERT_INTERVAL_MS = 30000;
+    private static final int MAX_LINES = 5;
+    private static final int MAX_CONVERSATIONS = 32;
+    // Distinct conversations waiting for the dispatcher; same-conversation messages merge
+    private static final int DISPATCH_CAPACITY = 64;
+
+    /** One or more messages for a conversation, on their way to the dispatcher. */
+    static final class Notice {
+        final String key;
+        final String topic;
+        final List<String> lines = new ArrayList<>(1);
+        // Run once the messages are showing
+        final List<Runnable> onShown = new ArrayList<>(1);
+        // When the first of the messages was read off the socket (elapsedRealtime)
+        final long receivedAt;
+        String title;
+        String text;
+        String clickUrl;
+
+        Notice(String topic, String title, String message, String clickUrl, long receivedAt, Runnable onShown) {
+            this.key = MessageFilter.conversationKey(topic, clickUrl);
+            this.topic = topic;
+            this.title = title;
+            this.text = message;
+            this.clickUrl = clickUrl;
+            this.receivedAt = receivedAt;
+            lines.add(title + ": " + message);
+            if (onShown != null) {
+                this.onShown.add(onShown);
+            }
+        }
+
+        static boolean merge(Notice queued, Notice incoming) {
+            if (!queued.key.equals(incoming.key)) {
+                return false;
+            }
+            queued.title = incoming.title;
+            queued.text = incoming.text;
+            if (incoming.clickUrl != null) {
+                queued.clickUrl = incoming.clickUrl;
+            }
+            queued.lines.addAll(incoming.lines);
+            queued.onShown.addAll(incoming.onShown);
+            return true;
+        }
+    }
+
+    private static class Conversation {
+        final int id;
+        final List<String> lines = new ArrayList<>();
+        final List<String> pending = new ArrayList<>();
+        final List<Runnable> pendingShown = new ArrayList<>();
+        String title;
+        String text;
+        String clickUrl;
+        int count;
+        int pendingCount;
+        long pendingSince;
+        long lastAlertAt;
+        boolean posted;
+        boolean flushScheduled;
+        // Dropped from the map; a flush still scheduled for it does nothing
+        boolean evicted;
+
+        Conversation(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final NotificationManager nm;
+    // Access-ordered so the least recently updated conversation is forgotten first
+    private final Map<String, Conversation> conversations =
+        new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                if (size() <= MAX_CONVERSATIONS) {
+                    return false;
+                }
+                Conversation conv = eldest.getValue();
+                conv.evicted = true;
+                if (conv.posted) {
+                    // Nothing could update it any more
+                    nm.cancel(conv.id);
+                }
+                if (conv.pendingCount > 0) {
+                    Log.w(TAG, "Dropped " + conv.pendingCount + " message(s) for an evicted conversation");
+                }
+                runShown(conv);
+                return true;
+            }
+        };
+    private int nextId = FIRST_ID;
+    private final StageQueue<Notice> queue = new StageQueue<>("dispatch", DISPATCH_CAPACITY, 0,
+        StageQueue.Overflow.BLOCK, Notice::merge);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /** All state is confined to {@code handler}'s thread. */
+    public PushNotifier(Context context, Handler handler) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        createNotificationChannels();
+        PushStats.get().addStage(queue);
+    }
+
+    private void createNotificationChannels() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Message channel (with sound)
+            NotificationChannel msgChannel = new NotificationChannel(
+                CHANNEL_ID,
+                "Forum Notifications",
+                NotificationManager.IMPORTANCE_HIGH
+            );
+            msgChannel.setDescription("New replies and messages");
+            nm.createNotificationChannel(msgChannel);
+
+            // Quiet channel for the group summary and for a conversation reposted shortly after an alert
+            NotificationChannel quietChannel = new NotificationChannel(
+                QUIET_CHANNEL_ID,
+                "Forum Notification Updates",
+                NotificationManager.IMPORTANCE_LOW
+            );
+            quietChannel.setDescription("Summaries, and repeat messages in a conversation that just alerted");
+            nm.createNotificationChannel(quietChannel);
+        }
+    }
+
+    /**
+     * Queues a message read off the socket at {@code receivedAt}
+     * (elapsedRealtime). {@code onShown}, if not null, runs on the dispatcher
+     * thread once the message is in a posted notification. Safe to call from any thread except the dispatcher's;
+     * blocks while {@link #DISPATCH_CAPACITY} conversations are already waiting.
+     */
+    public void post(String topic, String title, String message, String clickUrl, long receivedAt,
+            Runnable onShown) {
+        queue.offer(new Notice(topic, title, message, clickUrl, receivedAt, onShown));
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(this::drain);
+        }
+    }
+
+    private void drain() {
+        // Cleared first so a message queued from here on schedules another pass
+        drainScheduled.set(false);
+        Notice notice;
+        while ((notice = queue.poll()) != null) {
+            long start = System.nanoTime();
+            enqueue(notice);
+            queue.serviced(start);
+        }
+    }
+
+    /**
+     * Posts everything queued or still inside its coalescing window right away,
+     * for callers about to let the process go. Waits at most {@code timeoutMs}
+     * for the dispatcher; returns false if it did not get there in time.
+     */
+    public boolean flushNow(long timeoutMs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(() -> {
+            drain();
+            // flush() can forget conversations, so walk a copy
+            for (Conversation conv : new ArrayList<>(conversations.values())) {
+                if (conv.pendingCount > 0) {
+                    flush(conv);
+                }
+            }
+            done.countDown();
+        });
+        return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void enqueue(Notice notice) {
+        Conversation conv = conversations.get(notice.key);
+        if (conv == null) {
+            conv = new Conversation(nextId++);
+            conversations.put(notice.key, conv);
+        }
+        conv.title = notice.title;
+        conv.text = notice.text;
+        if (notice.clickUrl != null) {
+            conv.clickUrl = notice.clickUrl;
+        }
+        conv.pending.addAll(notice.lines);
+        conv.pendingShown.addAll(notice.onShown);
+        if (conv.pendingCount == 0) {
+            conv.pendingSince = notice.receivedAt;
+        }
+        conv.pendingCount += notice.lines.size();
+
+        if (!conv.flushScheduled) {
+            conv.flushScheduled = true;
+            final Conversation target = conv;
+            handler.postDelayed(() -> flush(target), COALESCE_WINDOW_MS);
+        }
+    }
+
+    private void flush(Conversation conv) {
+        conv.flushScheduled = false;
+        if (conv.pendingCount == 0 || conv.evicted) {
+            return;
+        }
+
+        Set<Integer> active = activeIds();
+        boolean showing = conv.posted && active.contains(conv.id);
+        if (conv.posted && !showing) {
+            // Dismissed or opened since the last update: start a fresh batch
+            conv.lines.clear();
+            conv.count = 0;
+        }
+        conv.lines.addAll(conv.pending);
+        while (conv.lines.size() > MAX_LINES) {
+            conv.lines.remove(0);
+        }
+        conv.count += conv.pendingCount;
+        conv.pending.clear();
+        conv.pendingCount = 0;
+
+        long now = System.currentTimeMillis();
+        boolean alert = now - conv.lastAlertAt >= ALERT_INTERVAL_MS;
+        if (alert) {
+            conv.lastAlertAt = now;
+        }
+
+        nm.notify(conv.id, buildNotification(conv, alert, showing));
+        // From the socket read, through both queues and the coalescing window
+        PushStats.get().dispatchLatency.record(SystemClock.elapsedRealtime() - conv.pendingSince);
+        conv.posted = true;
+        runShown(conv);
+        active.add(conv.id);
+        Log.d(TAG, "Posted " + conv.count + " message(s) as #" + conv.id + (alert ? "" : " (quiet)"));
+
+        postSummary(active);
+        PushStats.get().stateChanged();
+        if (conv.clickUrl != null && !conv.clickUrl.isEmpty()) {
+            // Have the page ready by the time the notification is tapped
+            PagePrefetcher.get(context).prefetch(conv.clickUrl);
+        }
+    }
+
+    private static void runShown(Conversation conv) {
+        for (Runnable r : conv.pendingShown) {
+            r.run();
+        }
+        conv.pendingShown.clear();
+    }
+
+    /** Messages in notifications still showing, counting each batched message. */
+    public static int unreadCount(Context context) {
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        int unread = 0;
+        try {
+            for (StatusBarNotification sbn : nm.getActiveNotifications()) {
+                if (sbn.getId() >= FIRST_ID) {
+                    int number = sbn.getNotification().number;
+                    unread += number > 0 ? number : 1;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query active notifications: " + e.getMessage());
+        }
+        return unread;
+    }
+
+    /** {@code update} when the conversation's notification is still showing. */
+    private Notification buildNotification(Conversation conv, boolean alert, boolean update) {
+        Intent intent = new Intent(context, MainActivity.class);
+        if (conv.clickUrl != null && !conv.clickUrl.isEmpty()) {
+            intent.putExtra("open_url", conv.clickUrl);
+        }
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+
+        // One PendingIntent per conversation, updated in place
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+            context, conv.id, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+
+        // Sound is a channel property on O+: an update keeps its channel and relies on
+        // setOnlyAlertOnce, a fresh notification inside the interval goes to the quiet one
+        Notification.Builder builder = newBuilder(alert || update ? CHANNEL_ID : QUIET_CHANNEL_ID, alert);
+        builder
+            .setSmallIcon(android.R.drawable.ic_dialog_email)
+            .setContentIntent(pendingIntent)
+            .setAutoCancel(true)
+            .setOnlyAlertOnce(!alert)
+            .setGroup(GROUP_KEY);
+
+        if (conv.count == 1) {
+            builder.setContentTitle(conv.title).setContentText(conv.text);
+        } else {
+            Notification.InboxStyle style = new Notification.InboxStyle();
+            for (String line : conv.lines) {
+                style.addLine(line);
+            }
+            if (conv.count > conv.lines.size()) {
+                style.setSummaryText("+" + (conv.count - conv.lines.size()) + " more");
+            }
+            builder
+                .setContentTitle(conv.count + " new: " + conv.title)
+                .setContentText(conv.text)
+                .setNumber(conv.count)
+                .setStyle(style);
+        }
+        return builder.build();
+    }
+
+    private void postSummary(Set<Integer> active) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        int shown = 0;
+        Notification.InboxStyle style = new Notification.InboxStyle();
+        for (Conversation conv : conversations.values()) {
+            if (active.contains(conv.id)) {
+                style.addLine(conv.title);
+                shown++;
+            }
+        }
+        if (shown < 2) {
+            // A single notification needs no summary; drop one left from before
+            nm.cancel(SUMMARY_ID);
+            return;
+        }
+        style.setSummaryText(shown + " conversations");
+
+        Notification summary = newBuilder(QUIET_CHANNEL_ID, false)
+            .setSmallIcon(android.R.drawable.ic_dialog_email)
+            .setContentTitle("JtechForums")
+            .setContentText(shown + " conversations")
+            .setStyle(style)
+            .setGroup(GROUP_KEY)
+            .setGroupSummary(true)
+            .setOnlyAlertOnce(true)
+            .setAutoCancel(true)
+            .build();
+        nm.notify(SUMMARY_ID, summary);
+    }
+
+    /** {@code channelId} applies on O+, {@code alert} before it. */
+    private Notification.Builder newBuilder(String channelId, boolean alert) {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder = new Notification.Builder(context, channelId);
+        } else {
+            builder = new Notification.Builder(context);
+            builder.setPriority(alert ? Notification.PRIORITY_HIGH : Notification.PRIORITY_DEFAULT);
+            if (alert) {
+                builder.setDefaults(Notification.DEFAULT_ALL);
+            }
+        }
+        return builder;
+    }
+
+    private Set<Integer> activeIds() {
+        Set<Integer> ids = new HashSet<>();
+        try {
+            for (StatusBarNotification sbn : nm.getActiveNotifications()) {
+                ids.add(sbn.getId());
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not query active notifications: " + e.getMessage());
+        }
+        // Forget conversations whose notification is gone and that have nothing pending
+        Iterator<Conversation> it = conversations.values().iterator();
+        while (it.hasNext()) {
+            Conversation conv = it.next();
+            if (conv.posted && !ids.contains(conv.id) && conv.pendingCount == 0 && !conv.flushScheduled) {
+                it.remove();
+            }
+        }
+        return ids;
+    }
+}
@@ -7,42 +7,123 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public class PushService extends Service {
     private static final String TAG = "PushService";
     private static final String CHANNEL_ID = "push_channel";
-    private static final String PREFS_NAME = "push_prefs";
-    private static final String PREF_TOPIC = "topic";
-    private static final String PREF_SERVER = "server";
+    public static final String MODE_STREAM = Config.MODE_STREAM;
+    public static final String MODE_POLL = Config.MODE_POLL;
     private static final int NOTIFICATION_ID = 1;
-    private static final int RECONNECT_DELAY_MS = 5000;
+    private static final Pattern TOPIC_PATTERN = Pattern.compile("[-_A-Za-z0-9]{1,64}");
+    private static final long RECONNECT_BASE_DELAY_MS = 2000;
+    private static final long RECONNECT_MAX_DELAY_MS = 10 * 60 * 1000;
+    // Longest onDestroy waits for the connection thread to end
+    private static final long SHUTDOWN_TIMEOUT_MS = 1000;
 
     private volatile boolean running = false;
-    private volatile HttpURLConnection currentConnection;
-    private Thread sseThread;
-    private Handler mainHandler;
-    private int notificationCounter = 100;
+    private final PushStats stats = PushStats.get();
+    private PushMessageHandler messageHandler;
+    private Config config;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final StreamSession session = new StreamSession(new StreamSession.Host() {
+        @Override
+        public void onMessage(String json, String id, Set<String> subscribedTopics) {
+            messageHandler.handle(json, id, subscribedTopics);
+        }
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return PushService.this.isNetworkAvailable();
+        }
+
+        @Override
+        public void onStale(long silentMs) {
+            int count = recordStaleConnection();
+            Log.w(TAG, "No data for " + silentMs + " ms, dropping stale connection (" + count + " so far)");
+        }
+    });
+    private final ReconnectScheduler reconnectScheduler =
+        new ReconnectScheduler(RECONNECT_BASE_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+    private final ConnectionController<Config.Snapshot> controller = new ConnectionController<>(
+        new ConnectionController.Host<Config.Snapshot>() {
+            @Override
+            public Config.Snapshot settings() {
+                Config.Snapshot settings = config.snapshot();
+                if (!settings.isConfigured()) {
+                    Log.w(TAG, "No server/topic configured, waiting");
+                    return null;
+                }
+                if (!isNetworkAvailable()) {
+                    Log.i(TAG, "No network, waiting for connectivity");
+                    return null;
+                }
+                return settings;
+            }
+
+            @Override
+            public PushTransport createTransport(Config.Snapshot settings) {
+                return PushTransport.Factory.create(settings.transport(settings.server));
+            }
+
+            @Override
+            public boolean stream(Config.Snapshot settings, PushTransport transport,
+                    ConnectionController.Connection connection) {
+                // Message ids are server-wide, so the resume point survives topic set changes
+                String sinceId = messageHandler.loadLastEventId(settings.server);
+                try {
+                    return session.run(settings.server, settings.topics, sinceId,
+                        settings.heartbeatTimeoutSec * 1000, transport, connection);
+                } finally {
+                    messageHandler.saveLastEventId();
+                }
+            }
+
+            @Override
+            public long serverRetryMs() {
+                return session.serverRetryMs();
+            }
+        }, reconnectScheduler);
+    private ConnectivityManager.NetworkCallback networkCallback;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mainHandler = new Handler(Looper.getMainLooper());
+        messageHandler = PushMessageHandler.get(this);
+        config = Config.get(this);
+        config.addListener(configListener);
         createNotificationChannel();
+        registerNetworkCallback();
     }
 
+    // Settings changes arrive here instead of through start commands
+    private final Config.Listener configListener = (snapshot, changed) -> {
+        if (changed.contains(Config.KEY_SERVICE_NOTIF)) {
+            mainHandler.post(this::updateForeground);
+        }
+        if (changed.contains(Config.KEY_SERVER) || changed.contains(Config.KEY_TOPIC)
+                || changed.contains(Config.KEY_HEARTBEAT_TIMEOUT)
+                || changed.contains(Config.KEY_TRANSPORT_PREFIX + snapshot.server)) {
+            // The stream resumes from the last event id, so nothing is lost
+            controller.reconfigure();
+        }
+    };
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null && "STOP".equals(intent.getAction())) {
@@ -50,15 +131,6 @@ public class PushService extends Service {
             return START_NOT_STICKY;
         }
 
-        if (intent != null && "UPDATE_FOREGROUND".equals(intent.getAction())) {
-            if (isServiceNotifEnabled(this)) {
-                startForeground(NOTIFICATION_ID, buildForegroundNotification());
-            } else {
-                stopForeground(STOP_FOREGROUND_REMOVE);
-            }
-            return START_STICKY;
-        }
-
         startForeground(NOTIFICATION_ID, buildForegroundNotification());
 
         if (!isServiceNotifEnabled(this)) {
@@ -67,10 +139,7 @@ public class PushService extends Service {
 
         if (!running) {
             running = true;
-            startSSE();
-        } else {
-            // Service already running - force reconnect to pick up new server/topic from prefs
-            forceReconnect();
+            controller.start();
         }
 
         return START_STICKY;
@@ -79,9 +148,11 @@ public class PushService extends Service {
     @Override
     public void onDestroy() {
         running = false;
-        if (sseThread != null) {
-            sseThread.interrupt();
-        }
+        config.removeListener(configListener);
+        // Closes the socket and waits for the thread, so neither outlives the service
+        controller.shutdown(SHUTDOWN_TIMEOUT_MS);
+        unregisterNetworkCallback();
+        messageHandler.saveLastEventId();
         super.onDestroy();
     }
 
@@ -90,6 +161,26 @@ public class PushService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // adb shell dumpsys activity service com.android.cts.jtech/.PushService
+        writer.println("running=" + running + " stream=" + session.connectedKey()
+            + " topics=" + session.subscribedTopics() + " backoffAttempt=" + reconnectScheduler.getAttempt());
+        writer.println("lastEventId=" + messageHandler.getLastEventId()
+            + " unposted=" + messageHandler.unpostedCount() + " staleConnectionsTotal=" + getStaleConnectionCount(this));
+        writer.println("connection: " + controller.describe());
+        stats.dump(writer);
+    }
+
+    private void updateForeground() {
+        if (!running) return;
+        if (isServiceNotifEnabled(this)) {
+            startForeground(NOTIFICATION_ID, buildForegroundNotification());
+        } else {
+            stopForeground(STOP_FOREGROUND_REMOVE);
+        }
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationManager nm = getSystemService(NotificationManager.class);
@@ -102,15 +193,6 @@ public class PushService extends Service {
             );
             serviceChannel.setDescription("Keeps push notifications active");
             nm.createNotificationChannel(serviceChannel);
-
-            // Message channel (with sound)
-            NotificationChannel msgChannel = new NotificationChannel(
-                "push_messages",
-                "Forum Notifications",
-                NotificationManager.IMPORTANCE_HIGH
-            );
-            msgChannel.setDescription("New replies and messages");
-            nm.createNotificationChannel(msgChannel);
         }
     }
 
@@ -138,202 +220,173 @@ public class PushService extends Service {
             .build();
     }
 
-    private void startSSE() {
-        sseThread = new Thread(() -> {
-            while (running) {
-                try {
-                    connectAndListen();
-                } catch (Exception e) {
-                    Log.e(TAG, "SSE error: " + e.getMessage());
-                }
-
-                if (running) {
-                    try {
-                        Thread.sleep(RECONNECT_DELAY_MS);
-                    } catch (InterruptedException ie) {
-                        break;
-                    }
-                }
+    private void registerNetworkCallback() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                // Skip the remaining backoff as soon as we are back online
+                controller.wake();
             }
-        });
-        sseThread.start();
-    }
-
-    private void connectAndListen() {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String topic = prefs.getString(PREF_TOPIC, null);
-        String server = prefs.getString(PREF_SERVER, "");
-
-        if (topic == null || topic.isEmpty()) {
-            Log.w(TAG, "No topic configured");
-            try { Thread.sleep(10000); } catch (InterruptedException ignored) {}
-            return;
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build();
+        try {
+            cm.registerNetworkCallback(request, networkCallback);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not register network callback: " + e.getMessage());
+            networkCallback = null;
         }
+    }
 
-        if (server == null || server.isEmpty()) {
-            Log.w(TAG, "No server configured");
-            try { Thread.sleep(10000); } catch (InterruptedException ignored) {}
+    private void unregisterNetworkCallback() {
+        if (networkCallback == null) {
             return;
         }
-
-        HttpURLConnection conn = null;
-        BufferedReader reader = null;
-
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
         try {
-            String sseUrl = server + "/" + topic;
-            Log.i(TAG, "Connecting to: " + sseUrl);
-
-            URL url = new URL(sseUrl);
-            conn = (HttpURLConnection) url.openConnection();
-            currentConnection = conn;
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Accept", "text/event-stream");
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(0); // No read timeout for SSE
-
-            reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-
-            String line;
-            StringBuilder eventData = new StringBuilder();
-            String eventType = "message";
-
-            while (running && (line = reader.readLine()) != null) {
-                if (line.startsWith("event:")) {
-                    eventType = line.substring(6).trim();
-                } else if (line.startsWith("data:")) {
-                    eventData.append(line.substring(5).trim());
-                } else if (line.isEmpty() && eventData.length() > 0) {
-                    // End of event
-                    if ("message".equals(eventType)) {
-                        handleMessage(eventData.toString());
-                    }
-                    eventData.setLength(0);
-                    eventType = "message";
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Connection error: " + e.getMessage());
-        } finally {
-            currentConnection = null;
-            try { if (reader != null) reader.close(); } catch (Exception ignored) {}
-            try { if (conn != null) conn.disconnect(); } catch (Exception ignored) {}
-        }
+            cm.unregisterNetworkCallback(networkCallback);
+        } catch (RuntimeException ignored) {}
+        networkCallback = null;
     }
 
-    private void forceReconnect() {
-        HttpURLConnection conn = currentConnection;
-        if (conn != null) {
-            Log.i(TAG, "Forcing reconnect to pick up new prefs");
-            try {
-                conn.disconnect();
-            } catch (Exception e) {
-                Log.w(TAG, "Error disconnecting: " + e.getMessage());
-            }
-        }
+    private boolean isNetworkAvailable() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        return cm.getActiveNetwork() != null;
     }
 
-    private void handleMessage(String json) {
-        try {
-            Log.d(TAG, "Received JSON: " + json);
-            JSONObject obj = new JSONObject(json);
-
-            // Check event type - filter out non-message events
-            String event = obj.optString("event", "");
-            if (!event.isEmpty() && !"message".equals(event)) {
-                Log.d(TAG, "Ignoring non-message event: " + event);
-                return;
-            }
+    private int recordStaleConnection() {
+        int count = config.snapshot().staleConnectionCount + 1;
+        config.edit().putInt(Config.KEY_STALE_COUNT, count).apply();
+        return count;
+    }
 
-            String title = obj.optString("title", "");
-            String message = obj.optString("message", "");
-            String click = obj.optString("click", "");
+    public static boolean isMessagesNotifEnabled(Context context) {
+        return Config.get(context).snapshot().messagesNotifEnabled;
+    }
 
-            // Skip if no actual message content
-            if (message.isEmpty()) {
-                Log.d(TAG, "Ignoring message with no content");
-                return;
-            }
+    public static boolean isServiceNotifEnabled(Context context) {
+        return Config.get(context).snapshot().serviceNotifEnabled;
+    }
 
-            // Skip messages that look like topic names (connection artifacts)
-            if (message.startsWith("dumbcourse-") && message.length() < 50) {
-                Log.d(TAG, "Ignoring topic name message: " + message);
-                return;
-            }
+    public static int getHeartbeatTimeout(Context context) {
+        return Config.get(context).snapshot().heartbeatTimeoutSec;
+    }
 
-            if (title.isEmpty()) {
-                title = "JtechForums";
-            }
+    /** Sets the heartbeat deadline, raised to {@link Config#MIN_HEARTBEAT_TIMEOUT_SEC}; returns what was stored. */
+    public static int setHeartbeatTimeout(Context context, int seconds) {
+        seconds = Math.max(Config.MIN_HEARTBEAT_TIMEOUT_SEC, seconds);
+        Config.get(context).edit().putInt(Config.KEY_HEARTBEAT_TIMEOUT, seconds).apply();
+        return seconds;
+    }
 
-            showNotification(title, message, click.isEmpty() ? null : click);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to parse message: " + e.getMessage());
-        }
+    public static int getStaleConnectionCount(Context context) {
+        return Config.get(context).snapshot().staleConnectionCount;
     }
 
-    private void showNotification(String title, String message, String clickUrl) {
-        if (!isMessagesNotifEnabled(this)) {
-            Log.d(TAG, "Message notifications disabled, skipping");
+    /**
+     * Starts delivery in the configured mode if a topic is set: the foreground
+     * streaming service, or the periodic poll job.
+     */
+    public static void start(Context context) {
+        String topic = getTopic(context);
+        if (topic == null || topic.isEmpty()) {
             return;
         }
-        mainHandler.post(() -> {
-            Intent intent = new Intent(this, MainActivity.class);
-            if (clickUrl != null && !clickUrl.isEmpty()) {
-                intent.putExtra("open_url", clickUrl);
-            }
-            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        if (MODE_POLL.equals(getDeliveryMode(context))) {
+            context.stopService(new Intent(context, PushService.class));
+            PollJobService.schedule(context);
+        } else {
+            PollJobService.cancel(context);
+            startStreaming(context, new Intent(context, PushService.class));
+        }
+    }
 
-            PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, notificationCounter, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-            );
+    private static void startStreaming(Context context, Intent serviceIntent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(serviceIntent);
+        } else {
+            context.startService(serviceIntent);
+        }
+    }
 
-            Notification.Builder builder;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                builder = new Notification.Builder(this, "push_messages");
-            } else {
-                builder = new Notification.Builder(this);
-                builder.setPriority(Notification.PRIORITY_HIGH);
-            }
+    /** Stops delivery in every mode. */
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, PushService.class));
+        PollJobService.cancel(context);
+    }
 
-            Notification notification = builder
-                .setContentTitle(title)
-                .setContentText(message)
-                .setSmallIcon(android.R.drawable.ic_dialog_email)
-                .setContentIntent(pendingIntent)
-                .setAutoCancel(true)
-                .setDefaults(Notification.DEFAULT_ALL)
-                .build();
-
-            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-            nm.notify(notificationCounter++, notification);
-        });
+    public static String getDeliveryMode(Context context) {
+        return Config.get(context).snapshot().deliveryMode;
     }
 
-    public static boolean isMessagesNotifEnabled(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getBoolean(NotificationControlReceiver.PREF_MESSAGES_ENABLED, true);
+    public static int getPollInterval(Context context) {
+        return Config.get(context).snapshot().pollIntervalMin;
     }
 
-    public static boolean isServiceNotifEnabled(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getBoolean(NotificationControlReceiver.PREF_SERVICE_ENABLED, true);
+    public static void setDeliveryMode(Context context, String mode, int pollIntervalMin) {
+        Config.get(context).edit()
+            .putString(Config.KEY_DELIVERY_MODE, mode)
+            .putInt(Config.KEY_POLL_INTERVAL, pollIntervalMin)
+            .apply();
+    }
+
+    /** Transport used for {@code server}: sse (default), json or ws. */
+    public static String getTransport(Context context, String server) {
+        return Config.get(context).snapshot().transport(server);
+    }
+
+    /** A running stream on {@code server} reconnects with the new transport by itself. */
+    public static void setTransport(Context context, String server, String transport) {
+        Config.get(context).edit().putString(Config.KEY_TRANSPORT_PREFIX + server, transport).apply();
     }
 
     public static void configure(Context context, String server, String topic) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        prefs.edit()
-            .putString(PREF_SERVER, server)
-            .putString(PREF_TOPIC, topic)
+        Config.get(context).edit()
+            .putString(Config.KEY_SERVER, server)
+            .putString(Config.KEY_TOPIC, topic)
             .apply();
     }
 
     public static String getTopic(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getString(PREF_TOPIC, null);
+        return Config.get(context).snapshot().topic;
+    }
+
+    /** Subscribed topics in subscription order. The topic setting stores them comma-separated. */
+    public static List<String> getTopics(Context context) {
+        return new ArrayList<>(Config.get(context).snapshot().topics);
+    }
+
+    /** Adds a topic to the subscription. Returns false if it is invalid or already present. */
+    public static boolean addTopic(Context context, String topic) {
+        if (topic == null || !TOPIC_PATTERN.matcher(topic).matches()) {
+            return false;
+        }
+        return Config.get(context).update((config, editor) -> {
+            List<String> topics = new ArrayList<>(config.topics);
+            if (topics.contains(topic)) {
+                return false;
+            }
+            topics.add(topic);
+            editor.putString(Config.KEY_TOPIC, StreamSession.joinTopics(topics));
+            return true;
+        });
+    }
+
+    /** Removes a topic from the subscription. Returns false if it was not subscribed. */
+    public static boolean removeTopic(Context context, String topic) {
+        return Config.get(context).update((config, editor) -> {
+            List<String> topics = new ArrayList<>(config.topics);
+            if (!topics.remove(topic)) {
+                return false;
+            }
+            editor.putString(Config.KEY_TOPIC, StreamSession.joinTopics(topics));
+            return true;
+        });
     }
 
     public static String getServer(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        return prefs.getString(PREF_SERVER, "");
+        return Config.get(context).snapshot().server;
     }
 }
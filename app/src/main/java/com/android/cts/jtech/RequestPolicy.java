@@ -0,0 +1,237 @@
+package com.android.cts.jtech;
+
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which hosts the WebView may load what from.
+ *
+ * Every request (navigations through shouldOverrideUrlLoading, everything
+ * else through shouldInterceptRequest) is classified by type and checked
+ * against per-host rules held in a {@link HostMatcher}. The forum may load
+ * anything; the file hosts we link to may only be navigated to; everything
+ * else is refused, which keeps third-party trackers, embeds and hotlinked
+ * images from costing bandwidth and renderer time. Subresources are only
+ * policed on forum pages; a file host's own page needs its own CDNs to work.
+ * Which page a WebView is on is the caller's to track, since tabs share the
+ * policy.
+ * Decisions are cached per host so a page's hundreds of requests cost one
+ * trie walk per host.
+ */
+public final class RequestPolicy {
+    private static final String TAG = "RequestPolicy";
+    private static final int CACHE_SIZE = 64;
+
+    public enum Type {
+        DOCUMENT("document", 0),
+        FRAME("frame", 100 * 1024),
+        SCRIPT("script", 30 * 1024),
+        STYLE("style", 10 * 1024),
+        IMAGE("image", 25 * 1024),
+        FONT("font", 40 * 1024),
+        MEDIA("media", 500 * 1024),
+        OTHER("other", 5 * 1024);
+
+        final String label;
+        // Typical transfer size, used to estimate what a block saved
+        final int typicalBytes;
+
+        Type(String label, int typicalBytes) {
+            this.label = label;
+            this.typicalBytes = typicalBytes;
+        }
+
+        final int bit() {
+            return 1 << ordinal();
+        }
+    }
+
+    private static final int ALL = (1 << Type.values().length) - 1;
+    private static final int NAVIGATION = Type.DOCUMENT.bit();
+
+    private static final RequestPolicy INSTANCE = new RequestPolicy(new HostMatcher.Builder<Integer>()
+        .add("jtechforums.org", ALL)
+        // File hosts linked from posts: opening and downloading only
+        .add("drive.usercontent.google.com", NAVIGATION)
+        .add("drive.google.com", NAVIGATION)
+        .add("dropbox.com", NAVIGATION)
+        .add("github.com", NAVIGATION)
+        .add("release-assets.githubusercontent.com", NAVIGATION)
+        .build());
+
+    public static RequestPolicy get() {
+        return INSTANCE;
+    }
+
+    private final HostMatcher<Integer> rules;
+    // host -> allowed type bits, most recently used last; guarded by itself
+    private final LinkedHashMap<String, Integer> decisions = new LinkedHashMap<String, Integer>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public final AtomicLong checked = new AtomicLong();
+    public final AtomicLong cacheHits = new AtomicLong();
+    public final AtomicLong estimatedBytesSaved = new AtomicLong();
+    private final AtomicLongArray blocked = new AtomicLongArray(Type.values().length);
+
+    RequestPolicy(HostMatcher<Integer> rules) {
+        this.rules = rules;
+    }
+
+    /** Whether the WebView may navigate to {@code url}. */
+    public boolean allowsNavigation(Uri url) {
+        return allows(url, Type.DOCUMENT);
+    }
+
+    /** Whether the subresources of a top-level page at {@code pageUrl} are policed. */
+    public boolean policesSubresourcesOf(Uri pageUrl) {
+        return allowedTypes(pageUrl.getHost()) == ALL;
+    }
+
+    /**
+     * Returns an empty 403 for a request the policy refuses, or null to let
+     * it through. Called on WebView's IO threads for every subresource;
+     * {@code policing} is {@link #policesSubresourcesOf} for the page the
+     * requesting WebView is on.
+     */
+    public WebResourceResponse intercept(WebResourceRequest request, boolean policing) {
+        Uri url = request.getUrl();
+        if (request.isForMainFrame()) {
+            if (allows(url, Type.DOCUMENT)) {
+                return null;
+            }
+        } else {
+            Type type = typeOf(request);
+            if (!policing || allows(url, type)) {
+                return null;
+            }
+        }
+        Log.d(TAG, "Blocked " + url.getHost() + url.getPath());
+        return new WebResourceResponse("text/plain", "utf-8", 403, "Blocked",
+            Collections.<String, String>emptyMap(), new ByteArrayInputStream(new byte[0]));
+    }
+
+    boolean allows(Uri url, Type type) {
+        String scheme = url.getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            // data:, blob: and the like never leave the device
+            return true;
+        }
+        checked.incrementAndGet();
+        if ((allowedTypes(url.getHost()) & type.bit()) != 0) {
+            return true;
+        }
+        blocked.incrementAndGet(type.ordinal());
+        estimatedBytesSaved.addAndGet(type.typicalBytes);
+        return false;
+    }
+
+    private int allowedTypes(String host) {
+        if (host == null) {
+            return 0;
+        }
+        synchronized (decisions) {
+            Integer cached = decisions.get(host);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+        Integer rule = rules.match(host);
+        int types = rule != null ? rule : 0;
+        synchronized (decisions) {
+            decisions.put(host, types);
+        }
+        return types;
+    }
+
+    static Type typeOf(WebResourceRequest request) {
+        if (request.isForMainFrame()) {
+            return Type.DOCUMENT;
+        }
+        String path = request.getUrl().getPath();
+        if (path != null) {
+            int dot = path.lastIndexOf('.');
+            if (dot > path.lastIndexOf('/')) {
+                switch (path.substring(dot + 1).toLowerCase(Locale.ROOT)) {
+                    case "js":
+                    case "mjs":
+                        return Type.SCRIPT;
+                    case "css":
+                        return Type.STYLE;
+                    case "png":
+                    case "jpg":
+                    case "jpeg":
+                    case "gif":
+                    case "webp":
+                    case "svg":
+                    case "ico":
+                        return Type.IMAGE;
+                    case "woff":
+                    case "woff2":
+                    case "ttf":
+                    case "otf":
+                        return Type.FONT;
+                    case "mp4":
+                    case "webm":
+                    case "mp3":
+                    case "ogg":
+                        return Type.MEDIA;
+                    default:
+                        break;
+                }
+            }
+        }
+        // No telling extension: fall back to what the WebView said it accepts
+        String accept = null;
+        for (Map.Entry<String, String> h : request.getRequestHeaders().entrySet()) {
+            if ("accept".equalsIgnoreCase(h.getKey())) {
+                accept = h.getValue();
+                break;
+            }
+        }
+        if (accept != null) {
+            if (accept.startsWith("text/html")) return Type.FRAME;
+            if (accept.startsWith("image/")) return Type.IMAGE;
+            if (accept.startsWith("text/css")) return Type.STYLE;
+        }
+        return Type.OTHER;
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        long total = 0;
+        sb.append("{\"blocked\":{");
+        Type[] types = Type.values();
+        for (int i = 0; i < types.length; i++) {
+            long n = blocked.get(i);
+            total += n;
+            if (i > 0) sb.append(',');
+            sb.append('"').append(types[i].label).append("\":").append(n);
+        }
+        int cached;
+        synchronized (decisions) {
+            cached = decisions.size();
+        }
+        sb.append("},\"blockedTotal\":").append(total)
+            .append(",\"checked\":").append(checked.get())
+            .append(",\"cacheHits\":").append(cacheHits.get())
+            .append(",\"cachedHosts\":").append(cached)
+            .append(",\"estimatedBytesSaved\":").append(estimatedBytesSaved.get())
+            .append('}');
+        return sb.toString();
+    }
+}
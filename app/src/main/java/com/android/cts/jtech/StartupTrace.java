@@ -0,0 +1,93 @@
+package com.android.cts.jtech;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Startup milestones of the first page load in a process; the last few traces
+ * are kept in {@link Config} so runs can be compared across releases and
+ * devices.
+ *
+ * PushService keeps the process alive, so most launches find it already
+ * running. A trace is "cold" only when the activity was created within
+ * {@link #COLD_START_WINDOW_MS} of the process starting, and is then measured
+ * from process start; otherwise it is measured from activity_create and
+ * leaves out anything marked before it.
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final int MAX_TRACES = 10;
+    // A process started for the launch creates the activity well within this
+    private static final long COLD_START_WINDOW_MS = 5000;
+
+    // Before N there is no process start time; class load is close enough
+    private static final long processStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+        ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+    // Milestone -> elapsedRealtime
+    private static final Map<String, Long> marks = new LinkedHashMap<>();
+    private static boolean finished;
+
+    private StartupTrace() {}
+
+    /** Records the first occurrence of a milestone. Any thread. */
+    public static synchronized void mark(String name) {
+        if (finished || marks.containsKey(name)) return;
+        marks.put(name, SystemClock.elapsedRealtime());
+    }
+
+    /** Ends the trace for this process and stores it. */
+    public static void finish(Context context) {
+        JSONObject trace = new JSONObject();
+        synchronized (StartupTrace.class) {
+            if (finished) return;
+            finished = true;
+            try {
+                trace.put("at", System.currentTimeMillis());
+                trace.put("sdk", Build.VERSION.SDK_INT);
+                Long created = marks.get("activity_create");
+                boolean cold = created == null || created - processStart <= COLD_START_WINDOW_MS;
+                long origin = cold ? processStart : created;
+                trace.put("cold", cold);
+                for (Map.Entry<String, Long> e : marks.entrySet()) {
+                    if (e.getValue() >= origin) {
+                        trace.put(e.getKey(), e.getValue() - origin);
+                    }
+                }
+            } catch (JSONException ignored) {
+            }
+        }
+        Log.i(TAG, "Startup: " + trace);
+
+        Config config = Config.get(context);
+        JSONArray kept = new JSONArray();
+        JSONArray old = parse(config.snapshot().startupTraces);
+        for (int i = Math.max(0, old.length() - (MAX_TRACES - 1)); i < old.length(); i++) {
+            kept.put(old.opt(i));
+        }
+        kept.put(trace);
+        config.edit().putString(Config.KEY_STARTUP_TRACES, kept.toString()).apply();
+    }
+
+    /** Stored traces, oldest first, as a JSON array. */
+    public static String history(Context context) {
+        return Config.get(context).snapshot().startupTraces;
+    }
+
+    private static JSONArray parse(String json) {
+        try {
+            return new JSONArray(json);
+        } catch (JSONException e) {
+            return new JSONArray();
+        }
+    }
+}
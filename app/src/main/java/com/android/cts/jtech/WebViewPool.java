@@ -0,0 +1,381 @@
+package com.android.cts.jtech;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+import android.widget.FrameLayout;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A few WebViews kept side by side as tabs, so going from a thread to the
+ * inbox and back is a visibility flip instead of a reload.
+ *
+ * Only so many tabs stay rendered ("live"): the limit comes from a share of
+ * the app's memory class and an estimate of what one rendered forum page
+ * costs. When it is exceeded the least recently used background tab is
+ * evicted: its history is captured into its {@link WebViewSession} and the
+ * WebView destroyed. Showing it again builds a new WebView from that state,
+ * which costs a page load but keeps the back stack and scroll position.
+ *
+ * Main thread only, except {@link #toJson}.
+ */
+class WebViewPool {
+    private static final String TAG = "WebViewPool";
+    // Rough cost of one rendered forum page, app heap and renderer together
+    static final int MB_PER_LIVE_TAB = 24;
+    static final int MAX_LIVE = 4;
+    // Evicted tabs beyond this are forgotten altogether
+    static final int MAX_TABS = 8;
+    static final int DEFAULT_BUDGET_PERCENT = 40;
+    static final int MIN_BUDGET_PERCENT = 10;
+    static final int MAX_BUDGET_PERCENT = 75;
+
+    interface Host {
+        /** Creates and configures a WebView (and its bridge channel) for {@code tab}. */
+        WebView createWebView(Tab tab);
+
+        /** {@code tab} is now the visible one. */
+        void onTabShown(Tab tab);
+    }
+
+    static final class Tab {
+        final int id;
+        final Tab opener;
+        final WebViewSession session;
+        WebView view;
+        BridgeChannel channel;
+        // Last finished URL; readable off the main thread
+        volatile String url;
+        long lastUsed;
+
+        Tab(int id, Tab opener, WebViewSession session) {
+            this.id = id;
+            this.opener = opener;
+            this.session = session;
+        }
+
+        boolean isLive() {
+            return view != null;
+        }
+    }
+
+    private final Context context;
+    private final ViewGroup container;
+    private final Host host;
+    private final int memoryClassMb;
+    // Guarded by this; the main thread is the only writer
+    private final List<Tab> tabs = new ArrayList<>();
+    private Tab current;
+    private int nextId = 1;
+    private int maxLive;
+    private int budgetPercent;
+
+    private int switches;
+    private int warmSwitches;
+    private int restores;
+    private int evictions;
+
+    WebViewPool(Context context, ViewGroup container, Host host, int budgetPercent) {
+        this.context = context;
+        this.container = container;
+        this.host = host;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        memoryClassMb = am.getMemoryClass();
+        setBudgetPercent(budgetPercent, am.isLowRamDevice());
+    }
+
+    /** Changes the share of the memory class given to live tabs, evicting if it shrank. */
+    void setBudgetPercent(int percent) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        setBudgetPercent(percent, am.isLowRamDevice());
+        enforceBudget();
+    }
+
+    private synchronized void setBudgetPercent(int percent, boolean lowRam) {
+        budgetPercent = Math.max(MIN_BUDGET_PERCENT, Math.min(MAX_BUDGET_PERCENT, percent));
+        int live = memoryClassMb * budgetPercent / 100 / MB_PER_LIVE_TAB;
+        maxLive = lowRam ? 1 : Math.max(1, Math.min(MAX_LIVE, live));
+    }
+
+    Tab current() {
+        return current;
+    }
+
+    /**
+     * Opens a new, empty tab and shows it; the caller loads or restores a
+     * page into it. {@code opener} is where back returns to once the new
+     * tab's own history is exhausted.
+     */
+    Tab add(Tab opener, WebViewSession session) {
+        Tab tab;
+        synchronized (this) {
+            tab = new Tab(nextId++, opener, session);
+            tabs.add(tab);
+        }
+        attach(tab);
+        show(tab);
+        while (tabs.size() > MAX_TABS) {
+            close(leastRecentlyUsed(false));
+        }
+        return tab;
+    }
+
+    /** The tab showing {@code url}, ignoring the fragment, or null. */
+    Tab find(String url) {
+        String wanted = stripFragment(url);
+        for (Tab tab : tabs) {
+            String tabUrl = tab.url != null ? tab.url : tab.session.url();
+            if (tabUrl != null && stripFragment(tabUrl).equals(wanted)) {
+                return tab;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return tabs.size();
+    }
+
+    Tab byId(int id) {
+        for (Tab tab : tabs) {
+            if (tab.id == id) {
+                return tab;
+            }
+        }
+        return null;
+    }
+
+    /** Brings {@code tab} to the front, rebuilding it from its session if it was evicted. */
+    void show(Tab tab) {
+        if (tab == current) {
+            return;
+        }
+        Tab previous = current;
+        if (tab.isLive()) {
+            warmSwitches++;
+        } else {
+            attach(tab);
+            if (tab.session.restore(tab.view)) {
+                restores++;
+            }
+        }
+        switches++;
+        if (previous != null && previous.isLive()) {
+            // Kept rendered but quiet: no timers, no bridge pushes
+            previous.session.capture(previous.view);
+            previous.view.onPause();
+            previous.view.setVisibility(View.GONE);
+            previous.channel.stop();
+        }
+        tab.view.setVisibility(View.VISIBLE);
+        tab.view.onResume();
+        tab.channel.start();
+        tab.lastUsed = System.nanoTime();
+        current = tab;
+        host.onTabShown(tab);
+        enforceBudget();
+    }
+
+    /**
+     * Goes back in the current tab, or to the tab it was opened from.
+     * Returns false if there is nowhere to go back to.
+     */
+    boolean back() {
+        if (current == null) {
+            return false;
+        }
+        if (current.isLive() && current.view.canGoBack()) {
+            current.view.goBack();
+            return true;
+        }
+        Tab opener = current.opener;
+        if (opener != null && tabs.contains(opener)) {
+            Tab done = current;
+            show(opener);
+            close(done);
+            return true;
+        }
+        return false;
+    }
+
+    /** Closes {@code tab} for good; closing the current tab shows its opener or the most recent one. */
+    void close(Tab tab) {
+        if (tab == null) {
+            return;
+        }
+        detach(tab);
+        synchronized (this) {
+            tabs.remove(tab);
+        }
+        if (tab == current) {
+            current = null;
+            Tab next = tab.opener != null && tabs.contains(tab.opener) ? tab.opener : mostRecentlyUsed();
+            if (next != null) {
+                show(next);
+            }
+        }
+    }
+
+    /**
+     * Keeps {@code tab} as saved state only. {@code rendererAlive} is false
+     * when its renderer is already gone, in which case the last captured
+     * state is used as it is.
+     */
+    void evict(Tab tab, boolean rendererAlive) {
+        if (!tab.isLive()) {
+            return;
+        }
+        if (rendererAlive) {
+            tab.session.capture(tab.view);
+        }
+        detach(tab);
+        evictions++;
+        Log.d(TAG, "Evicted tab " + tab.id + " (" + tab.url + ")");
+    }
+
+    /** Evicts every live tab but the current one; returns how many. */
+    int evictBackground() {
+        int n = 0;
+        for (Tab tab : new ArrayList<>(tabs)) {
+            if (tab != current && tab.isLive()) {
+                evict(tab, true);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** Swaps the current tab's dead WebView for a fresh, empty one. */
+    void recreate(Tab tab) {
+        detach(tab);
+        attach(tab);
+        if (tab == current) {
+            tab.view.setVisibility(View.VISIBLE);
+            tab.channel.start();
+            host.onTabShown(tab);
+        }
+    }
+
+    /** The tab a renderer-gone callback for {@code view} refers to, or null if none owns it. */
+    Tab owner(WebView view) {
+        for (Tab tab : tabs) {
+            if (tab.view == view) {
+                return tab;
+            }
+        }
+        return null;
+    }
+
+    void destroyAll() {
+        for (Tab tab : tabs) {
+            detach(tab);
+        }
+        synchronized (this) {
+            tabs.clear();
+        }
+        current = null;
+    }
+
+    private void enforceBudget() {
+        int live = 0;
+        for (Tab tab : tabs) {
+            if (tab.isLive()) live++;
+        }
+        while (live > maxLive) {
+            Tab victim = leastRecentlyUsed(true);
+            if (victim == null) {
+                break;
+            }
+            evict(victim, true);
+            live--;
+        }
+    }
+
+    /** The least recently used tab other than the current, optionally only among live ones. */
+    private Tab leastRecentlyUsed(boolean liveOnly) {
+        Tab oldest = null;
+        for (Tab tab : tabs) {
+            if (tab == current || (liveOnly && !tab.isLive())) {
+                continue;
+            }
+            if (oldest == null || tab.lastUsed < oldest.lastUsed) {
+                oldest = tab;
+            }
+        }
+        return oldest;
+    }
+
+    private Tab mostRecentlyUsed() {
+        Tab newest = null;
+        for (Tab tab : tabs) {
+            if (tab != current && (newest == null || tab.lastUsed > newest.lastUsed)) {
+                newest = tab;
+            }
+        }
+        return newest;
+    }
+
+    private void attach(Tab tab) {
+        tab.view = host.createWebView(tab);
+        tab.view.setVisibility(View.GONE);
+        container.addView(tab.view, new FrameLayout.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.MATCH_PARENT
+        ));
+    }
+
+    private void detach(Tab tab) {
+        if (tab.channel != null) {
+            tab.channel.shutdown();
+            tab.channel = null;
+        }
+        if (tab.view != null) {
+            container.removeView(tab.view);
+            tab.view.destroy();
+            tab.view = null;
+        }
+    }
+
+    private static String stripFragment(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+
+    synchronized String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            JSONArray list = new JSONArray();
+            int live = 0;
+            for (Tab tab : tabs) {
+                JSONObject t = new JSONObject();
+                t.put("id", tab.id);
+                t.put("url", tab.url != null ? tab.url : tab.session.url());
+                t.put("live", tab.isLive());
+                t.put("current", tab == current);
+                list.put(t);
+                if (tab.isLive()) live++;
+            }
+            json.put("tabs", list);
+            json.put("live", live);
+            json.put("maxLive", maxLive);
+            json.put("memoryClassMb", memoryClassMb);
+            json.put("budgetPercent", budgetPercent);
+            json.put("switches", switches);
+            json.put("warmSwitches", warmSwitches);
+            json.put("restores", restores);
+            json.put("evictions", evictions);
+            return json.toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+}
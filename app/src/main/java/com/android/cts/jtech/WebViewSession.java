@@ -0,0 +1,121 @@
+package com.android.cts.jtech;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.webkit.WebBackForwardList;
+import android.webkit.WebView;
+
+/**
+ * The last known state of a WebView: its back/forward list (from
+ * {@link WebView#saveState}), current URL and scroll position.
+ *
+ * The state is captured while the WebView is healthy, on every finished page
+ * and when the activity goes to the background, so it is still available when
+ * the renderer has already died and the WebView can no longer be asked. The
+ * scroll position is tracked live because it changes between captures.
+ */
+class WebViewSession {
+    private static final String KEY_STATE = "webview_state";
+    private static final String KEY_URL = "webview_url";
+    private static final String KEY_SCROLL_Y = "webview_scroll_y";
+    // Saved instance state shares a ~1 MB binder transaction with the rest of
+    // the activity; a longer history than this is reduced to the URL
+    private static final int MAX_STATE_BYTES = 200 * 1024;
+
+    private Bundle state;
+    private String url;
+    private int scrollY;
+    // Scroll to apply once the restored page has loaded
+    private String pendingScrollUrl;
+    private int pendingScrollY;
+
+    /** Starts following {@code webView}'s scroll position. */
+    void track(WebView webView) {
+        webView.setOnScrollChangeListener((v, x, y, oldX, oldY) -> scrollY = y);
+    }
+
+    /** Snapshots history and URL. Only call while the renderer is alive. */
+    void capture(WebView webView) {
+        WebBackForwardList list = webView.copyBackForwardList();
+        if (list.getSize() == 0) {
+            return;
+        }
+        Bundle b = new Bundle();
+        if (webView.saveState(b) != null) {
+            state = b;
+        }
+        url = webView.getUrl();
+        scrollY = webView.getScrollY();
+    }
+
+    boolean isEmpty() {
+        return state == null && url == null;
+    }
+
+    String url() {
+        return url;
+    }
+
+    void writeTo(Bundle outState) {
+        if (state != null && sizeOf(state) <= MAX_STATE_BYTES) {
+            outState.putBundle(KEY_STATE, state);
+        }
+        outState.putString(KEY_URL, url);
+        outState.putInt(KEY_SCROLL_Y, scrollY);
+    }
+
+    void readFrom(Bundle savedState) {
+        if (savedState == null) {
+            return;
+        }
+        state = savedState.getBundle(KEY_STATE);
+        url = savedState.getString(KEY_URL);
+        scrollY = savedState.getInt(KEY_SCROLL_Y);
+    }
+
+    /**
+     * Loads the session into a fresh WebView: the full history if the saved
+     * state is accepted, otherwise just the last URL. Returns false if there
+     * was nothing to restore.
+     */
+    boolean restore(WebView webView) {
+        boolean restored = state != null && webView.restoreState(state) != null;
+        if (!restored) {
+            if (url == null) {
+                return false;
+            }
+            webView.loadUrl(url);
+        }
+        pendingScrollUrl = url;
+        pendingScrollY = scrollY;
+        return true;
+    }
+
+    /** Puts the reader back where they were; call from onPageFinished. */
+    void onPageFinished(WebView webView, String pageUrl) {
+        if (pendingScrollUrl == null) {
+            return;
+        }
+        if (pendingScrollUrl.equals(pageUrl) && pendingScrollY > 0 && webView.getScrollY() == 0) {
+            final int y = pendingScrollY;
+            // After layout, or the page may not be tall enough yet
+            webView.post(() -> webView.scrollTo(0, y));
+        }
+        pendingScrollUrl = null;
+    }
+
+    private static int sizeOf(Bundle b) {
+        Parcel p = Parcel.obtain();
+        try {
+            p.writeBundle(b);
+            return p.dataSize();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /** Drops the saved history, keeping just the URL and scroll position. */
+    void forgetHistory() {
+        state = null;
+    }
+}
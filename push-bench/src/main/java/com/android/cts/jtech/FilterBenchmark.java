@@ -0,0 +1,109 @@
+package com.android.cts.jtech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering: {@link MessageFilter#check} on parsed messages, and the whole
+ * decode stage body (parse, filter, dedupe) as {@link PushDecoder} runs it
+ * per event. There are more distinct messages than the dedupe cache holds,
+ * so every event is new, as in steady traffic. With {@code dedupeFile} the
+ * cache also appends to its on-disk log like the app's does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    // Same as PushMessageHandler
+    private static final int DEDUPE_CAPACITY = 512;
+    private static final int DISTINCT = 8192;
+    private static final Set<String> TOPICS = Collections.singleton("dumbcourse-x7Qp2");
+
+    @Param({"typical", "large"})
+    public String payload;
+
+    @Param({"false", "true"})
+    public boolean dedupeFile;
+
+    private final String[] json = new String[DISTINCT];
+    private final String[] ids = new String[DISTINCT];
+    private final NtfyMessage[] parsed = new NtfyMessage[DISTINCT];
+    private File dir;
+    private MessageFilter filter;
+    private PushDecoder decoder;
+    private int next;
+    private int shown;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < DISTINCT; i++) {
+            json[i] = Payloads.payload(payload, i);
+            ids[i] = "m" + i;
+            parsed[i] = NtfyMessage.parse(json[i]);
+        }
+        dir = Files.createTempDirectory("push-bench").toFile();
+        filter = new MessageFilter(new DedupeCache(DEDUPE_CAPACITY,
+            dedupeFile ? new File(dir, "filter.bin") : null));
+        MessageFilter decoderFilter = new MessageFilter(new DedupeCache(DEDUPE_CAPACITY,
+            dedupeFile ? new File(dir, "decoder.bin") : null));
+        decoder = new PushDecoder("bench-decoder", decoderFilter, new PushDecoder.Output() {
+            @Override
+            public NtfyMessage parseFallback(String json) {
+                return null;
+            }
+
+            @Override
+            public void onEventId(String id) {
+            }
+
+            @Override
+            public void onMessage(NtfyMessage msg, String title, String id, long receivedAt) {
+                shown++;
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public MessageFilter.Verdict check() {
+        int i = next++ & (DISTINCT - 1);
+        return filter.check(parsed[i], ids[i], TOPICS);
+    }
+
+    @Benchmark
+    public int decode() {
+        int i = next++ & (DISTINCT - 1);
+        decoder.decode(json[i], ids[i], TOPICS, 0);
+        return shown;
+    }
+}
@@ -0,0 +1,58 @@
+package com.android.cts.jtech;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Field extraction: {@link NtfyMessage#parse} against building a full
+ * org.json tree and reading the fields with optString, as the decoder did
+ * before and still does for payloads the fast path rejects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParseBenchmark {
+    private static final int DISTINCT = 64;
+
+    @Param({"typical", "large"})
+    public String payload;
+
+    private final String[] payloads = new String[DISTINCT];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < DISTINCT; i++) {
+            payloads[i] = Payloads.payload(payload, i);
+        }
+    }
+
+    @Benchmark
+    public NtfyMessage fastPath() {
+        return NtfyMessage.parse(payloads[next++ & (DISTINCT - 1)]);
+    }
+
+    @Benchmark
+    public NtfyMessage orgJson() throws JSONException {
+        JSONObject obj = new JSONObject(payloads[next++ & (DISTINCT - 1)]);
+        return new NtfyMessage(obj.optString("id", ""), obj.optString("event", ""),
+            obj.optString("topic", ""), obj.optString("title", ""),
+            obj.optString("message", ""), obj.optString("click", ""));
+    }
+}
@@ -0,0 +1,60 @@
+package com.android.cts.jtech;
+
+import java.nio.charset.StandardCharsets;
+
+/** ntfy payloads and streams shaped like the forum's traffic. */
+final class Payloads {
+    /** Messages per generated stream; benchmarks report per event. */
+    static final int EVENTS = 256;
+    // One keepalive per this many messages
+    private static final int KEEPALIVE_EVERY = 16;
+
+    private Payloads() {}
+
+    /** A reply notification as the forum sends it. */
+    static String typical(int n) {
+        return "{\"id\":\"m" + n + "Xk2fQa\",\"time\":1729250000,\"expires\":1729293200,\"event\":\"message\""
+            + ",\"topic\":\"dumbcourse-x7Qp2\",\"title\":\"user" + (n % 97) + " replied in a thread you follow\""
+            + ",\"message\":\"Thanks, that fixed it. I had the dpad mapping backwards in the settings; "
+            + "posting the config here in case someone else runs into it (#" + n + ")\""
+            + ",\"click\":\"https://forums.jtechforums.org/dumb/t/dpad-mapping/" + (1000 + n % 40) + "/" + n + "\""
+            + ",\"priority\":3}";
+    }
+
+    /** A message with the fields we skip: tags, an attachment, actions and a long body. */
+    static String large(int n) {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 2000) {
+            body.append("Long quoted reply with \\\"escapes\\\", unicode \\u00e9\\u00e8 and line\\nbreaks. ");
+        }
+        return "{\"id\":\"m" + n + "Lg9zT\",\"time\":1729250000,\"expires\":1729293200,\"event\":\"message\""
+            + ",\"topic\":\"dumbcourse-x7Qp2\",\"tags\":[\"speech_balloon\",\"forum\",\"reply\",\"watching\"]"
+            + ",\"priority\":4,\"attachment\":{\"name\":\"screenshot.png\",\"type\":\"image/png\",\"size\":284113"
+            + ",\"expires\":1729271600,\"url\":\"https://ntfy.example/file/m" + n + "Lg9zT.png\"}"
+            + ",\"actions\":[{\"id\":\"a1\",\"action\":\"view\",\"label\":\"Open thread\",\"clear\":true"
+            + ",\"url\":\"https://forums.jtechforums.org/dumb/t/dpad-mapping/1234\"},{\"id\":\"a2\","
+            + "\"action\":\"http\",\"label\":\"Mark read\",\"method\":\"POST\",\"url\":\"https://forums.jtechforums.org/"
+            + "dumb/read\",\"headers\":{\"X-Requested-With\":\"jtech\"},\"body\":\"{\\\"topic\\\":1234}\"}]"
+            + ",\"title\":\"user" + (n % 97) + " quoted you\",\"message\":\"" + body + " #" + n + "\""
+            + ",\"click\":\"https://forums.jtechforums.org/dumb/t/dpad-mapping/" + (1000 + n % 40) + "/" + n + "\"}";
+    }
+
+    static String payload(String kind, int n) {
+        return "large".equals(kind) ? large(n) : typical(n);
+    }
+
+    /** {@link #EVENTS} messages as an ntfy SSE stream, with keepalives in between. */
+    static byte[] sseStream(String kind) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("event: open\ndata: {\"id\":\"o1\",\"time\":1729250000,\"event\":\"open\"}\n\n");
+        for (int i = 0; i < EVENTS; i++) {
+            if (i % KEEPALIVE_EVERY == 0) {
+                sb.append("event: keepalive\ndata: {\"id\":\"k").append(i)
+                    .append("\",\"time\":1729250000,\"event\":\"keepalive\"}\n\n");
+            }
+            sb.append("id: m").append(i).append('\n');
+            sb.append("data: ").append(payload(kind, i)).append("\n\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
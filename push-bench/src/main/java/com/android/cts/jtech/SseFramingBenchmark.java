@@ -0,0 +1,104 @@
+package com.android.cts.jtech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SSE framing: {@link SseParser} against the readLine loop PushService used
+ * before it. Both read the same stream in socket-sized chunks; results are
+ * per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseFramingBenchmark {
+    // What one socket read typically returns
+    private static final int CHUNK = 8192;
+
+    @Param({"typical", "large"})
+    public String payload;
+
+    private byte[] stream;
+    private SseParser parser;
+    private int events;
+    private int dataChars;
+
+    @Setup
+    public void setUp() {
+        stream = Payloads.sseStream(payload);
+        parser = new SseParser(new SseParser.Listener() {
+            @Override
+            public void onEvent(String type, String data, String lastEventId) {
+                if ("message".equals(type)) {
+                    events++;
+                    dataChars += data.length();
+                }
+            }
+
+            @Override
+            public void onRetry(long retryMs) {
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Payloads.EVENTS)
+    public int sseParser() {
+        // One parser per connection, as in SseTransport
+        parser.reset();
+        events = 0;
+        dataChars = 0;
+        for (int off = 0; off < stream.length; off += CHUNK) {
+            parser.feed(stream, off, Math.min(CHUNK, stream.length - off));
+        }
+        return events + dataChars;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Payloads.EVENTS)
+    public int readLineLoop() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(stream), StandardCharsets.UTF_8));
+        int count = 0;
+        int chars = 0;
+        String line;
+        StringBuilder eventData = new StringBuilder();
+        String eventType = "message";
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("event:")) {
+                eventType = line.substring(6).trim();
+            } else if (line.startsWith("data:")) {
+                eventData.append(line.substring(5).trim());
+            } else if (line.isEmpty() && eventData.length() > 0) {
+                if ("message".equals(eventType)) {
+                    String data = eventData.toString();
+                    count++;
+                    chars += data.length();
+                }
+                eventData.setLength(0);
+                eventType = "message";
+            }
+        }
+        return count + chars;
+    }
+}
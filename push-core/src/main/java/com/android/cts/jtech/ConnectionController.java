@@ -0,0 +1,262 @@
+package com.android.cts.jtech;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the push connection's worker thread: starting it, reconnecting with
+ * backoff, applying configuration changes and shutting it down.
+ *
+ * Configuration changes go through a generation counter. The worker reads
+ * the generation before the settings and only registers a connection if the
+ * generation is still the same; {@link #reconfigure()} bumps it and closes
+ * whatever connection is registered. Either way, a connection built from
+ * settings older than the latest change never survives, with no window in
+ * between.
+ *
+ * {@link #shutdown} closes the transport (interrupting alone does not
+ * unblock a socket read) and joins the worker for a bounded time, so
+ * repeated start/stop cycles do not pile up threads or sockets.
+ *
+ * @param <S> the settings a connection is made with
+ */
+public class ConnectionController<S> {
+    private static final String TAG = "ConnectionController";
+
+    public interface Host<S> {
+        /** Settings to connect with now, or null if there is nothing to connect to yet. */
+        S settings();
+
+        PushTransport createTransport(S settings);
+
+        /**
+         * Streams over {@code transport} until it ends. Returns true if the
+         * connection stayed up long enough to count as healthy.
+         */
+        boolean stream(S settings, PushTransport transport, Connection connection);
+
+        /** Server-requested reconnect delay, or -1. */
+        long serverRetryMs();
+    }
+
+    /** One registered connection; stale once the configuration has moved on. */
+    public static final class Connection {
+        private final ConnectionController<?> owner;
+        final int generation;
+        final PushTransport transport;
+
+        Connection(ConnectionController<?> owner, int generation, PushTransport transport) {
+            this.owner = owner;
+            this.generation = generation;
+            this.transport = transport;
+        }
+
+        /** False once a newer configuration or a shutdown has replaced this connection. */
+        public boolean isCurrent() {
+            return generation == owner.generation;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        volatile boolean stopped;
+
+        @Override
+        public void run() {
+            LIVE_WORKERS.incrementAndGet();
+            try {
+                loop(this);
+            } finally {
+                LIVE_WORKERS.decrementAndGet();
+            }
+        }
+    }
+
+    // Worker threads alive in this process, across all controllers
+    private static final AtomicInteger LIVE_WORKERS = new AtomicInteger();
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    private final Host<S> host;
+    private final ReconnectScheduler scheduler;
+    private final Object lock = new Object();
+    // Written under lock
+    private volatile int generation;
+    private Connection current;
+    private Worker worker;
+    private Thread thread;
+
+    public final AtomicLong starts = new AtomicLong();
+    public final AtomicLong reconfigurations = new AtomicLong();
+    public final AtomicLong staleDiscarded = new AtomicLong();
+    public final AtomicLong joinTimeouts = new AtomicLong();
+
+    public ConnectionController(Host<S> host, ReconnectScheduler scheduler) {
+        this.host = host;
+        this.scheduler = scheduler;
+    }
+
+    public static int liveWorkers() {
+        return LIVE_WORKERS.get();
+    }
+
+    /** Starts the worker unless it is already running. */
+    public void start() {
+        synchronized (lock) {
+            if (worker != null) {
+                return;
+            }
+            worker = new Worker();
+            thread = new Thread(worker, "PushConnection-" + THREAD_IDS.incrementAndGet());
+            starts.incrementAndGet();
+            thread.start();
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (lock) {
+            return worker != null;
+        }
+    }
+
+    /**
+     * Makes the next connection use the latest settings: the current one, if
+     * any, is closed and the worker reconnects without waiting out a backoff.
+     */
+    public void reconfigure() {
+        Connection conn;
+        synchronized (lock) {
+            generation++;
+            conn = current;
+        }
+        reconfigurations.incrementAndGet();
+        if (conn != null) {
+            PushLog.i(TAG, "Closing connection to pick up new settings");
+            conn.transport.close();
+        }
+        scheduler.wake();
+    }
+
+    /** Cuts a backoff wait short, e.g. when the network comes back. */
+    public void wake() {
+        scheduler.wake();
+    }
+
+    /**
+     * Stops the worker and waits up to {@code timeoutMs} for it to end.
+     * Returns false if it was still running when the time was up; it will
+     * still end at its next check.
+     */
+    public boolean shutdown(long timeoutMs) {
+        Thread t;
+        Connection conn;
+        synchronized (lock) {
+            if (worker == null) {
+                return true;
+            }
+            worker.stopped = true;
+            generation++;
+            conn = current;
+            current = null;
+            t = thread;
+            worker = null;
+            thread = null;
+        }
+        if (conn != null) {
+            conn.transport.close();
+        }
+        scheduler.wake();
+        t.interrupt();
+        try {
+            t.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            joinTimeouts.incrementAndGet();
+            PushLog.w(TAG, t.getName() + " still running " + timeoutMs + " ms after shutdown");
+            return false;
+        }
+        return true;
+    }
+
+    private void loop(Worker w) {
+        while (!w.stopped) {
+            try {
+                int gen = generation;
+                S settings = host.settings();
+                if (settings == null) {
+                    // Nothing to connect to until a config change or the network wakes us
+                    scheduler.awaitWake();
+                    continue;
+                }
+
+                Connection conn;
+                synchronized (lock) {
+                    if (w.stopped) {
+                        break;
+                    }
+                    if (gen != generation) {
+                        // Changed while we were reading it; read again
+                        staleDiscarded.incrementAndGet();
+                        scheduler.clearWake();
+                        continue;
+                    }
+                    conn = new Connection(this, gen, host.createTransport(settings));
+                    current = conn;
+                }
+
+                boolean healthy;
+                try {
+                    healthy = host.stream(settings, conn.transport, conn);
+                } catch (RuntimeException e) {
+                    if (conn.isCurrent()) {
+                        throw e;
+                    }
+                    // Closing a connection mid-connect can surface as a runtime error from the HTTP stack
+                    healthy = false;
+                } finally {
+                    synchronized (lock) {
+                        if (current == conn) {
+                            current = null;
+                        }
+                    }
+                    conn.transport.close();
+                }
+
+                if (w.stopped) {
+                    break;
+                }
+                if (!conn.isCurrent()) {
+                    // New settings: reconnect straight away. reconfigure() also woke the
+                    // scheduler; clear that so it does not skip the next real backoff
+                    scheduler.clearWake();
+                    continue;
+                }
+                if (healthy) {
+                    scheduler.reset();
+                }
+                long delay = scheduler.nextDelay(host.serverRetryMs());
+                PushLog.i(TAG, "Reconnecting in " + delay + " ms");
+                scheduler.await(delay);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                PushLog.e(TAG, "Connection loop error: " + e.getMessage());
+                if (w.stopped) {
+                    break;
+                }
+                try {
+                    scheduler.await(scheduler.nextDelay(-1));
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public String describe() {
+        return "generation=" + generation + " running=" + isRunning()
+            + " starts=" + starts.get() + " reconfigurations=" + reconfigurations.get()
+            + " staleDiscarded=" + staleDiscarded.get() + " joinTimeouts=" + joinTimeouts.get()
+            + " liveWorkers=" + LIVE_WORKERS.get();
+    }
+}
@@ -0,0 +1,205 @@
+package com.android.cts.jtech;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed-size memory of recently seen messages, keyed by 64-bit hashes.
+ *
+ * Hashes live in a ring (insertion order, for eviction) plus an open-addressing
+ * table (for O(1) lookups), so the footprint is a few KB regardless of uptime.
+ * Eviction is first-in first-out rather than least recently used: ntfy ids
+ * are replayed in publish order from a resume point that only moves forward,
+ * so the oldest entry is also the least likely to come back, and a lookup
+ * never has to rewrite the ring or the log.
+ * New hashes are appended to a small file that is replayed on startup and
+ * compacted once it holds twice the capacity.
+ */
+public class DedupeCache {
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final long[] ring;
+    private final long[] table;
+    private final int mask;
+    private final File file;
+
+    private int ringHead;
+    private int size;
+    private int fileEntries;
+    private DataOutputStream out;
+
+    public DedupeCache(int capacity, File file) {
+        this.capacity = capacity;
+        this.ring = new long[capacity];
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.table = new long[tableSize];
+        this.mask = tableSize - 1;
+        this.file = file;
+    }
+
+    /** Replays the on-disk log. Missing files are treated as empty. */
+    public synchronized void load() throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        long entries = file.length() / 8;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            // Only the newest entries can still be in the ring
+            long skip = Math.max(0, entries - capacity);
+            for (long i = 0; i < skip; i++) {
+                in.readLong();
+            }
+            for (long i = skip; i < entries; i++) {
+                insert(in.readLong());
+            }
+        }
+        fileEntries = (int) Math.min(entries, Integer.MAX_VALUE);
+    }
+
+    public synchronized boolean contains(long hash) {
+        return indexOf(normalize(hash)) >= 0;
+    }
+
+    /**
+     * Records a hash. Returns false if it was already present. The entry is kept
+     * in memory even if writing it to disk fails.
+     */
+    public synchronized boolean add(long hash) throws IOException {
+        hash = normalize(hash);
+        if (indexOf(hash) >= 0) {
+            return false;
+        }
+        insert(hash);
+        append(hash);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try { out.close(); } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 code units of each part, with a separator between parts. */
+    public static long hash(String... parts) {
+        long h = 0xcbf29ce484222325L;
+        for (String part : parts) {
+            if (part != null) {
+                for (int i = 0; i < part.length(); i++) {
+                    h ^= part.charAt(i);
+                    h *= 0x100000001b3L;
+                }
+            }
+            h ^= 0x1F;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private void append(long hash) throws IOException {
+        if (file == null) {
+            return;
+        }
+        if (fileEntries >= capacity * 2) {
+            compact();
+            return;
+        }
+        if (out == null) {
+            out = new DataOutputStream(new FileOutputStream(file, true));
+        }
+        out.writeLong(hash);
+        out.flush();
+        fileEntries++;
+    }
+
+    private void compact() throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream tmpOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            // Oldest first, so a later load() rebuilds the same eviction order
+            int start = size < capacity ? 0 : ringHead;
+            for (int i = 0; i < size; i++) {
+                tmpOut.writeLong(ring[(start + i) % capacity]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        fileEntries = size;
+    }
+
+    private void insert(long hash) {
+        hash = normalize(hash);
+        if (indexOf(hash) >= 0) {
+            return;
+        }
+        if (size == capacity) {
+            remove(ring[ringHead]);
+        } else {
+            size++;
+        }
+        ring[ringHead] = hash;
+        ringHead = (ringHead + 1) % capacity;
+
+        int i = slot(hash);
+        while (table[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[i] = hash;
+    }
+
+    private void remove(long hash) {
+        int i = indexOf(hash);
+        if (i < 0) {
+            return;
+        }
+        // Backward-shift deletion keeps linear probe chains intact without tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long candidate = table[j];
+            if (candidate == EMPTY) {
+                break;
+            }
+            int home = slot(candidate);
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                table[i] = candidate;
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+    }
+
+    private int indexOf(long hash) {
+        int i = slot(hash);
+        while (true) {
+            long v = table[i];
+            if (v == hash) return i;
+            if (v == EMPTY) return -1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static long normalize(long hash) {
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,85 @@
+package com.android.cts.jtech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+
+/**
+ * ntfy's newline-delimited JSON stream (/json). Each line is one complete
+ * event, so framing is a single scan for '\n' over a reusable byte buffer.
+ */
+public class JsonStreamTransport implements PushTransport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int READ_SIZE = 8192;
+
+    private volatile HttpURLConnection connection;
+    private volatile boolean closed;
+
+    @Override
+    public void connect(String server, String topicPath, String sinceId, int readTimeoutMs,
+            Listener listener) throws IOException {
+        String jsonUrl = server + "/" + topicPath + "/json";
+        if (sinceId != null) {
+            jsonUrl += "?since=" + URLEncoder.encode(sinceId, "UTF-8");
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(jsonUrl).openConnection();
+        connection = conn;
+        InputStream in = null;
+        try {
+            if (closed) return;
+            conn.setRequestMethod("GET");
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(readTimeoutMs);
+
+            in = conn.getInputStream();
+            listener.onOpen();
+
+            byte[] buf = new byte[READ_SIZE];
+            // Bytes of an incomplete line carried over to the next read
+            int pending = 0;
+            int n;
+            while (!closed && (n = in.read(buf, pending, buf.length - pending)) != -1) {
+                listener.onBytes(n);
+                int end = pending + n;
+                int start = 0;
+                for (int i = pending; i < end; i++) {
+                    if (buf[i] == '\n') {
+                        int lineEnd = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                        if (lineEnd > start) {
+                            listener.onMessage(new String(buf, start, lineEnd - start, UTF_8), "");
+                        }
+                        start = i + 1;
+                    }
+                }
+                pending = end - start;
+                if (pending > 0 && start > 0) {
+                    System.arraycopy(buf, start, buf, 0, pending);
+                }
+                if (pending == buf.length) {
+                    // A single event larger than the buffer
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, bigger, 0, pending);
+                    buf = bigger;
+                }
+            }
+        } finally {
+            connection = null;
+            try { if (in != null) in.close(); } catch (Exception ignored) {}
+            try { conn.disconnect(); } catch (Exception ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        HttpURLConnection conn = connection;
+        if (conn != null) {
+            try { conn.disconnect(); } catch (Exception ignored) {}
+        }
+    }
+}
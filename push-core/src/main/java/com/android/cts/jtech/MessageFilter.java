@@ -0,0 +1,124 @@
+package com.android.cts.jtech;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which ntfy events become notifications: only message events, only
+ * for a topic the connection was subscribed to, with content, not a topic
+ * name echoed back as a connection artifact, and not already seen.
+ */
+public class MessageFilter {
+    private static final String TAG = "MessageFilter";
+    public static final String DEFAULT_TITLE = "JtechForums";
+    // Discourse post links: /t/<slug>/<topic id>/<post number>
+    private static final Pattern THREAD_URL = Pattern.compile("^(.*/t/[^/]+/\\d+)(/\\d+)?/?(\\?.*)?$");
+
+    public enum Verdict {
+        NOTIFY,
+        NOT_A_MESSAGE,
+        UNSUBSCRIBED,
+        EMPTY,
+        TOPIC_ARTIFACT,
+        DUPLICATE
+    }
+
+    // How long an event without an id is compared by content; a repeat after that is news
+    public static final long CONTENT_WINDOW_MS = 5 * 60 * 1000;
+    private static final int CONTENT_CAPACITY = 64;
+
+    private final DedupeCache dedupeCache;
+    private boolean dedupeLoaded;
+    // Content hash -> when it was seen, for events without an id; guarded by this
+    private final LinkedHashMap<Long, Long> recentContent = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > CONTENT_CAPACITY;
+        }
+    };
+
+    public MessageFilter(DedupeCache dedupeCache) {
+        this.dedupeCache = dedupeCache;
+    }
+
+    /** The id to resume from: the transport-level id if there is one, else the one in the body. */
+    public static String eventId(NtfyMessage msg, String sseId) {
+        return sseId.isEmpty() ? msg.id : sseId;
+    }
+
+    public static String title(NtfyMessage msg) {
+        return msg.title.isEmpty() ? DEFAULT_TITLE : msg.title;
+    }
+
+    /**
+     * Checks {@code msg}, delivered as event {@code id} on a connection
+     * subscribed to {@code subscribedTopics}. A message that passes is
+     * remembered, so the same one is a duplicate next time.
+     */
+    public Verdict check(NtfyMessage msg, String id, Set<String> subscribedTopics) {
+        if (!msg.event.isEmpty() && !"message".equals(msg.event)) {
+            return Verdict.NOT_A_MESSAGE;
+        }
+        // Late events for a topic we just dropped are ignored
+        if (!msg.topic.isEmpty() && !subscribedTopics.contains(msg.topic)) {
+            return Verdict.UNSUBSCRIBED;
+        }
+        if (msg.message.isEmpty()) {
+            return Verdict.EMPTY;
+        }
+        if (msg.message.startsWith("dumbcourse-") && msg.message.length() < 50) {
+            return Verdict.TOPIC_ARTIFACT;
+        }
+        // Server replays and reconnect overlaps can deliver a message twice
+        if (id.isEmpty() ? isRecentContent(title(msg), msg.message, msg.click) : isDuplicate(id)) {
+            return Verdict.DUPLICATE;
+        }
+        return Verdict.NOTIFY;
+    }
+
+    /** Whether the id was seen before. Ids are remembered across restarts. */
+    private synchronized boolean isDuplicate(String id) {
+        if (!dedupeLoaded) {
+            dedupeLoaded = true;
+            try {
+                dedupeCache.load();
+            } catch (IOException e) {
+                PushLog.w(TAG, "Could not load dedupe cache: " + e.getMessage());
+            }
+        }
+        try {
+            return !dedupeCache.add(DedupeCache.hash("id", id));
+        } catch (IOException e) {
+            PushLog.w(TAG, "Could not persist dedupe entry: " + e.getMessage());
+            // add() keeps the entry in memory; a failed write means it was new
+            return false;
+        }
+    }
+
+    /**
+     * For events without an id: whether the same title, message and link were
+     * seen within {@link #CONTENT_WINDOW_MS}. The same text can legitimately
+     * come again ("New reply" in the same thread), so this is short-lived and
+     * never persisted.
+     */
+    private synchronized boolean isRecentContent(String title, String message, String click) {
+        long hash = DedupeCache.hash(title, message, click);
+        long now = System.currentTimeMillis();
+        Long seenAt = recentContent.remove(hash);
+        recentContent.put(hash, now);
+        return seenAt != null && now - seenAt < CONTENT_WINDOW_MS;
+    }
+
+    /** Messages about the same forum thread share a key, so they can be batched. */
+    public static String conversationKey(String topic, String clickUrl) {
+        if (clickUrl != null && !clickUrl.isEmpty()) {
+            Matcher m = THREAD_URL.matcher(clickUrl);
+            return "url:" + (m.matches() ? m.group(1) : clickUrl);
+        }
+        return "topic:" + (topic == null ? "" : topic);
+    }
+}
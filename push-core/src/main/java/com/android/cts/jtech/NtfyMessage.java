@@ -0,0 +1,269 @@
+package com.android.cts.jtech;
+
+/**
+ * The handful of ntfy message fields the push pipeline uses.
+ *
+ * {@link #parse(String)} scans the JSON once and only copies out the fields
+ * below. Everything else (attachments, tags, actions, ...) is skipped in place
+ * without allocating. Missing fields are empty strings, as with optString().
+ */
+public class NtfyMessage {
+    public final String id;
+    public final String event;
+    public final String topic;
+    public final String title;
+    public final String message;
+    public final String click;
+
+    public NtfyMessage(String id, String event, String topic, String title, String message, String click) {
+        this.id = id;
+        this.event = event;
+        this.topic = topic;
+        this.title = title;
+        this.message = message;
+        this.click = click;
+    }
+
+    private static final int F_ID = 0;
+    private static final int F_EVENT = 1;
+    private static final int F_TOPIC = 2;
+    private static final int F_TITLE = 3;
+    private static final int F_MESSAGE = 4;
+    private static final int F_CLICK = 5;
+    private static final String[] FIELDS = {"id", "event", "topic", "title", "message", "click"};
+
+    /** Returns null if the input is not a well-formed JSON object. */
+    public static NtfyMessage parse(String json) {
+        Scanner s = new Scanner(json);
+        String[] values = {"", "", "", "", "", ""};
+        try {
+            s.skipWhitespace();
+            s.expect('{');
+            s.skipWhitespace();
+            if (s.peek() == '}') {
+                s.pos++;
+            } else {
+                while (true) {
+                    s.skipWhitespace();
+                    int field = s.readKey();
+                    s.skipWhitespace();
+                    s.expect(':');
+                    s.skipWhitespace();
+                    if (field >= 0) {
+                        values[field] = s.readValueAsString();
+                    } else {
+                        s.skipValue();
+                    }
+                    s.skipWhitespace();
+                    char c = s.next();
+                    if (c == '}') break;
+                    if (c != ',') return null;
+                }
+            }
+            s.skipWhitespace();
+            if (s.pos != json.length()) {
+                return null;
+            }
+        } catch (MalformedException e) {
+            return null;
+        }
+        return new NtfyMessage(values[F_ID], values[F_EVENT], values[F_TOPIC],
+            values[F_TITLE], values[F_MESSAGE], values[F_CLICK]);
+    }
+
+    private static class MalformedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // Shared instance on the cold path; a stack trace would be meaningless
+            return this;
+        }
+    }
+
+    private static class Scanner {
+        private static final MalformedException MALFORMED = new MalformedException();
+
+        final String json;
+        final int length;
+        int pos;
+
+        Scanner(String json) {
+            this.json = json;
+            this.length = json.length();
+        }
+
+        char peek() throws MalformedException {
+            if (pos >= length) throw MALFORMED;
+            return json.charAt(pos);
+        }
+
+        char next() throws MalformedException {
+            if (pos >= length) throw MALFORMED;
+            return json.charAt(pos++);
+        }
+
+        void expect(char c) throws MalformedException {
+            if (next() != c) throw MALFORMED;
+        }
+
+        void skipWhitespace() {
+            while (pos < length) {
+                char c = json.charAt(pos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+                pos++;
+            }
+        }
+
+        /** Reads an object key and returns its index in FIELDS, or -1 if unused. */
+        int readKey() throws MalformedException {
+            expect('"');
+            int start = pos;
+            boolean escaped = false;
+            while (true) {
+                char c = next();
+                if (c == '"') break;
+                if (c == '\\') {
+                    escaped = true;
+                    next();
+                }
+            }
+            int end = pos - 1;
+            if (escaped) {
+                // Never produced by ntfy; decode rather than guess
+                String key = decode(start, end);
+                for (int i = 0; i < FIELDS.length; i++) {
+                    if (FIELDS[i].equals(key)) return i;
+                }
+                return -1;
+            }
+            int len = end - start;
+            for (int i = 0; i < FIELDS.length; i++) {
+                String f = FIELDS[i];
+                if (f.length() == len && json.regionMatches(start, f, 0, len)) return i;
+            }
+            return -1;
+        }
+
+        String readValueAsString() throws MalformedException {
+            char c = peek();
+            if (c == '"') {
+                pos++;
+                int start = pos;
+                boolean escaped = false;
+                while (true) {
+                    char d = next();
+                    if (d == '"') break;
+                    if (d == '\\') {
+                        escaped = true;
+                        next();
+                    }
+                }
+                int end = pos - 1;
+                return escaped ? decode(start, end) : json.substring(start, end);
+            }
+            if (c == 'n') {
+                skipLiteral("null");
+                return "";
+            }
+            // Numbers, booleans and nested values keep their raw JSON, like optString()
+            int start = pos;
+            skipValue();
+            return json.substring(start, pos);
+        }
+
+        void skipValue() throws MalformedException {
+            char c = peek();
+            switch (c) {
+                case '"':
+                    pos++;
+                    while (true) {
+                        char d = next();
+                        if (d == '"') return;
+                        if (d == '\\') next();
+                    }
+                case '{':
+                case '[': {
+                    int depth = 0;
+                    while (true) {
+                        char d = next();
+                        if (d == '"') {
+                            while (true) {
+                                char e = next();
+                                if (e == '"') break;
+                                if (e == '\\') next();
+                            }
+                        } else if (d == '{' || d == '[') {
+                            depth++;
+                        } else if (d == '}' || d == ']') {
+                            if (--depth == 0) return;
+                        }
+                    }
+                }
+                case 't':
+                    skipLiteral("true");
+                    return;
+                case 'f':
+                    skipLiteral("false");
+                    return;
+                case 'n':
+                    skipLiteral("null");
+                    return;
+                default:
+                    if (c != '-' && (c < '0' || c > '9')) throw MALFORMED;
+                    pos++;
+                    while (pos < length) {
+                        char d = json.charAt(pos);
+                        if ((d >= '0' && d <= '9') || d == '.' || d == 'e' || d == 'E'
+                                || d == '+' || d == '-') {
+                            pos++;
+                        } else {
+                            break;
+                        }
+                    }
+            }
+        }
+
+        void skipLiteral(String literal) throws MalformedException {
+            if (!json.startsWith(literal, pos)) throw MALFORMED;
+            pos += literal.length();
+        }
+
+        String decode(int start, int end) throws MalformedException {
+            StringBuilder sb = new StringBuilder(end - start);
+            int i = start;
+            while (i < end) {
+                char c = json.charAt(i++);
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (i >= end) throw MALFORMED;
+                char e = json.charAt(i++);
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (i + 4 > end) throw MALFORMED;
+                        int code = 0;
+                        for (int k = 0; k < 4; k++) {
+                            int digit = Character.digit(json.charAt(i++), 16);
+                            if (digit < 0) throw MALFORMED;
+                            code = (code << 4) | digit;
+                        }
+                        sb.append((char) code);
+                        break;
+                    default:
+                        throw MALFORMED;
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
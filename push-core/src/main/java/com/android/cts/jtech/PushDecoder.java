@@ -0,0 +1,181 @@
+package com.android.cts.jtech;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The decode stage of the push pipeline. The reader (the transport's thread)
+ * only queues raw events; a decoder thread parses them ({@link NtfyMessage}),
+ * runs them through the {@link MessageFilter} and hands the ones to show to
+ * the {@link Output}.
+ *
+ * The queue is a bounded {@link StageQueue} that blocks when full: when
+ * decoding falls behind, the reader stops reading and TCP flow control slows
+ * the server down. Nothing is dropped, so the resume id never moves past an
+ * event that was read but not decoded.
+ */
+public class PushDecoder {
+    private static final String TAG = "PushDecoder";
+    public static final int CAPACITY = 256;
+
+    public interface Output {
+        /** Parses what the fast path does not understand; null to drop the event. */
+        NtfyMessage parseFallback(String json) throws Exception;
+
+        /**
+         * The id of a message event that needs nothing more (a duplicate, or
+         * filtered out). Every message event with an id reaches this or
+         * {@link #onMessage}, in stream order, so a {@link ResumePoint} can follow.
+         */
+        void onEventId(String id);
+
+        /**
+         * A message that passed the filter; {@code id} may be empty. The
+         * stream should only resume past it once it has been shown. Called on
+         * the decoder thread.
+         */
+        void onMessage(NtfyMessage msg, String title, String id, long receivedAt);
+    }
+
+    private static final class RawEvent {
+        final String json;
+        final String sseId;
+        final Set<String> subscribedTopics;
+        final long receivedAt;
+
+        RawEvent(String json, String sseId, Set<String> subscribedTopics, long receivedAt) {
+            this.json = json;
+            this.sseId = sseId;
+            this.subscribedTopics = subscribedTopics;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private final PushStats stats = PushStats.get();
+    private final MessageFilter filter;
+    private final Output output;
+    private final StageQueue<RawEvent> queue = new StageQueue<>("decode", CAPACITY, 0,
+        StageQueue.Overflow.BLOCK, null);
+    private final Thread thread;
+    // Events handed to handle(); decoded (guarded by this) plus dropped catches up when idle
+    private final AtomicLong submitted = new AtomicLong();
+    private long decoded;
+
+    public PushDecoder(String threadName, MessageFilter filter, Output output) {
+        this.filter = filter;
+        this.output = output;
+        stats.addStage(queue);
+        thread = new Thread(this::loop, threadName);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Stops the decoder thread; whatever is still queued is dropped. */
+    public void stop() {
+        thread.interrupt();
+    }
+
+    public StageQueue<?> queue() {
+        return queue;
+    }
+
+    /**
+     * Queues one ntfy JSON event. {@code sseId} is the transport-level event
+     * id, or empty if there is none; {@code receivedAt} is passed through to
+     * the output. Blocks while the decode queue is full.
+     */
+    public void handle(String json, String sseId, Set<String> subscribedTopics, long receivedAt) {
+        stats.eventsReceived.incrementAndGet();
+        submitted.incrementAndGet();
+        queue.offer(new RawEvent(json, sseId, subscribedTopics, receivedAt));
+    }
+
+    private void loop() {
+        while (true) {
+            RawEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            decode(event.json, event.sseId, event.subscribedTopics, event.receivedAt);
+            queue.serviced(start);
+            synchronized (this) {
+                decoded++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every event handed in so far has been decoded (and passed to
+     * the output) or dropped. Returns false if that took longer than
+     * {@code timeoutMs}.
+     */
+    public synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (decoded + queue.dropped() < submitted.get()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /** Parses and filters one event on the calling thread. */
+    void decode(String json, String sseId, Set<String> subscribedTopics, long receivedAt) {
+        try {
+            if (PushLog.isLoggable(TAG, PushLog.VERBOSE)) {
+                PushLog.v(TAG, "Received JSON: " + json);
+            }
+            long parseStart = System.nanoTime();
+            NtfyMessage msg = NtfyMessage.parse(json);
+            if (msg == null) {
+                msg = output.parseFallback(json);
+                if (msg == null) {
+                    stats.eventsFiltered.incrementAndGet();
+                    return;
+                }
+            }
+            stats.parseLatency.record((System.nanoTime() - parseStart) / 1000);
+
+            String id = MessageFilter.eventId(msg, sseId);
+            MessageFilter.Verdict verdict = filter.check(msg, id, subscribedTopics);
+            if (verdict != MessageFilter.Verdict.NOT_A_MESSAGE && verdict != MessageFilter.Verdict.NOTIFY
+                    && !id.isEmpty()) {
+                output.onEventId(id);
+            }
+            switch (verdict) {
+                case NOTIFY:
+                    output.onMessage(msg, MessageFilter.title(msg), id, receivedAt);
+                    return;
+                case DUPLICATE:
+                    PushLog.d(TAG, "Ignoring duplicate message: " + id);
+                    stats.eventsDuplicate.incrementAndGet();
+                    return;
+                case NOT_A_MESSAGE:
+                    PushLog.d(TAG, "Ignoring non-message event: " + msg.event);
+                    break;
+                case UNSUBSCRIBED:
+                    PushLog.d(TAG, "Ignoring message for unsubscribed topic: " + msg.topic);
+                    break;
+                case EMPTY:
+                    PushLog.d(TAG, "Ignoring message with no content");
+                    break;
+                case TOPIC_ARTIFACT:
+                    PushLog.d(TAG, "Ignoring topic name message: " + msg.message);
+                    break;
+            }
+            stats.eventsFiltered.incrementAndGet();
+        } catch (Exception e) {
+            stats.eventsFiltered.incrementAndGet();
+            PushLog.e(TAG, "Failed to parse message: " + e.getMessage());
+        }
+    }
+}
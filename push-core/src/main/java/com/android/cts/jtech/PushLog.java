@@ -0,0 +1,71 @@
+package com.android.cts.jtech;
+
+/**
+ * Logging for push-core, which cannot use android.util.Log. The app routes
+ * it to Log; elsewhere warnings and errors go to stderr.
+ */
+public final class PushLog {
+    // Same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        boolean isLoggable(String tag, int priority);
+
+        void println(int priority, String tag, String msg);
+    }
+
+    private static final Sink STDERR = new Sink() {
+        @Override
+        public boolean isLoggable(String tag, int priority) {
+            return priority >= WARN;
+        }
+
+        @Override
+        public void println(int priority, String tag, String msg) {
+            System.err.println("VDIWE".charAt(priority - VERBOSE) + "/" + tag + ": " + msg);
+        }
+    };
+
+    private static volatile Sink sink = STDERR;
+
+    private PushLog() {}
+
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR;
+    }
+
+    public static boolean isLoggable(String tag, int priority) {
+        return sink.isLoggable(tag, priority);
+    }
+
+    public static void v(String tag, String msg) {
+        log(VERBOSE, tag, msg);
+    }
+
+    public static void d(String tag, String msg) {
+        log(DEBUG, tag, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        log(INFO, tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        log(WARN, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        log(ERROR, tag, msg);
+    }
+
+    private static void log(int priority, String tag, String msg) {
+        Sink s = sink;
+        if (s.isLoggable(tag, priority)) {
+            s.println(priority, tag, msg);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.android.cts.jtech;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and latency histograms for the push pipeline.
+ *
+ * Recording is a few atomic increments with no locks or allocation, so it is
+ * safe to call on every event. Snapshots are only built when someone asks via
+ * {@link #toJson()} or {@link #dump(PrintWriter)}.
+ */
+public class PushStats {
+
+    public enum Reconnect {
+        ERROR("error"),
+        STALE("stale"),
+        SERVER_CLOSED("server_closed"),
+        RECONFIGURED("reconfigured"),
+        NETWORK("network");
+
+        final String label;
+
+        Reconnect(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Log2-bucketed histogram; bucket i counts values below 2^i. */
+    public static class Histogram {
+        private static final int BUCKETS = 48;
+        private final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String unit) {
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) break;
+            }
+        }
+
+        public long count() {
+            return count.get();
+        }
+
+        /** Upper bound of the bucket holding the given percentile. */
+        public long percentile(double p) {
+            long total = count.get();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void appendJson(StringBuilder sb) {
+            long n = count.get();
+            sb.append("{\"unit\":\"").append(unit).append('"')
+                .append(",\"count\":").append(n)
+                .append(",\"mean\":").append(n == 0 ? 0 : sum.get() / n)
+                .append(",\"p50\":").append(percentile(0.50))
+                .append(",\"p95\":").append(percentile(0.95))
+                .append(",\"p99\":").append(percentile(0.99))
+                .append(",\"max\":").append(max.get())
+                .append('}');
+        }
+
+        void dump(PrintWriter pw, String name) {
+            long n = count.get();
+            pw.println("  " + name + ": count=" + n
+                + " mean=" + (n == 0 ? 0 : sum.get() / n)
+                + " p50=" + percentile(0.50)
+                + " p95=" + percentile(0.95)
+                + " p99=" + percentile(0.99)
+                + " max=" + max.get() + " " + unit);
+        }
+    }
+
+    /** Told when the connection comes or goes or a notification is posted. */
+    public interface Listener {
+        void onPushStateChanged();
+    }
+
+    private static final PushStats INSTANCE = new PushStats();
+
+    public static PushStats get() {
+        return INSTANCE;
+    }
+
+    public final AtomicLong connectAttempts = new AtomicLong();
+    public final AtomicLong connects = new AtomicLong();
+    public final AtomicLong eventsReceived = new AtomicLong();
+    public final AtomicLong eventsFiltered = new AtomicLong();
+    public final AtomicLong eventsDuplicate = new AtomicLong();
+    public final AtomicLong eventsNotified = new AtomicLong();
+    public final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLongArray reconnects = new AtomicLongArray(Reconnect.values().length);
+
+    public final Histogram connectLatency = new Histogram("ms");
+    public final Histogram connectionUptime = new Histogram("s");
+    public final Histogram parseLatency = new Histogram("us");
+    public final Histogram dispatchLatency = new Histogram("ms");
+    // The pipeline's queues, in stage order
+    private final List<StageQueue<?>> stages = new CopyOnWriteArrayList<>();
+
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long connectedSince;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addStage(StageQueue<?> stage) {
+        stages.add(stage);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Called from the pipeline's threads; listeners must not block. */
+    public void stateChanged() {
+        for (Listener listener : listeners) {
+            listener.onPushStateChanged();
+        }
+    }
+
+    public boolean isConnected() {
+        return connectedSince > 0;
+    }
+
+    public void onConnected(long latencyMs) {
+        connects.incrementAndGet();
+        connectLatency.record(latencyMs);
+        connectedSince = System.currentTimeMillis();
+        stateChanged();
+    }
+
+    public void onDisconnected(Reconnect reason) {
+        long since = connectedSince;
+        if (since > 0) {
+            connectionUptime.record((System.currentTimeMillis() - since) / 1000);
+            connectedSince = 0;
+        }
+        reconnects.incrementAndGet(reason.ordinal());
+        if (since > 0) {
+            stateChanged();
+        }
+    }
+
+    public long reconnectCount(Reconnect reason) {
+        return reconnects.get(reason.ordinal());
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        long since = connectedSince;
+        sb.append("{\"connected\":").append(since > 0)
+            .append(",\"currentUptimeSec\":").append(since > 0 ? (System.currentTimeMillis() - since) / 1000 : 0)
+            .append(",\"statsAgeSec\":").append((System.currentTimeMillis() - createdAt) / 1000)
+            .append(",\"connectAttempts\":").append(connectAttempts.get())
+            .append(",\"connects\":").append(connects.get())
+            .append(",\"bytesReceived\":").append(bytesReceived.get())
+            .append(",\"eventsReceived\":").append(eventsReceived.get())
+            .append(",\"eventsFiltered\":").append(eventsFiltered.get())
+            .append(",\"eventsDuplicate\":").append(eventsDuplicate.get())
+            .append(",\"eventsNotified\":").append(eventsNotified.get())
+            .append(",\"reconnects\":{");
+        Reconnect[] reasons = Reconnect.values();
+        for (int i = 0; i < reasons.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(reasons[i].label).append("\":").append(reconnects.get(i));
+        }
+        sb.append("},\"connectLatency\":");
+        connectLatency.appendJson(sb);
+        sb.append(",\"connectionUptime\":");
+        connectionUptime.appendJson(sb);
+        sb.append(",\"parseLatency\":");
+        parseLatency.appendJson(sb);
+        sb.append(",\"dispatchLatency\":");
+        dispatchLatency.appendJson(sb);
+        sb.append(",\"stages\":{");
+        boolean first = true;
+        for (StageQueue<?> stage : stages) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(stage.name).append("\":");
+            stage.appendJson(sb);
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    public void dump(PrintWriter pw) {
+        long since = connectedSince;
+        pw.println("Push pipeline stats (since " + (System.currentTimeMillis() - createdAt) / 1000 + " s ago):");
+        pw.println("  connected=" + (since > 0)
+            + (since > 0 ? " for " + (System.currentTimeMillis() - since) / 1000 + " s" : ""));
+        pw.println("  connectAttempts=" + connectAttempts.get() + " connects=" + connects.get()
+            + " bytesReceived=" + bytesReceived.get());
+        pw.println("  events: received=" + eventsReceived.get() + " filtered=" + eventsFiltered.get()
+            + " duplicate=" + eventsDuplicate.get() + " notified=" + eventsNotified.get());
+        StringBuilder sb = new StringBuilder("  reconnects:");
+        for (Reconnect reason : Reconnect.values()) {
+            sb.append(' ').append(reason.label).append('=').append(reconnects.get(reason.ordinal()));
+        }
+        pw.println(sb);
+        connectLatency.dump(pw, "connectLatency");
+        connectionUptime.dump(pw, "connectionUptime");
+        parseLatency.dump(pw, "parseLatency");
+        dispatchLatency.dump(pw, "dispatchLatency");
+        for (StageQueue<?> stage : stages) {
+            stage.dump(pw);
+        }
+    }
+}
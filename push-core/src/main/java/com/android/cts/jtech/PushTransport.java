@@ -0,0 +1,60 @@
+package com.android.cts.jtech;
+
+import java.io.IOException;
+
+/**
+ * One way of receiving the ntfy message stream.
+ *
+ * {@link #connect} blocks on the calling thread, delivering events until the
+ * stream ends, fails or {@link #close()} is called from another thread. The
+ * read timeout doubles as the liveness deadline: if nothing arrives for that
+ * long, connect throws {@link java.net.SocketTimeoutException}.
+ */
+public interface PushTransport {
+    String SSE = "sse";
+    String JSON = "json";
+    String WEBSOCKET = "ws";
+
+    interface Listener {
+        /** The server accepted the subscription. */
+        void onOpen();
+
+        /** One ntfy JSON event. {@code id} is the transport-level id, or empty. */
+        void onMessage(String json, String id);
+
+        /** Server-requested reconnect delay. */
+        void onRetry(long retryMs);
+
+        /** Raw bytes received, keepalives included. */
+        void onBytes(int count);
+    }
+
+    /**
+     * @param server     base URL, e.g. https://ntfy.sh
+     * @param topicPath  one topic or a comma-separated list
+     * @param sinceId    id to resume after, or null
+     */
+    void connect(String server, String topicPath, String sinceId, int readTimeoutMs, Listener listener)
+        throws IOException;
+
+    /** Aborts a running connect(). Safe to call from any thread, any number of times. */
+    void close();
+
+    final class Factory {
+        private Factory() {}
+
+        public static boolean isKnown(String type) {
+            return SSE.equals(type) || JSON.equals(type) || WEBSOCKET.equals(type);
+        }
+
+        public static PushTransport create(String type) {
+            if (JSON.equals(type)) {
+                return new JsonStreamTransport();
+            }
+            if (WEBSOCKET.equals(type)) {
+                return new WebSocketTransport();
+            }
+            return new SseTransport();
+        }
+    }
+}
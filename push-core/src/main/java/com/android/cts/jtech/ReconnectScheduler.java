@@ -0,0 +1,108 @@
+package com.android.cts.jtech;
+
+import java.util.Random;
+
+/**
+ * Decides how long the push connection waits before reconnecting.
+ *
+ * Delays grow exponentially up to a cap, with jitter so that many devices
+ * dropped by the same outage don't reconnect in lockstep. Any wait can be cut
+ * short with {@link #wake()}, e.g. when a network becomes available or the
+ * configuration changes.
+ */
+public class ReconnectScheduler {
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+    private final Object lock = new Object();
+
+    private int attempt;
+    private boolean woken;
+
+    public ReconnectScheduler(long baseDelayMs, long maxDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Returns the delay before the next attempt and advances the backoff.
+     * A positive server-provided retry value acts as a lower bound.
+     */
+    public long nextDelay(long serverRetryMs) {
+        long ceiling;
+        synchronized (lock) {
+            // Cap the shift so the multiplication cannot overflow
+            int shift = Math.min(attempt, 20);
+            ceiling = Math.min(maxDelayMs, baseDelayMs << shift);
+            attempt++;
+        }
+        // "Equal jitter": half fixed, half random
+        long half = ceiling / 2;
+        long delay = half + (long) (random.nextDouble() * (ceiling - half));
+        return Math.max(delay, serverRetryMs);
+    }
+
+    /** Resets the backoff after a connection that stayed up long enough. */
+    public void reset() {
+        synchronized (lock) {
+            attempt = 0;
+        }
+    }
+
+    public int getAttempt() {
+        synchronized (lock) {
+            return attempt;
+        }
+    }
+
+    /**
+     * Waits up to {@code delayMs}, returning early if {@link #wake()} is called.
+     * Returns true if the wait was cut short.
+     */
+    public boolean await(long delayMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + delayMs;
+        synchronized (lock) {
+            while (!woken) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            woken = false;
+            return true;
+        }
+    }
+
+    /** Blocks until {@link #wake()} is called. */
+    public void awaitWake() throws InterruptedException {
+        synchronized (lock) {
+            while (!woken) {
+                lock.wait();
+            }
+            woken = false;
+        }
+    }
+
+    /**
+     * Forgets a {@link #wake()} nothing waited for, e.g. when reconnecting
+     * straight away already did what it asked, so it cannot cut the next
+     * backoff short.
+     */
+    public void clearWake() {
+        synchronized (lock) {
+            woken = false;
+        }
+    }
+
+    /**
+     * Ends the current wait immediately. If nothing is waiting, the next wait
+     * returns at once.
+     */
+    public void wake() {
+        synchronized (lock) {
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.android.cts.jtech;
+
+import java.util.ArrayDeque;
+
+/**
+ * Where a stream resumes from when its messages are shown out of step with
+ * reading them.
+ *
+ * Events are registered in stream order. An event with nothing to show is
+ * finished at once; a message only once {@link #finish} says it was shown.
+ * The position is the id of the newest event with nothing unfinished before
+ * it, so resuming from it never skips a message that was read but never
+ * shown, even if the process dies in between.
+ */
+public final class ResumePoint {
+
+    /** A message on its way to being shown; hand it to {@link #finish}. */
+    public static final class Pending {
+        final String id;
+        boolean finished;
+
+        Pending(String id) {
+            this.id = id;
+        }
+    }
+
+    // Guarded by this; oldest first
+    private final ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+    private String position;
+
+    public ResumePoint(String position) {
+        this.position = position;
+    }
+
+    /** Starts over from {@code position}; anything still in flight no longer counts. */
+    public synchronized void reset(String position) {
+        inFlight.clear();
+        this.position = position;
+    }
+
+    /** Current position, or null if there is none. */
+    public synchronized String position() {
+        return position;
+    }
+
+    /** Messages read but not yet shown. */
+    public synchronized int inFlight() {
+        int count = 0;
+        for (Pending p : inFlight) {
+            if (!p.finished) count++;
+        }
+        return count;
+    }
+
+    /** An event that needs nothing more. Returns true if the position moved. */
+    public synchronized boolean handled(String id) {
+        Pending p = new Pending(id);
+        p.finished = true;
+        inFlight.addLast(p);
+        return advance();
+    }
+
+    /** A message that still has to be shown; {@code id} may be empty. */
+    public synchronized Pending begin(String id) {
+        Pending p = new Pending(id);
+        inFlight.addLast(p);
+        return p;
+    }
+
+    /** {@code pending} was shown (or given up on). Returns true if the position moved. */
+    public synchronized boolean finish(Pending pending) {
+        pending.finished = true;
+        return advance();
+    }
+
+    private boolean advance() {
+        boolean moved = false;
+        while (!inFlight.isEmpty() && inFlight.peekFirst().finished) {
+            String id = inFlight.pollFirst().id;
+            if (!id.isEmpty()) {
+                position = id;
+                moved = true;
+            }
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,254 @@
+package com.android.cts.jtech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental Server-Sent Events decoder.
+ *
+ * Works directly on the bytes read from the socket using reusable buffers, so no
+ * String is created per line. UTF-8 decoding only happens when an event is
+ * dispatched. Handles event, data (multi-line), id, retry and comment lines as
+ * described in the HTML living standard.
+ */
+public class SseParser {
+
+    public interface Listener {
+        void onEvent(String type, String data, String lastEventId);
+
+        void onRetry(long retryMs);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_SIZE = 8192;
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int INITIAL_DATA_SIZE = 1024;
+    // Buffers grown past this by one large event are dropped after dispatch
+    private static final int SHRINK_THRESHOLD = 64 * 1024;
+
+    private static final byte[] FIELD_DATA = {'d', 'a', 't', 'a'};
+    private static final byte[] FIELD_EVENT = {'e', 'v', 'e', 'n', 't'};
+    private static final byte[] FIELD_ID = {'i', 'd'};
+    private static final byte[] FIELD_RETRY = {'r', 'e', 't', 'r', 'y'};
+
+    private final Listener listener;
+    private final byte[] readBuf = new byte[READ_SIZE];
+
+    private byte[] line = new byte[INITIAL_LINE_SIZE];
+    private int lineLen;
+    private byte[] data = new byte[INITIAL_DATA_SIZE];
+    private int dataLen;
+    private byte[] type = new byte[32];
+    private int typeLen;
+    private byte[] id = new byte[64];
+    private int idLen;
+
+    private boolean lastWasCr;
+    private boolean bomChecked;
+
+    // Decoded strings are cached and only rebuilt when the underlying bytes change
+    private String lastEventId = "";
+    private boolean idDirty;
+    private String cachedType = "message";
+    private byte[] cachedTypeBytes = {'m', 'e', 's', 's', 'a', 'g', 'e'};
+
+    public SseParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reads one chunk from the stream and dispatches every event it completes.
+     * Returns the number of bytes read, or -1 at end of stream.
+     */
+    public int read(InputStream in) throws IOException {
+        int n = in.read(readBuf, 0, readBuf.length);
+        if (n > 0) {
+            feed(readBuf, 0, n);
+        }
+        return n;
+    }
+
+    public void feed(byte[] buf, int off, int len) {
+        final int end = off + len;
+        int i = off;
+
+        if (!bomChecked) {
+            bomChecked = true;
+            if (len >= 3 && (buf[off] & 0xFF) == 0xEF && (buf[off + 1] & 0xFF) == 0xBB
+                    && (buf[off + 2] & 0xFF) == 0xBF) {
+                i += 3;
+            }
+        }
+
+        int start = i;
+        while (i < end) {
+            byte b = buf[i];
+            if (b == '\n' || b == '\r') {
+                if (b == '\n' && lastWasCr) {
+                    // Second half of a CRLF pair
+                    lastWasCr = false;
+                    i++;
+                    start = i;
+                    continue;
+                }
+                appendLine(buf, start, i - start);
+                processLine();
+                lineLen = 0;
+                lastWasCr = b == '\r';
+                i++;
+                start = i;
+            } else {
+                lastWasCr = false;
+                i++;
+            }
+        }
+        if (start < end) {
+            appendLine(buf, start, end - start);
+        }
+    }
+
+    public String getLastEventId() {
+        if (idDirty) {
+            lastEventId = new String(id, 0, idLen, UTF_8);
+            idDirty = false;
+        }
+        return lastEventId;
+    }
+
+    /** Forgets any partially received event, e.g. after the connection dropped. */
+    public void reset() {
+        lineLen = 0;
+        dataLen = 0;
+        typeLen = 0;
+        lastWasCr = false;
+        bomChecked = false;
+    }
+
+    private void appendLine(byte[] buf, int off, int len) {
+        if (len == 0) return;
+        if (lineLen + len > line.length) {
+            line = grow(line, lineLen, lineLen + len);
+        }
+        System.arraycopy(buf, off, line, lineLen, len);
+        lineLen += len;
+    }
+
+    private void processLine() {
+        if (lineLen == 0) {
+            dispatch();
+            return;
+        }
+        if (line[0] == ':') {
+            // Comment (used by servers as keepalive)
+            return;
+        }
+
+        int colon = -1;
+        for (int k = 0; k < lineLen; k++) {
+            if (line[k] == ':') {
+                colon = k;
+                break;
+            }
+        }
+
+        int fieldLen = colon < 0 ? lineLen : colon;
+        int valueStart = colon < 0 ? lineLen : colon + 1;
+        if (valueStart < lineLen && line[valueStart] == ' ') {
+            valueStart++;
+        }
+        int valueLen = lineLen - valueStart;
+
+        if (fieldEquals(FIELD_DATA, fieldLen)) {
+            if (dataLen + valueLen + 1 > data.length) {
+                data = grow(data, dataLen, dataLen + valueLen + 1);
+            }
+            System.arraycopy(line, valueStart, data, dataLen, valueLen);
+            dataLen += valueLen;
+            data[dataLen++] = '\n';
+        } else if (fieldEquals(FIELD_EVENT, fieldLen)) {
+            if (valueLen > type.length) {
+                type = new byte[valueLen];
+            }
+            System.arraycopy(line, valueStart, type, 0, valueLen);
+            typeLen = valueLen;
+        } else if (fieldEquals(FIELD_ID, fieldLen)) {
+            for (int k = valueStart; k < lineLen; k++) {
+                if (line[k] == 0) return;
+            }
+            if (valueLen > id.length) {
+                id = new byte[valueLen];
+            }
+            System.arraycopy(line, valueStart, id, 0, valueLen);
+            idLen = valueLen;
+            idDirty = true;
+        } else if (fieldEquals(FIELD_RETRY, fieldLen)) {
+            if (valueLen == 0 || valueLen > 18) return;
+            long retry = 0;
+            for (int k = valueStart; k < lineLen; k++) {
+                byte c = line[k];
+                if (c < '0' || c > '9') return;
+                retry = retry * 10 + (c - '0');
+            }
+            listener.onRetry(retry);
+        }
+        // Unknown fields are ignored
+    }
+
+    private void dispatch() {
+        if (dataLen == 0) {
+            typeLen = 0;
+            return;
+        }
+        // Drop the trailing newline added after the last data line
+        String payload = new String(data, 0, dataLen - 1, UTF_8);
+        String eventType = decodeType();
+        dataLen = 0;
+        typeLen = 0;
+        if (data.length > SHRINK_THRESHOLD) {
+            data = new byte[INITIAL_DATA_SIZE];
+        }
+        if (line.length > SHRINK_THRESHOLD) {
+            line = new byte[INITIAL_LINE_SIZE];
+        }
+        listener.onEvent(eventType, payload, getLastEventId());
+    }
+
+    private String decodeType() {
+        if (typeLen == 0) {
+            return "message";
+        }
+        if (typeLen == cachedTypeBytes.length) {
+            boolean same = true;
+            for (int k = 0; k < typeLen; k++) {
+                if (type[k] != cachedTypeBytes[k]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) return cachedType;
+        }
+        cachedTypeBytes = new byte[typeLen];
+        System.arraycopy(type, 0, cachedTypeBytes, 0, typeLen);
+        cachedType = new String(cachedTypeBytes, UTF_8);
+        return cachedType;
+    }
+
+    private boolean fieldEquals(byte[] name, int fieldLen) {
+        if (fieldLen != name.length) return false;
+        for (int k = 0; k < fieldLen; k++) {
+            if (line[k] != name[k]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] grow(byte[] buf, int used, int needed) {
+        int size = buf.length;
+        while (size < needed) {
+            size *= 2;
+        }
+        byte[] bigger = new byte[size];
+        System.arraycopy(buf, 0, bigger, 0, used);
+        return bigger;
+    }
+}
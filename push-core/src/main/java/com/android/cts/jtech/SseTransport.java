@@ -0,0 +1,75 @@
+package com.android.cts.jtech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/** Server-Sent Events over HttpURLConnection, decoded by {@link SseParser}. */
+public class SseTransport implements PushTransport {
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+
+    private volatile HttpURLConnection connection;
+    private volatile boolean closed;
+
+    @Override
+    public void connect(String server, String topicPath, String sinceId, int readTimeoutMs,
+            final Listener listener) throws IOException {
+        String sseUrl = server + "/" + topicPath;
+        if (sinceId != null) {
+            // ntfy replays only messages published after this id
+            sseUrl += "?since=" + URLEncoder.encode(sinceId, "UTF-8");
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(sseUrl).openConnection();
+        connection = conn;
+        InputStream in = null;
+        try {
+            if (closed) return;
+            conn.setRequestMethod("GET");
+            conn.setRequestProperty("Accept", "text/event-stream");
+            if (sinceId != null) {
+                conn.setRequestProperty("Last-Event-ID", sinceId);
+            }
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(readTimeoutMs);
+
+            in = conn.getInputStream();
+            listener.onOpen();
+
+            SseParser parser = new SseParser(new SseParser.Listener() {
+                @Override
+                public void onEvent(String type, String data, String lastEventId) {
+                    if ("message".equals(type)) {
+                        listener.onMessage(data, lastEventId);
+                    }
+                }
+
+                @Override
+                public void onRetry(long retryMs) {
+                    listener.onRetry(retryMs);
+                }
+            });
+
+            int n;
+            while (!closed && (n = parser.read(in)) != -1) {
+                // Events are dispatched from inside read()
+                listener.onBytes(n);
+            }
+        } finally {
+            connection = null;
+            try { if (in != null) in.close(); } catch (Exception ignored) {}
+            try { conn.disconnect(); } catch (Exception ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        HttpURLConnection conn = connection;
+        if (conn != null) {
+            try { conn.disconnect(); } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.android.cts.jtech;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-off between two stages of the push pipeline.
+ *
+ * A full queue first pushes back on the producer for at most
+ * {@code maxBlockMs}, then applies its overflow policy. With
+ * {@link Overflow#BLOCK} it pushes back for as long as it takes instead, so
+ * nothing is lost and a stalled consumer stalls the socket reader (and TCP
+ * flow control the server) with it. An optional
+ * {@link Merger} folds an item into one already queued (e.g. two messages for
+ * the same conversation) before any of that applies.
+ *
+ * Records its depth, drops, merges and how long items wait and producers
+ * block, for {@link PushStats}.
+ */
+public final class StageQueue<T> {
+
+    public enum Overflow {
+        /** Discards the oldest queued item to make room. */
+        DROP_OLDEST,
+        /** Refuses the incoming item. */
+        DROP_NEWEST,
+        /** Waits for room however long it takes; {@code maxBlockMs} is ignored. */
+        BLOCK
+    }
+
+    public interface Merger<T> {
+        /** Folds {@code incoming} into {@code queued} if they belong together; returns whether it did. */
+        boolean merge(T queued, T incoming);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final long enqueuedAt;
+
+        Entry(T item, long enqueuedAt) {
+            this.item = item;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    public final String name;
+    private final int capacity;
+    private final long maxBlockNanos;
+    private final Overflow overflow;
+    private final Merger<T> merger;
+    // Guarded by this
+    private final ArrayDeque<Entry<T>> queue;
+    private int maxDepth;
+    private long offered;
+    private long dropped;
+    private long merged;
+
+    /** Time an item spent queued. */
+    final PushStats.Histogram waitLatency = new PushStats.Histogram("ms");
+    /** Time the consumer spent on an item. */
+    final PushStats.Histogram serviceLatency = new PushStats.Histogram("us");
+    /** Time a producer was held back by a full queue. */
+    final PushStats.Histogram blockLatency = new PushStats.Histogram("ms");
+
+    public StageQueue(String name, int capacity, long maxBlockMs, Overflow overflow, Merger<T> merger) {
+        this.name = name;
+        this.capacity = capacity;
+        this.maxBlockNanos = TimeUnit.MILLISECONDS.toNanos(maxBlockMs);
+        this.overflow = overflow;
+        this.merger = merger;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Queues {@code item}, merging or dropping as configured. Returns false
+     * if the item itself was dropped. An interrupt ends the wait early and is
+     * left set for the caller; under {@link Overflow#BLOCK} the item is then
+     * queued over capacity rather than lost.
+     */
+    public synchronized boolean offer(T item) {
+        offered++;
+        if (merger != null) {
+            // Newest first: the most recent item for a key is the one still open
+            Iterator<Entry<T>> it = queue.descendingIterator();
+            while (it.hasNext()) {
+                if (merger.merge(it.next().item, item)) {
+                    merged++;
+                    return true;
+                }
+            }
+        }
+        if (queue.size() >= capacity && (overflow == Overflow.BLOCK || maxBlockNanos > 0)) {
+            long start = System.nanoTime();
+            long deadline = start + maxBlockNanos;
+            try {
+                if (overflow == Overflow.BLOCK) {
+                    while (queue.size() >= capacity) {
+                        wait();
+                    }
+                }
+                long left;
+                while (queue.size() >= capacity && (left = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blockLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        if (queue.size() >= capacity && overflow != Overflow.BLOCK) {
+            dropped++;
+            if (overflow == Overflow.DROP_NEWEST) {
+                return false;
+            }
+            queue.pollFirst();
+        }
+        queue.addLast(new Entry<>(item, System.nanoTime()));
+        maxDepth = Math.max(maxDepth, queue.size());
+        notifyAll();
+        return true;
+    }
+
+    /** Waits for the next item. */
+    public synchronized T take() throws InterruptedException {
+        while (queue.isEmpty()) {
+            wait();
+        }
+        return remove();
+    }
+
+    /** The next item, or null if the queue is empty. */
+    public synchronized T poll() {
+        return queue.isEmpty() ? null : remove();
+    }
+
+    private T remove() {
+        Entry<T> e = queue.pollFirst();
+        waitLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - e.enqueuedAt));
+        // Room for a producer held back by a full queue
+        notifyAll();
+        return e.item;
+    }
+
+    /** Records how long the consumer took with an item it started on at {@code startNanos}. */
+    public void serviced(long startNanos) {
+        serviceLatency.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    /** Items discarded by the overflow policy so far. */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    public synchronized void appendJson(StringBuilder sb) {
+        sb.append("{\"depth\":").append(queue.size())
+            .append(",\"maxDepth\":").append(maxDepth)
+            .append(",\"capacity\":").append(capacity)
+            .append(",\"offered\":").append(offered)
+            .append(",\"merged\":").append(merged)
+            .append(",\"dropped\":").append(dropped)
+            .append(",\"wait\":");
+        waitLatency.appendJson(sb);
+        sb.append(",\"service\":");
+        serviceLatency.appendJson(sb);
+        sb.append(",\"producerBlocked\":");
+        blockLatency.appendJson(sb);
+        sb.append('}');
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  stage " + name + ": depth=" + queue.size() + " maxDepth=" + maxDepth
+            + " capacity=" + capacity + " offered=" + offered + " merged=" + merged + " dropped=" + dropped);
+        waitLatency.dump(pw, "  " + name + ".wait");
+        serviceLatency.dump(pw, "  " + name + ".service");
+        blockLatency.dump(pw, "  " + name + ".producerBlocked");
+    }
+}
@@ -0,0 +1,147 @@
+package com.android.cts.jtech;
+
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the streaming connections for {@link ConnectionController}: connects
+ * a transport for a topic set, hands every event to the {@link Host} with
+ * the topics it was subscribed under, works out why the connection ended
+ * and records it in {@link PushStats}. Also keeps what the server asked for
+ * (its retry delay) and what the live stream is, for the controller and
+ * for dumps.
+ */
+public class StreamSession {
+    private static final String TAG = "StreamSession";
+    // Connections that last this long reset the backoff
+    public static final long STABLE_CONNECTION_MS = 60000;
+
+    public interface Host {
+        void onMessage(String json, String id, Set<String> subscribedTopics);
+
+        boolean isNetworkAvailable();
+
+        /** A connection that had opened went silent for longer than the heartbeat timeout. */
+        void onStale(long silentMs);
+    }
+
+    private final Host host;
+    private final PushStats stats = PushStats.get();
+    private volatile long connectedAt;
+    private volatile long lastByteAt;
+    private volatile long serverRetryMs = -1;
+    // server + topic path of the live stream, and the topics it carries
+    private volatile String connectedKey;
+    private volatile Set<String> subscribedTopics = Collections.emptySet();
+
+    public StreamSession(Host host) {
+        this.host = host;
+    }
+
+    /** Server-requested reconnect delay, or -1. */
+    public long serverRetryMs() {
+        return serverRetryMs;
+    }
+
+    /** server/topics of the live stream, or null. */
+    public String connectedKey() {
+        return connectedKey;
+    }
+
+    public Set<String> subscribedTopics() {
+        return subscribedTopics;
+    }
+
+    /**
+     * Streams events until the connection ends. Returns true if the connection
+     * stayed up long enough to count as healthy.
+     *
+     * @param sinceId event id to resume after, or null for new events only
+     * @param heartbeatTimeoutMs longest silence before the connection counts as stale
+     */
+    public boolean run(final String server, final List<String> topics, String sinceId, int heartbeatTimeoutMs,
+            PushTransport transport, ConnectionController.Connection connection) {
+        PushStats.Reconnect reason = PushStats.Reconnect.SERVER_CLOSED;
+        connectedAt = 0;
+        // ntfy multiplexes several topics over one stream via a comma-separated path
+        final String topicPath = joinTopics(topics);
+
+        try {
+            PushLog.i(TAG, "Connecting to: " + server + "/" + topicPath
+                + " via " + transport.getClass().getSimpleName() + (sinceId != null ? " since " + sinceId : ""));
+            stats.connectAttempts.incrementAndGet();
+            final long connectStart = System.currentTimeMillis();
+
+            // The read timeout acts as the liveness watchdog: any byte, keepalives included,
+            // restarts the timer, so a half-open connection fails instead of blocking forever
+            transport.connect(server, topicPath, sinceId, heartbeatTimeoutMs, new PushTransport.Listener() {
+                @Override
+                public void onOpen() {
+                    subscribedTopics = new HashSet<>(topics);
+                    connectedKey = server + "/" + topicPath;
+                    connectedAt = System.currentTimeMillis();
+                    lastByteAt = connectedAt;
+                    stats.onConnected(connectedAt - connectStart);
+                }
+
+                @Override
+                public void onMessage(String json, String id) {
+                    host.onMessage(json, id, subscribedTopics);
+                }
+
+                @Override
+                public void onRetry(long retryMs) {
+                    serverRetryMs = retryMs;
+                }
+
+                @Override
+                public void onBytes(int count) {
+                    lastByteAt = System.currentTimeMillis();
+                    stats.bytesReceived.addAndGet(count);
+                }
+            });
+        } catch (SocketTimeoutException e) {
+            reason = disconnectReason(connection, PushStats.Reconnect.ERROR);
+            if (connectedAt > 0) {
+                reason = PushStats.Reconnect.STALE;
+                host.onStale(System.currentTimeMillis() - lastByteAt);
+            } else {
+                PushLog.e(TAG, "Connection timed out: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            reason = disconnectReason(connection, PushStats.Reconnect.ERROR);
+            if (reason == PushStats.Reconnect.RECONFIGURED) {
+                // We closed it ourselves; whatever the transport threw is expected
+                PushLog.d(TAG, "Connection closed for new settings: " + e.getMessage());
+            } else {
+                PushLog.e(TAG, "Connection error: " + e.getMessage());
+            }
+        } finally {
+            if (reason == PushStats.Reconnect.SERVER_CLOSED) {
+                reason = disconnectReason(connection, reason);
+            }
+            stats.onDisconnected(reason);
+            connectedKey = null;
+        }
+        return connectedAt > 0 && System.currentTimeMillis() - connectedAt >= STABLE_CONNECTION_MS;
+    }
+
+    private PushStats.Reconnect disconnectReason(ConnectionController.Connection connection,
+            PushStats.Reconnect fallback) {
+        if (!connection.isCurrent()) return PushStats.Reconnect.RECONFIGURED;
+        if (!host.isNetworkAvailable()) return PushStats.Reconnect.NETWORK;
+        return fallback;
+    }
+
+    public static String joinTopics(List<String> topics) {
+        StringBuilder sb = new StringBuilder();
+        for (String topic : topics) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(topic);
+        }
+        return sb.toString();
+    }
+}
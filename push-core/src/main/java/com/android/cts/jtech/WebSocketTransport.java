@@ -0,0 +1,317 @@
+package com.android.cts.jtech;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal RFC 6455 client for ntfy's /ws endpoint.
+ *
+ * Text frames carry the same JSON events as the /json stream. When the socket
+ * has been silent for half the read timeout a ping is sent; if the second half
+ * also passes without any frame the connection is considered dead. Server
+ * close frames are answered and end the stream cleanly.
+ *
+ * A bare SSLSocket only checks the certificate chain, not that it was issued
+ * for the host. On a JVM the socket's endpoint identification does that; the
+ * app supplies Android's verifier instead with {@link #setHostnameVerifier},
+ * since endpoint identification needs API 24.
+ */
+public class WebSocketTransport implements PushTransport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    // Null for the JVM's own endpoint identification
+    private static volatile HostnameVerifier hostnameVerifier;
+
+    private final SecureRandom random = new SecureRandom();
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private OutputStream out;
+
+    /** Checks wss:// hosts with {@code verifier} from now on; null for the JVM's endpoint identification. */
+    public static void setHostnameVerifier(HostnameVerifier verifier) {
+        hostnameVerifier = verifier;
+    }
+
+    @Override
+    public void connect(String server, String topicPath, String sinceId, int readTimeoutMs,
+            Listener listener) throws IOException {
+        URI uri = URI.create(server);
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme()) || "wss".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+        String basePath = uri.getRawPath() == null ? "" : uri.getRawPath();
+        if (basePath.endsWith("/")) {
+            basePath = basePath.substring(0, basePath.length() - 1);
+        }
+        String path = basePath + "/" + topicPath + "/ws";
+        if (sinceId != null) {
+            path += "?since=" + URLEncoder.encode(sinceId, "UTF-8");
+        }
+
+        Socket s = new Socket();
+        socket = s;
+        try {
+            if (closed) return;
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            if (secure) {
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(s, host, port, true);
+                s = ssl;
+                socket = s;
+                HostnameVerifier verifier = hostnameVerifier;
+                if (verifier == null) {
+                    SSLParameters params = ssl.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    ssl.setSSLParameters(params);
+                }
+                ssl.startHandshake();
+                if (verifier != null && !verifier.verify(host, ssl.getSession())) {
+                    throw new SSLPeerUnverifiedException("Certificate does not match " + host);
+                }
+            }
+            // Half the deadline: the first silent half triggers a ping, the second gives up
+            int pingAfterMs = readTimeoutMs > 0 ? Math.max(1, readTimeoutMs / 2) : 0;
+            s.setSoTimeout(pingAfterMs);
+
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            out = s.getOutputStream();
+            handshake(in, host, port, secure, path);
+            listener.onOpen();
+            readFrames(in, listener, pingAfterMs > 0);
+        } finally {
+            socket = null;
+            try { s.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private void handshake(InputStream in, String host, int port, boolean secure, String path)
+            throws IOException {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = base64(nonce);
+        boolean defaultPort = port == (secure ? 443 : 80);
+
+        String request = "GET " + path + " HTTP/1.1\r\n"
+            + "Host: " + host + (defaultPort ? "" : ":" + port) + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + key + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "\r\n";
+        out.write(request.getBytes(UTF_8));
+        out.flush();
+
+        String status = readHeaderLine(in);
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("WebSocket upgrade refused: " + status);
+        }
+        String accept = null;
+        String line;
+        while (!(line = readHeaderLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) {
+            throw new IOException("Bad Sec-WebSocket-Accept");
+        }
+    }
+
+    private void readFrames(InputStream in, Listener listener, boolean pingOnIdle) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean pingSent = false;
+        while (!closed) {
+            int b0;
+            try {
+                b0 = in.read();
+            } catch (SocketTimeoutException e) {
+                if (!pingOnIdle || pingSent) {
+                    throw e;
+                }
+                sendFrame(OP_PING, new byte[0]);
+                pingSent = true;
+                continue;
+            }
+            if (b0 == -1) {
+                return;
+            }
+            pingSent = false;
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            int b1 = readByte(in);
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte(in) << 8) | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte(in);
+                }
+            }
+            if (length < 0) {
+                // Most significant bit set, which RFC 6455 forbids
+                throw new IOException("Bad WebSocket frame length");
+            }
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("WebSocket frame too large: " + length);
+            }
+            byte[] mask = null;
+            if (masked) {
+                mask = new byte[4];
+                readFully(in, mask);
+            }
+            byte[] payload = new byte[(int) length];
+            readFully(in, payload);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            listener.onBytes(2 + payload.length);
+
+            switch (opcode) {
+                case OP_TEXT:
+                case OP_CONTINUATION:
+                    message.write(payload, 0, payload.length);
+                    if (message.size() > MAX_FRAME_SIZE) {
+                        throw new IOException("WebSocket message too large");
+                    }
+                    if (fin) {
+                        listener.onMessage(new String(message.toByteArray(), UTF_8), "");
+                        message.reset();
+                    }
+                    break;
+                case OP_PING:
+                    sendFrame(OP_PONG, payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    // Echo the status code back and end the stream
+                    sendFrame(OP_CLOSE, payload.length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]);
+                    return;
+                default:
+                    // Binary frames are not part of the ntfy protocol
+                    break;
+            }
+        }
+    }
+
+    private synchronized void sendFrame(int opcode, byte[] payload) throws IOException {
+        // Control frames only; client frames must always be masked
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        byte[] frame = new byte[2 + 4 + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(mask, 0, frame, 2, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[6 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        out.write(frame);
+        out.flush();
+    }
+
+    private static String readHeaderLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+            if (sb.length() > 8192) {
+                throw new IOException("WebSocket handshake header too long");
+            }
+        }
+        throw new EOFException("Connection closed during WebSocket handshake");
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed mid-frame");
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n == -1) {
+                throw new EOFException("Connection closed mid-frame");
+            }
+            off += n;
+        }
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + ACCEPT_GUID).getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // java.util.Base64 needs API 26
+    private static String base64(byte[] data) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xFF;
+            sb.append(alphabet.charAt((b >> 18) & 0x3F));
+            sb.append(alphabet.charAt((b >> 12) & 0x3F));
+            sb.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+            sb.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,246 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Drives a {@link ConnectionController} with transports that block until closed. */
+public class ConnectionControllerTest {
+    private static final long JOIN_MS = 5000;
+    // Long enough that a test only passes if nothing waits out a backoff
+    private static final long BACKOFF_MS = 60000;
+
+    /** Connects at once and then blocks like a quiet stream until closed. */
+    private static final class BlockingTransport implements PushTransport {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void connect(String server, String topicPath, String sinceId, int readTimeoutMs, Listener listener)
+                throws IOException {
+            connected.countDown();
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /** Records which settings each connection was made with. */
+    private static final class Host implements ConnectionController.Host<String> {
+        volatile String settings;
+        final List<String> streamed = new ArrayList<>();
+        final List<BlockingTransport> transports = new ArrayList<>();
+        final List<ConnectionController.Connection> connections = new ArrayList<>();
+        final List<Boolean> wasCurrent = new ArrayList<>();
+
+        Host(String settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        public String settings() {
+            return settings;
+        }
+
+        @Override
+        public synchronized PushTransport createTransport(String s) {
+            BlockingTransport transport = new BlockingTransport();
+            transports.add(transport);
+            notifyAll();
+            return transport;
+        }
+
+        @Override
+        public boolean stream(String s, PushTransport transport, ConnectionController.Connection connection) {
+            synchronized (this) {
+                streamed.add(s);
+                connections.add(connection);
+                wasCurrent.add(connection.isCurrent());
+            }
+            try {
+                transport.connect("http://unused", s, null, 0, null);
+            } catch (IOException e) {
+                // Closed
+            }
+            return false;
+        }
+
+        @Override
+        public long serverRetryMs() {
+            return -1;
+        }
+
+        /** Waits for the n-th transport (1-based) to be connecting. */
+        BlockingTransport awaitTransport(int n) throws InterruptedException {
+            BlockingTransport transport;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + JOIN_MS;
+                while (transports.size() < n) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new AssertionError("transport " + n + " never created");
+                    }
+                    wait(left);
+                }
+                transport = transports.get(n - 1);
+            }
+            assertTrue(transport.connected.await(JOIN_MS, TimeUnit.MILLISECONDS));
+            return transport;
+        }
+
+        synchronized List<String> streamed() {
+            return new ArrayList<>(streamed);
+        }
+    }
+
+    private ConnectionController<String> controller;
+
+    @After
+    public void tearDown() {
+        if (controller != null) {
+            controller.shutdown(JOIN_MS);
+        }
+    }
+
+    private ConnectionController<String> start(Host host) {
+        controller = new ConnectionController<>(host, new ReconnectScheduler(BACKOFF_MS, BACKOFF_MS));
+        controller.start();
+        return controller;
+    }
+
+    @Test
+    public void reconfigureReconnectsWithNewSettingsRightAway() throws InterruptedException {
+        Host host = new Host("a");
+        start(host);
+        BlockingTransport first = host.awaitTransport(1);
+
+        host.settings = "b";
+        controller.reconfigure();
+        assertTrue("old connection closed", first.closed.await(JOIN_MS, TimeUnit.MILLISECONDS));
+        BlockingTransport second = host.awaitTransport(2);
+
+        assertEquals(1, second.closed.getCount());
+        List<String> streamed = host.streamed();
+        assertEquals("a", streamed.get(0));
+        assertEquals("b", streamed.get(1));
+        assertEquals(1, controller.reconfigurations.get());
+    }
+
+    @Test
+    public void connectionsStartCurrentAndGoStaleOnReconfigure() throws InterruptedException {
+        Host host = new Host("a");
+        start(host);
+        host.awaitTransport(1);
+        controller.reconfigure();
+        host.awaitTransport(2);
+        synchronized (host) {
+            assertEquals(Boolean.TRUE, host.wasCurrent.get(0));
+            assertEquals(Boolean.TRUE, host.wasCurrent.get(1));
+            assertFalse(host.connections.get(0).isCurrent());
+            assertTrue(host.connections.get(1).isCurrent());
+        }
+        controller.shutdown(JOIN_MS);
+        synchronized (host) {
+            assertFalse(host.connections.get(1).isCurrent());
+        }
+    }
+
+    @Test
+    public void reconfigureDoesNotSkipTheNextBackoff() throws InterruptedException {
+        Host host = new Host("a");
+        start(host);
+        host.awaitTransport(1);
+        controller.reconfigure();
+        // The new connection fails on its own; that one has to wait out the backoff
+        host.awaitTransport(2).close();
+        Thread.sleep(300);
+        synchronized (host) {
+            assertEquals(2, host.transports.size());
+        }
+    }
+
+    @Test
+    public void shutdownClosesTheTransportAndJoins() throws InterruptedException {
+        int before = ConnectionController.liveWorkers();
+        Host host = new Host("a");
+        start(host);
+        BlockingTransport transport = host.awaitTransport(1);
+
+        long start = System.currentTimeMillis();
+        assertTrue(controller.shutdown(JOIN_MS));
+        assertTrue(System.currentTimeMillis() - start < JOIN_MS);
+        assertEquals(0, transport.closed.getCount());
+        assertFalse(controller.isRunning());
+        assertEquals(before, ConnectionController.liveWorkers());
+        assertEquals(0, controller.joinTimeouts.get());
+    }
+
+    @Test
+    public void shutdownEndsABackoffWait() throws InterruptedException {
+        Host host = new Host("a");
+        start(host);
+        host.awaitTransport(1).close();
+        // The worker is now waiting out BACKOFF_MS
+        assertTrue(controller.shutdown(JOIN_MS));
+        assertEquals(1, host.streamed().size());
+    }
+
+    @Test
+    public void startIsIdempotentAndRestartable() throws InterruptedException {
+        Host host = new Host("a");
+        start(host);
+        controller.start();
+        host.awaitTransport(1);
+        assertEquals(1, controller.starts.get());
+
+        assertTrue(controller.shutdown(JOIN_MS));
+        controller.start();
+        host.awaitTransport(2);
+        assertEquals(2, controller.starts.get());
+    }
+
+    @Test
+    public void waitsForSettings() throws InterruptedException {
+        Host host = new Host(null);
+        start(host);
+        Thread.sleep(50);
+        synchronized (host) {
+            assertTrue(host.transports.isEmpty());
+        }
+        host.settings = "a";
+        controller.reconfigure();
+        host.awaitTransport(1);
+        assertEquals("a", host.streamed().get(0));
+    }
+
+    @Test
+    public void repeatedCyclesLeaveNoWorkers() throws InterruptedException {
+        int before = ConnectionController.liveWorkers();
+        Host host = new Host("a");
+        for (int i = 1; i <= 20; i++) {
+            start(host);
+            host.awaitTransport(i);
+            controller.reconfigure();
+            assertTrue(controller.shutdown(JOIN_MS));
+        }
+        controller = null;
+        assertEquals(before, ConnectionController.liveWorkers());
+    }
+}
@@ -0,0 +1,79 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class NtfyMessageTest {
+
+    @Test
+    public void readsTheFieldsItKeeps() {
+        NtfyMessage msg = NtfyMessage.parse("{\"id\":\"m1\",\"time\":1729250000,\"event\":\"message\","
+            + "\"topic\":\"t\",\"title\":\"Hi\",\"message\":\"Body\",\"click\":\"https://x/1\"}");
+        assertNotNull(msg);
+        assertEquals("m1", msg.id);
+        assertEquals("message", msg.event);
+        assertEquals("t", msg.topic);
+        assertEquals("Hi", msg.title);
+        assertEquals("Body", msg.message);
+        assertEquals("https://x/1", msg.click);
+    }
+
+    @Test
+    public void missingAndNullFieldsAreEmpty() {
+        NtfyMessage msg = NtfyMessage.parse("{\"event\":\"keepalive\",\"title\":null}");
+        assertEquals("", msg.id);
+        assertEquals("keepalive", msg.event);
+        assertEquals("", msg.title);
+        assertEquals("", msg.click);
+        assertEquals("", NtfyMessage.parse("{ }").event);
+    }
+
+    @Test
+    public void skipsNestedValues() {
+        NtfyMessage msg = NtfyMessage.parse("{\"tags\":[\"a\",\"b]\"],\"attachment\":{\"name\":\"x}\","
+            + "\"size\":12,\"nested\":{\"message\":\"inner\"}},\"actions\":[{\"id\":\"a1\"}],"
+            + "\"priority\":-4,\"flag\":true,\"other\":false,\"none\":null,\"message\":\"outer\"}");
+        assertEquals("outer", msg.message);
+        assertEquals("", msg.id);
+    }
+
+    @Test
+    public void decodesEscapes() {
+        NtfyMessage msg = NtfyMessage.parse(
+            "{\"message\":\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u2713\",\"ti\\u0074le\":\"escaped key\"}");
+        assertEquals("a\"b\\c/d\n\t\u00e9\u2713", msg.message);
+        assertEquals("escaped key", msg.title);
+    }
+
+    @Test
+    public void nonStringValuesKeepTheirJson() {
+        NtfyMessage msg = NtfyMessage.parse("{\"id\":42,\"title\":[1,2],\"message\":1.5e3}");
+        assertEquals("42", msg.id);
+        assertEquals("[1,2]", msg.title);
+        assertEquals("1.5e3", msg.message);
+    }
+
+    @Test
+    public void toleratesWhitespace() {
+        NtfyMessage msg = NtfyMessage.parse(" \n{ \"id\" :\t\"m1\" ,\r\n \"topic\": \"t\" }\n");
+        assertEquals("m1", msg.id);
+        assertEquals("t", msg.topic);
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        assertNull(NtfyMessage.parse(""));
+        assertNull(NtfyMessage.parse("[]"));
+        assertNull(NtfyMessage.parse("{\"id\":\"m1\""));
+        assertNull(NtfyMessage.parse("{\"id\":\"m1}"));
+        assertNull(NtfyMessage.parse("{\"id\" \"m1\"}"));
+        assertNull(NtfyMessage.parse("{\"id\":\"m1\";\"x\":1}"));
+        assertNull(NtfyMessage.parse("{\"id\":\"m1\"} trailing"));
+        assertNull(NtfyMessage.parse("{\"id\":nope}"));
+        assertNull(NtfyMessage.parse("{\"message\":\"bad \\x escape\"}"));
+        assertNull(NtfyMessage.parse("{\"message\":\"short \\u12\"}"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReconnectSchedulerTest {
+
+    @Test
+    public void delaysGrowWithJitterUpToTheCap() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        long ceiling = 1000;
+        for (int i = 0; i < 30; i++) {
+            long delay = scheduler.nextDelay(-1);
+            assertTrue("attempt " + i + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(16000, ceiling * 2);
+        }
+        assertEquals(30, scheduler.getAttempt());
+    }
+
+    @Test
+    public void serverRetryIsALowerBound() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        assertEquals(60000, scheduler.nextDelay(60000));
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        for (int i = 0; i < 5; i++) {
+            scheduler.nextDelay(-1);
+        }
+        scheduler.reset();
+        assertEquals(0, scheduler.getAttempt());
+        assertTrue(scheduler.nextDelay(-1) <= 1000);
+    }
+
+    @Test
+    public void manyAttemptsStayAtTheCap() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 10 * 60 * 1000);
+        for (int i = 0; i < 1000; i++) {
+            long delay = scheduler.nextDelay(-1);
+            assertTrue(delay > 0 && delay <= 10 * 60 * 1000);
+        }
+    }
+
+    @Test
+    public void awaitTimesOut() throws InterruptedException {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        long start = System.currentTimeMillis();
+        assertFalse(scheduler.await(50));
+        assertTrue(System.currentTimeMillis() - start >= 45);
+    }
+
+    @Test
+    public void wakeBeforeAwaitIsNotLost() throws InterruptedException {
+        ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        scheduler.wake();
+        assertTrue(scheduler.await(10000));
+        // Consumed by that wait
+        assertFalse(scheduler.await(10));
+    }
+
+    @Test
+    public void wakeEndsAWait() throws InterruptedException {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(1000, 16000);
+        Thread waker = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            scheduler.wake();
+        });
+        waker.start();
+        long start = System.currentTimeMillis();
+        assertTrue(scheduler.await(10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        waker.join();
+    }
+}
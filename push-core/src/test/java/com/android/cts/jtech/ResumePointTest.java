@@ -0,0 +1,59 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResumePointTest {
+
+    @Test
+    public void handledEventsMoveItAtOnce() {
+        ResumePoint point = new ResumePoint(null);
+        assertNull(point.position());
+        assertTrue(point.handled("a"));
+        assertEquals("a", point.position());
+    }
+
+    @Test
+    public void waitsForAnUnshownMessage() {
+        ResumePoint point = new ResumePoint("start");
+        ResumePoint.Pending first = point.begin("m1");
+        assertFalse(point.handled("d2"));
+        ResumePoint.Pending third = point.begin("m3");
+        assertEquals("start", point.position());
+        assertEquals(2, point.inFlight());
+
+        assertFalse(point.finish(third));
+        assertEquals("start", point.position());
+        assertTrue(point.finish(first));
+        assertEquals("m3", point.position());
+        assertEquals(0, point.inFlight());
+    }
+
+    @Test
+    public void idLessMessagesHoldItButDoNotBecomeIt() {
+        ResumePoint point = new ResumePoint("start");
+        ResumePoint.Pending noId = point.begin("");
+        point.handled("d1");
+        assertEquals("start", point.position());
+        point.finish(noId);
+        assertEquals("d1", point.position());
+        assertFalse(point.finish(point.begin("")));
+        assertEquals("d1", point.position());
+    }
+
+    @Test
+    public void resetForgetsWhatWasInFlight() {
+        ResumePoint point = new ResumePoint("start");
+        ResumePoint.Pending old = point.begin("m1");
+        point.reset("other");
+        assertEquals(0, point.inFlight());
+        assertFalse(point.finish(old));
+        assertEquals("other", point.position());
+        point.handled("x");
+        assertEquals("x", point.position());
+    }
+}
@@ -0,0 +1,156 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SseParserTest {
+
+    /** Records events as "type|data|id" and retry values. */
+    private static final class Recorder implements SseParser.Listener {
+        final List<String> events = new ArrayList<>();
+        final List<Long> retries = new ArrayList<>();
+
+        @Override
+        public void onEvent(String type, String data, String lastEventId) {
+            events.add(type + "|" + data + "|" + lastEventId);
+        }
+
+        @Override
+        public void onRetry(long retryMs) {
+            retries.add(retryMs);
+        }
+    }
+
+    private static Recorder parse(String stream) {
+        Recorder recorder = new Recorder();
+        byte[] bytes = stream.getBytes(StandardCharsets.UTF_8);
+        new SseParser(recorder).feed(bytes, 0, bytes.length);
+        return recorder;
+    }
+
+    @Test
+    public void dispatchesOnBlankLine() {
+        Recorder r = parse("event: open\ndata: {\"a\":1}\n\nid: m1\ndata: x\n\ndata: pending\n");
+        assertEquals(2, r.events.size());
+        assertEquals("open|{\"a\":1}|", r.events.get(0));
+        assertEquals("message|x|m1", r.events.get(1));
+    }
+
+    @Test
+    public void joinsMultiLineData() {
+        Recorder r = parse("data: one\ndata:two\ndata\n\n");
+        assertEquals("message|one\ntwo\n|", r.events.get(0));
+    }
+
+    @Test
+    public void acceptsCrAndCrLfLineEnds() {
+        Recorder r = parse("data: a\r\n\r\ndata: b\r\rdata: c\n\n");
+        assertEquals(3, r.events.size());
+        assertEquals("message|a|", r.events.get(0));
+        assertEquals("message|b|", r.events.get(1));
+        assertEquals("message|c|", r.events.get(2));
+    }
+
+    @Test
+    public void crLfSplitAcrossChunks() {
+        Recorder recorder = new Recorder();
+        SseParser parser = new SseParser(recorder);
+        byte[] first = "data: a\r".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "\n\r\n".getBytes(StandardCharsets.UTF_8);
+        parser.feed(first, 0, first.length);
+        parser.feed(second, 0, second.length);
+        assertEquals(1, recorder.events.size());
+        assertEquals("message|a|", recorder.events.get(0));
+    }
+
+    @Test
+    public void ignoresCommentsAndUnknownFields() {
+        Recorder r = parse(": keepalive\nfoo: bar\ndata: x\n\n:\n\n");
+        assertEquals(1, r.events.size());
+        assertEquals("message|x|", r.events.get(0));
+    }
+
+    @Test
+    public void skipsEventsWithoutData() {
+        Recorder r = parse("event: keepalive\n\ndata: x\n\n");
+        assertEquals(1, r.events.size());
+        assertEquals("message|x|", r.events.get(0));
+    }
+
+    @Test
+    public void idPersistsAcrossEvents() {
+        Recorder r = parse("id: m1\ndata: a\n\ndata: b\n\nid\ndata: c\n\n");
+        assertEquals("message|a|m1", r.events.get(0));
+        assertEquals("message|b|m1", r.events.get(1));
+        assertEquals("message|c|", r.events.get(2));
+    }
+
+    @Test
+    public void ignoresIdContainingNul() {
+        Recorder r = parse("id: m1\ndata: a\n\nid: m\u00002\ndata: b\n\n");
+        assertEquals("message|b|m1", r.events.get(1));
+    }
+
+    @Test
+    public void retryMustBeDigits() {
+        Recorder r = parse("retry: 3000\nretry: 12a\nretry:\nretry: 500\n");
+        assertEquals(2, r.retries.size());
+        assertEquals(3000L, (long) r.retries.get(0));
+        assertEquals(500L, (long) r.retries.get(1));
+    }
+
+    @Test
+    public void stripsLeadingBom() {
+        Recorder r = parse("\uFEFFdata: x\n\n");
+        assertEquals("message|x|", r.events.get(0));
+    }
+
+    @Test
+    public void decodesUtf8SplitAcrossChunks() {
+        Recorder recorder = new Recorder();
+        SseParser parser = new SseParser(recorder);
+        byte[] bytes = "data: caf\u00e9 \u2713\n\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            parser.feed(bytes, i, 1);
+        }
+        assertEquals("message|caf\u00e9 \u2713|", recorder.events.get(0));
+    }
+
+    @Test
+    public void handlesEventsLargerThanTheBuffers() throws IOException {
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 200000) {
+            big.append("0123456789");
+        }
+        Recorder recorder = new Recorder();
+        SseParser parser = new SseParser(recorder);
+        ByteArrayInputStream in = new ByteArrayInputStream(
+            ("data: " + big + "\n\ndata: small\n\n").getBytes(StandardCharsets.UTF_8));
+        while (parser.read(in) != -1) {
+            // Keep reading
+        }
+        assertEquals(2, recorder.events.size());
+        assertEquals("message|" + big + "|", recorder.events.get(0));
+        assertEquals("message|small|", recorder.events.get(1));
+    }
+
+    @Test
+    public void resetDropsPartialEvent() {
+        Recorder recorder = new Recorder();
+        SseParser parser = new SseParser(recorder);
+        byte[] partial = "event: x\ndata: half".getBytes(StandardCharsets.UTF_8);
+        parser.feed(partial, 0, partial.length);
+        parser.reset();
+        byte[] next = "data: whole\n\n".getBytes(StandardCharsets.UTF_8);
+        parser.feed(next, 0, next.length);
+        assertEquals(1, recorder.events.size());
+        assertEquals("message|whole|", recorder.events.get(0));
+    }
+}
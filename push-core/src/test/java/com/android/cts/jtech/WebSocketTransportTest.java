@@ -0,0 +1,132 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Frames from a hand-written server on loopback, including ones a real server never sends. */
+public class WebSocketTransportTest {
+    private ServerSocket server;
+    private Thread serverThread;
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    /** Accepts one connection, completes the upgrade and writes {@code frames}. */
+    private String serve(final byte[] frames) throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket s = server.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                String key = null;
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                        key = line.substring(18).trim();
+                    }
+                }
+                byte[] sha = MessageDigest.getInstance("SHA-1").digest(
+                    (key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8));
+                OutputStream out = s.getOutputStream();
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+                out.write(frames);
+                out.flush();
+                Thread.sleep(200);
+            } catch (Exception e) {
+                // Test over
+            }
+        });
+        serverThread.start();
+        return "http://127.0.0.1:" + server.getLocalPort();
+    }
+
+    private static final class Recorder implements PushTransport.Listener {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void onOpen() {
+        }
+
+        @Override
+        public void onMessage(String json, String id) {
+            messages.add(json);
+        }
+
+        @Override
+        public void onRetry(long retryMs) {
+        }
+
+        @Override
+        public void onBytes(int count) {
+        }
+    }
+
+    private static byte[] textFrame(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[2 + payload.length];
+        frame[0] = (byte) 0x81;
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+
+    @Test
+    public void readsTextFrames() throws IOException {
+        String url = serve(textFrame("{\"event\":\"message\"}"));
+        Recorder recorder = new Recorder();
+        new WebSocketTransport().connect(url, "t", null, 5000, recorder);
+        assertEquals(1, recorder.messages.size());
+        assertEquals("{\"event\":\"message\"}", recorder.messages.get(0));
+    }
+
+    @Test
+    public void rejectsLengthWithHighBitSet() throws IOException {
+        byte[] frame = {(byte) 0x81, 127, (byte) 0x80, 0, 0, 0, 0, 0, 0, 5, 'h', 'e', 'l', 'l', 'o'};
+        String url = serve(frame);
+        Recorder recorder = new Recorder();
+        try {
+            new WebSocketTransport().connect(url, "t", null, 5000, recorder);
+            fail("accepted a negative length");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("length"));
+        }
+        assertTrue(recorder.messages.isEmpty());
+    }
+
+    @Test
+    public void rejectsOversizedLength() throws IOException {
+        byte[] frame = {(byte) 0x81, 127, 0, 0, 0, 0, 0x7F, 0, 0, 0};
+        String url = serve(frame);
+        try {
+            new WebSocketTransport().connect(url, "t", null, 5000, new Recorder());
+            fail("accepted a 2 GB frame");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+}
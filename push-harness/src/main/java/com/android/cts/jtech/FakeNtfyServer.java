@@ -0,0 +1,653 @@
+package com.android.cts.jtech;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A local stand-in for an ntfy server, speaking as much of it as the push
+ * path uses:
+ *
+ * <pre>
+ * GET /&lt;topics&gt;             Server-Sent Events (also /&lt;topics&gt;/sse)
+ * GET /&lt;topics&gt;/json        newline-delimited JSON; with poll=1, the cached
+ *                           messages and then EOF
+ * GET /&lt;topics&gt;/ws          WebSocket text frames
+ * </pre>
+ *
+ * {@code topics} is comma-separated and {@code since} takes a message id, a
+ * unix time or "all", as with ntfy. Every stream starts with an open event
+ * and carries keepalive events while idle.
+ *
+ * {@link Options} adds trouble on demand: dropping each connection after a
+ * while, and stalls where a connection goes silent without closing. The
+ * time each message was first written to a socket is kept so the harness
+ * can measure latency from the server's write.
+ */
+final class FakeNtfyServer implements Closeable {
+    private static final String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static final class Options {
+        /** Idle time before a keepalive event. */
+        long keepaliveMs = 45000;
+        /** Drop every connection this long after it opened; 0 for never. */
+        long disconnectAfterMs;
+        /** Go silent for {@link #stallForMs} this often; 0 for never. */
+        long stallEveryMs;
+        long stallForMs;
+        /** Messages kept for since= replays. */
+        int cacheSize = 1 << 16;
+    }
+
+    private static final class Message {
+        final long seq;
+        final long time;
+        final String topic;
+        final String json;
+
+        Message(long seq, long time, String topic, String json) {
+            this.seq = seq;
+            this.time = time;
+            this.topic = topic;
+            this.json = json;
+        }
+    }
+
+    private final Options options;
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final Message[] cache;
+    // Parallel to cache: System.nanoTime() of the first write of each message
+    private final AtomicLongArray firstWrite;
+    // Guarded by this
+    private long nextSeq = 1;
+    private volatile boolean closed;
+    private final Set<Socket> sockets = new HashSet<>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+
+    final AtomicLong connections = new AtomicLong();
+    final AtomicInteger openConnections = new AtomicInteger();
+    final AtomicLong published = new AtomicLong();
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong bytesWritten = new AtomicLong();
+    final AtomicLong keepalives = new AtomicLong();
+    final AtomicLong forcedDisconnects = new AtomicLong();
+    final AtomicLong stalls = new AtomicLong();
+    final AtomicLong polls = new AtomicLong();
+    // Messages a slow subscriber fell so far behind on that the cache no longer had them
+    final AtomicLong overruns = new AtomicLong();
+
+    FakeNtfyServer(Options options) throws IOException {
+        this.options = options;
+        this.cache = new Message[options.cacheSize];
+        this.firstWrite = new AtomicLongArray(options.cacheSize);
+        this.serverSocket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        this.acceptThread = new Thread(this::acceptLoop, "FakeNtfy-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /** Stores a message and wakes the subscribers of its topic. Returns its id. */
+    String publish(String topic, String title, String message, String click) {
+        long time = System.currentTimeMillis() / 1000;
+        synchronized (this) {
+            long seq = nextSeq++;
+            String id = id(seq);
+            String json = "{\"id\":\"" + id + "\",\"time\":" + time + ",\"event\":\"message\""
+                + ",\"topic\":" + quote(topic) + ",\"title\":" + quote(title)
+                + ",\"message\":" + quote(message)
+                + (click != null ? ",\"click\":" + quote(click) : "") + "}";
+            int slot = slot(seq);
+            cache[slot] = new Message(seq, time, topic, json);
+            firstWrite.set(slot, 0);
+            published.incrementAndGet();
+            notifyAll();
+            return id;
+        }
+    }
+
+    /** When message {@code id} first went out on a socket, or 0 if it has not (or is too old). */
+    long firstWriteNanos(String id) {
+        long seq = seqOf(id);
+        if (seq <= 0) {
+            return 0;
+        }
+        int slot = slot(seq);
+        Message m = cache[slot];
+        return m != null && m.seq == seq ? firstWrite.get(slot) : 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (this) {
+            for (Socket s : sockets) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /** Drops every open connection, as a server restart would. */
+    void dropAll() {
+        synchronized (this) {
+            for (Socket s : sockets) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket s = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread t = new Thread(() -> serve(s), "FakeNtfy-conn-" + connectionIds.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("FakeNtfy: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        openConnections.incrementAndGet();
+        synchronized (this) {
+            sockets.add(s);
+        }
+        try {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String wsKey = null;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    wsKey = line.substring(colon + 1).trim();
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || !"GET".equals(parts[0])) {
+                respond(out, "405 Method Not Allowed");
+                return;
+            }
+            Request req = Request.parse(parts[1]);
+            if (req == null) {
+                respond(out, "404 Not Found");
+                return;
+            }
+            // Subscribe before answering, as ntfy does, so nothing published after the
+            // client sees the response is missed
+            long cursor = startSeq(req);
+            switch (req.format) {
+                case "ws":
+                    if (wsKey == null) {
+                        respond(out, "400 Bad Request");
+                        return;
+                    }
+                    out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + wsAccept(wsKey) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    stream(s, new WsWriter(s, in, out), req, cursor);
+                    break;
+                case "json":
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/x-ndjson\r\n"
+                        + "Cache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                    if (req.poll) {
+                        polls.incrementAndGet();
+                        poll(new JsonWriter(out), req, cursor);
+                    } else {
+                        stream(s, new JsonWriter(out), req, cursor);
+                    }
+                    break;
+                default:
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                        + "Cache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                    stream(s, new SseWriter(out), req, cursor);
+                    break;
+            }
+        } catch (SocketException e) {
+            // Closed by either side
+        } catch (IOException | InterruptedException e) {
+            if (!closed) {
+                System.err.println("FakeNtfy: connection ended: " + e);
+            }
+        } finally {
+            synchronized (this) {
+                sockets.remove(s);
+            }
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+            openConnections.decrementAndGet();
+        }
+    }
+
+    private void poll(EventWriter writer, Request req, long cursor) throws IOException {
+        long end;
+        synchronized (this) {
+            end = nextSeq;
+        }
+        for (long seq = cursor; seq < end; seq++) {
+            writeMessage(writer, seq, req.topics);
+        }
+        writer.flush();
+    }
+
+    private void stream(Socket s, EventWriter writer, Request req, long cursor)
+            throws IOException, InterruptedException {
+        long openedAt = System.currentTimeMillis();
+        long lastWriteAt = openedAt;
+        long nextStallAt = options.stallEveryMs > 0 ? openedAt + options.stallEveryMs : Long.MAX_VALUE;
+        writer.event("open", "{\"id\":\"" + id(0) + "\",\"time\":" + openedAt / 1000
+            + ",\"event\":\"open\",\"topic\":" + quote(String.join(",", req.topics)) + "}", null);
+        writer.flush();
+
+        while (!closed && !s.isClosed()) {
+            long now = System.currentTimeMillis();
+            if (options.disconnectAfterMs > 0 && now - openedAt >= options.disconnectAfterMs) {
+                forcedDisconnects.incrementAndGet();
+                return;
+            }
+            if (now >= nextStallAt) {
+                // Silent but open, like a connection lost somewhere along the way
+                stalls.incrementAndGet();
+                writer.setStalled(true);
+                Thread.sleep(options.stallForMs);
+                writer.setStalled(false);
+                now = System.currentTimeMillis();
+                nextStallAt = now + options.stallEveryMs;
+                lastWriteAt = now;
+            }
+
+            long end;
+            synchronized (this) {
+                end = nextSeq;
+                if (end == cursor) {
+                    long waitMs = Math.min(options.keepaliveMs - (now - lastWriteAt), nextStallAt - now);
+                    if (options.disconnectAfterMs > 0) {
+                        waitMs = Math.min(waitMs, openedAt + options.disconnectAfterMs - now);
+                    }
+                    if (waitMs > 0) {
+                        wait(waitMs);
+                    }
+                    end = nextSeq;
+                }
+            }
+            if (end > cursor) {
+                for (; cursor < end; cursor++) {
+                    writeMessage(writer, cursor, req.topics);
+                }
+                writer.flush();
+                lastWriteAt = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastWriteAt >= options.keepaliveMs) {
+                writer.event("keepalive", "{\"id\":\"" + id(0) + "\",\"time\":"
+                    + System.currentTimeMillis() / 1000 + ",\"event\":\"keepalive\"}", null);
+                writer.flush();
+                keepalives.incrementAndGet();
+                lastWriteAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void writeMessage(EventWriter writer, long seq, Set<String> topics) throws IOException {
+        int slot = slot(seq);
+        Message m = cache[slot];
+        if (m == null || m.seq != seq) {
+            overruns.incrementAndGet();
+            return;
+        }
+        if (!topics.contains(m.topic)) {
+            return;
+        }
+        firstWrite.compareAndSet(slot, 0, System.nanoTime());
+        writer.event("message", m.json, id(seq));
+        written.incrementAndGet();
+    }
+
+    private long startSeq(Request req) {
+        synchronized (this) {
+            long oldest = Math.max(1, nextSeq - cache.length);
+            if (req.since == null) {
+                return nextSeq;
+            }
+            if ("all".equals(req.since)) {
+                return oldest;
+            }
+            long seq = seqOf(req.since);
+            if (seq > 0) {
+                return Math.max(oldest, seq + 1);
+            }
+            if (req.since.matches("\\d{1,11}")) {
+                long time = Long.parseLong(req.since);
+                for (long s = oldest; s < nextSeq; s++) {
+                    Message m = cache[slot(s)];
+                    if (m != null && m.seq == s && m.time >= time) {
+                        return s;
+                    }
+                }
+            }
+            return nextSeq;
+        }
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % cache.length);
+    }
+
+    private static String id(long seq) {
+        return "m" + seq;
+    }
+
+    private static long seqOf(String id) {
+        if (id == null || id.length() < 2 || id.charAt(0) != 'm') {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id.substring(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class Request {
+        final Set<String> topics;
+        final String format;
+        final String since;
+        final boolean poll;
+
+        Request(Set<String> topics, String format, String since, boolean poll) {
+            this.topics = topics;
+            this.format = format;
+            this.since = since;
+            this.poll = poll;
+        }
+
+        static Request parse(String target) throws IOException {
+            String path = target;
+            String query = "";
+            int q = target.indexOf('?');
+            if (q >= 0) {
+                path = target.substring(0, q);
+                query = target.substring(q + 1);
+            }
+            String[] segments = path.substring(1).split("/");
+            if (segments.length == 0 || segments[0].isEmpty() || segments.length > 2) {
+                return null;
+            }
+            String format = segments.length == 2 ? segments[1] : "sse";
+            if (!"sse".equals(format) && !"json".equals(format) && !"ws".equals(format)) {
+                return null;
+            }
+            String since = null;
+            boolean poll = false;
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                String key = eq >= 0 ? param.substring(0, eq) : param;
+                String value = eq >= 0 ? URLDecoder.decode(param.substring(eq + 1), "UTF-8") : "";
+                if ("since".equals(key)) {
+                    since = value;
+                } else if ("poll".equals(key)) {
+                    poll = "1".equals(value) || "true".equals(value);
+                }
+            }
+            return new Request(new HashSet<>(Arrays.asList(segments[0].split(","))), format, since, poll);
+        }
+    }
+
+    private interface EventWriter {
+        void event(String type, String json, String id) throws IOException;
+
+        void flush() throws IOException;
+
+        /** While stalled nothing goes out, not even replies to the client's pings. */
+        default void setStalled(boolean stalled) {
+        }
+    }
+
+    private final class SseWriter implements EventWriter {
+        private final OutputStream out;
+
+        SseWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void event(String type, String json, String id) throws IOException {
+            StringBuilder sb = new StringBuilder(json.length() + 48);
+            if (id != null) {
+                sb.append("id: ").append(id).append('\n');
+            }
+            sb.append("event: ").append(type).append('\n').append("data: ").append(json).append("\n\n");
+            write(out, sb.toString());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private final class JsonWriter implements EventWriter {
+        private final OutputStream out;
+
+        JsonWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void event(String type, String json, String id) throws IOException {
+            write(out, json + "\n");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /** Unmasked text frames out; answers the client's pings and closes. */
+    private final class WsWriter implements EventWriter {
+        private final OutputStream out;
+        private volatile boolean stalled;
+
+        WsWriter(Socket s, InputStream in, OutputStream out) {
+            this.out = out;
+            Thread reader = new Thread(() -> readClientFrames(s, in), Thread.currentThread().getName() + "-ws");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void event(String type, String json, String id) throws IOException {
+            frame(0x1, json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void setStalled(boolean stalled) {
+            this.stalled = stalled;
+        }
+
+        private void frame(int opcode, byte[] payload) throws IOException {
+            byte[] header;
+            if (payload.length < 126) {
+                header = new byte[] {(byte) (0x80 | opcode), (byte) payload.length};
+            } else if (payload.length < 65536) {
+                header = new byte[] {(byte) (0x80 | opcode), 126,
+                    (byte) (payload.length >> 8), (byte) payload.length};
+            } else {
+                header = new byte[10];
+                header[0] = (byte) (0x80 | opcode);
+                header[1] = 127;
+                for (int i = 0; i < 8; i++) {
+                    header[9 - i] = (byte) ((long) payload.length >> (8 * i));
+                }
+            }
+            synchronized (out) {
+                out.write(header);
+                out.write(payload);
+            }
+            bytesWritten.addAndGet(header.length + payload.length);
+        }
+
+        private void readClientFrames(Socket s, InputStream in) {
+            try {
+                while (!s.isClosed()) {
+                    int b0 = in.read();
+                    int b1 = in.read();
+                    if (b0 < 0 || b1 < 0) {
+                        return;
+                    }
+                    long len = b1 & 0x7f;
+                    if (len == 126) {
+                        len = (in.read() << 8) | in.read();
+                    } else if (len == 127) {
+                        len = 0;
+                        for (int i = 0; i < 8; i++) {
+                            len = (len << 8) | in.read();
+                        }
+                    }
+                    byte[] mask = new byte[4];
+                    if ((b1 & 0x80) != 0) {
+                        readFully(in, mask);
+                    }
+                    byte[] payload = new byte[(int) len];
+                    readFully(in, payload);
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                    int opcode = b0 & 0x0f;
+                    if (opcode == 0x9 && !stalled) {
+                        frame(0xA, payload);
+                        flush();
+                    } else if (opcode == 0x8) {
+                        frame(0x8, new byte[0]);
+                        flush();
+                        s.close();
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {
+                // Socket closed under us
+            }
+        }
+    }
+
+    private void write(OutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        bytesWritten.addAndGet(bytes.length);
+    }
+
+    private static void respond(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+            .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new IOException("EOF");
+            }
+            off += n;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static String wsAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WS_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
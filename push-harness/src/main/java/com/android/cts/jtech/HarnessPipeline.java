@@ -0,0 +1,281 @@
+package com.android.cts.jtech;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The app's push path without Android, assembled from push-core the way
+ * PushService and PushMessageHandler assemble it: {@link ConnectionController}
+ * running {@link StreamSession}s, then {@link PushDecoder} with a
+ * {@link MessageFilter}. The dispatch stage is a {@link StageQueue} with
+ * PushNotifier's size and merge rule, and a sink stands in for notify(),
+ * recording how long each message took since the fake server first wrote it.
+ * As in the app, the resume id only moves past a message once the sink has it.
+ */
+final class HarnessPipeline {
+    // Same as PushMessageHandler / PushNotifier
+    private static final int DEDUPE_CAPACITY = 512;
+    private static final int DISPATCH_CAPACITY = 64;
+
+    static final class Settings {
+        final String server;
+        final List<String> topics;
+        final String transport;
+        final int heartbeatMs;
+
+        Settings(String server, List<String> topics, String transport, int heartbeatMs) {
+            this.server = server;
+            this.topics = Collections.unmodifiableList(new ArrayList<>(topics));
+            this.transport = transport;
+            this.heartbeatMs = heartbeatMs;
+        }
+    }
+
+    /** Same merge rule as PushNotifier.Notice: one entry per conversation while queued. */
+    private static final class Notice {
+        final String key;
+        final List<String> ids = new ArrayList<>(1);
+        final List<ResumePoint.Pending> pending = new ArrayList<>(1);
+
+        Notice(String key, String id, ResumePoint.Pending pending) {
+            this.key = key;
+            ids.add(id);
+            this.pending.add(pending);
+        }
+
+        static boolean merge(Notice queued, Notice incoming) {
+            if (!queued.key.equals(incoming.key)) {
+                return false;
+            }
+            queued.ids.addAll(incoming.ids);
+            queued.pending.addAll(incoming.pending);
+            return true;
+        }
+    }
+
+    private final FakeNtfyServer server;
+    private final PushStats stats = PushStats.get();
+    private final PushDecoder decoder;
+    private final StreamSession session;
+    private final StageQueue<Notice> dispatchQueue = new StageQueue<>("dispatch", DISPATCH_CAPACITY, 0,
+        StageQueue.Overflow.BLOCK, Notice::merge);
+    final ConnectionController<Settings> controller;
+    private final Thread dispatcher;
+    final HarnessReport.LatencyRecorder latency = new HarnessReport.LatencyRecorder();
+
+    private volatile Settings settings;
+    private final ResumePoint resumePoint = new ResumePoint(null);
+    private volatile ConnectionController.Connection currentConnection;
+    // Guarded by itself; which message seqs reached the sink
+    private final BitSet delivered = new BitSet();
+
+    final AtomicLong notified = new AtomicLong();
+    final AtomicLong deliveredTwice = new AtomicLong();
+    final AtomicLong unparsable = new AtomicLong();
+    final AtomicLong streams = new AtomicLong();
+    final AtomicLong staleConnections = new AtomicLong();
+    // Messages that reached the sink after the topic they were for had been dropped
+    final AtomicLong staleTopicDeliveries = new AtomicLong();
+    // Events read on a connection after a reconfiguration had replaced it
+    final AtomicLong staleConnectionEvents = new AtomicLong();
+
+    HarnessPipeline(FakeNtfyServer server, Settings initial, long reconnectBaseMs, File workDir) {
+        this.server = server;
+        this.settings = initial;
+        MessageFilter filter = new MessageFilter(new DedupeCache(DEDUPE_CAPACITY, new File(workDir, "dedupe.bin")));
+        decoder = new PushDecoder("Harness-decoder", filter, new PushDecoder.Output() {
+            @Override
+            public NtfyMessage parseFallback(String json) {
+                // No org.json here; the fake server only writes what the fast path reads
+                unparsable.incrementAndGet();
+                return null;
+            }
+
+            @Override
+            public void onEventId(String id) {
+                resumePoint.handled(id);
+            }
+
+            @Override
+            public void onMessage(NtfyMessage msg, String title, String id, long receivedAt) {
+                if (!settings.topics.contains(msg.topic)) {
+                    staleTopicDeliveries.incrementAndGet();
+                }
+                stats.eventsNotified.incrementAndGet();
+                dispatchQueue.offer(new Notice(MessageFilter.conversationKey(msg.topic, msg.click), id,
+                    resumePoint.begin(id)));
+            }
+        });
+        stats.addStage(dispatchQueue);
+        session = new StreamSession(new StreamSession.Host() {
+            @Override
+            public void onMessage(String json, String id, Set<String> subscribedTopics) {
+                ConnectionController.Connection connection = currentConnection;
+                if (connection != null && !connection.isCurrent()) {
+                    staleConnectionEvents.incrementAndGet();
+                }
+                decoder.handle(json, id, subscribedTopics, System.nanoTime());
+            }
+
+            @Override
+            public boolean isNetworkAvailable() {
+                return true;
+            }
+
+            @Override
+            public void onStale(long silentMs) {
+                staleConnections.incrementAndGet();
+            }
+        });
+        controller = new ConnectionController<>(new ConnectionController.Host<Settings>() {
+            @Override
+            public Settings settings() {
+                return settings;
+            }
+
+            @Override
+            public PushTransport createTransport(Settings s) {
+                return PushTransport.Factory.create(s.transport);
+            }
+
+            @Override
+            public boolean stream(Settings s, PushTransport transport, ConnectionController.Connection connection) {
+                streams.incrementAndGet();
+                currentConnection = connection;
+                return session.run(s.server, s.topics, resumePoint.position(), s.heartbeatMs, transport, connection);
+            }
+
+            @Override
+            public long serverRetryMs() {
+                return session.serverRetryMs();
+            }
+        }, new ReconnectScheduler(reconnectBaseMs, Math.max(reconnectBaseMs, 10 * 60 * 1000)));
+        dispatcher = new Thread(this::dispatchLoop, "Harness-dispatcher");
+    }
+
+    /** Starts the decode and dispatch stages and the connection. */
+    void start() {
+        startStages();
+        controller.start();
+    }
+
+    /** Starts only the stages, for polling with {@link #pollOnce}. */
+    void startStages() {
+        decoder.start();
+        dispatcher.start();
+    }
+
+    /** Applies new settings the way a Config change reaches PushService. */
+    void reconfigure(Settings next) {
+        settings = next;
+        controller.reconfigure();
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    /** Stops the connection, then lets the queues drain for up to {@code drainMs}. */
+    boolean stop(long joinMs, long drainMs) throws InterruptedException {
+        boolean joined = controller.shutdown(joinMs);
+        long deadline = System.currentTimeMillis() + drainMs;
+        while ((decoder.queue().depth() > 0 || dispatchQueue.depth() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        decoder.stop();
+        dispatcher.interrupt();
+        dispatcher.join(joinMs);
+        return joined;
+    }
+
+    StageQueue<?>[] stages() {
+        return new StageQueue<?>[] {decoder.queue(), dispatchQueue};
+    }
+
+    /**
+     * Polls once the way PollJobService does, through the same pipeline. The
+     * first poll asks for everything the server has.
+     */
+    int pollOnce(Settings s) throws IOException {
+        int count = 0;
+        Set<String> subscribed = new HashSet<>(s.topics);
+        String since = resumePoint.position();
+        if (since == null) {
+            since = "all";
+        }
+        String url = s.server + "/" + StreamSession.joinTopics(s.topics) + "/json?poll=1&since=" + since;
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setConnectTimeout(30000);
+            conn.setReadTimeout(30000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    stats.bytesReceived.addAndGet(line.length() + 1);
+                    decoder.handle(line, "", subscribed, System.nanoTime());
+                    count++;
+                }
+            }
+            reader.close();
+        } finally {
+            conn.disconnect();
+        }
+        return count;
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (true) {
+                Notice notice = dispatchQueue.take();
+                long start = System.nanoTime();
+                // Stands in for building the notification and NotificationManager.notify()
+                long now = System.nanoTime();
+                for (String id : notice.ids) {
+                    long written = server.firstWriteNanos(id);
+                    if (written > 0) {
+                        latency.record((now - written) / 1000);
+                    }
+                    markDelivered(id);
+                }
+                notified.addAndGet(notice.ids.size());
+                for (ResumePoint.Pending p : notice.pending) {
+                    resumePoint.finish(p);
+                }
+                dispatchQueue.serviced(start);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void markDelivered(String id) {
+        if (id.length() < 2 || id.charAt(0) != 'm') {
+            return;
+        }
+        int seq = Integer.parseInt(id.substring(1));
+        synchronized (delivered) {
+            if (delivered.get(seq)) {
+                deliveredTwice.incrementAndGet();
+            }
+            delivered.set(seq);
+        }
+    }
+
+    int uniqueDelivered() {
+        synchronized (delivered) {
+            return delivered.cardinality();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.android.cts.jtech;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What a harness run measured, as text for people and optionally JSON for
+ * scripts. Latency is end to end: from the fake server's first write of a
+ * message to the sink that stands in for notify(). Allocation is counted
+ * for the client's threads only (connection, decoder, dispatcher), so the
+ * server and the load generator do not skew it.
+ */
+final class HarnessReport {
+    // Threads whose allocations count as the client's
+    private static final String[] CLIENT_THREADS = {"PushConnection-", "Harness-"};
+
+    /** Exact latency percentiles; keeps every sample. */
+    static final class LatencyRecorder {
+        private long[] samples = new long[4096];
+        private int count;
+
+        synchronized void record(long micros) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = micros;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        /** Sorted copy of the samples so far. */
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(samples, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+
+    /**
+     * Bytes allocated by the client's threads between {@link #start} and
+     * {@link #stop}. Threads that end in between are counted up to their
+     * last sample, so sample before shutting the client down.
+     */
+    static final class AllocationMeter {
+        private final com.sun.management.ThreadMXBean threads;
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> last = new HashMap<>();
+        private long gcCountStart;
+        private long gcTimeStart;
+        private long gcCount;
+        private long gcTimeMs;
+
+        AllocationMeter() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                threads = (com.sun.management.ThreadMXBean) bean;
+                threads.setThreadAllocatedMemoryEnabled(true);
+            } else {
+                threads = null;
+            }
+        }
+
+        boolean supported() {
+            return threads != null;
+        }
+
+        void start() {
+            baseline.clear();
+            last.clear();
+            sample(baseline);
+            long[] gc = gc();
+            gcCountStart = gc[0];
+            gcTimeStart = gc[1];
+        }
+
+        /** Takes a sample; call periodically to catch threads that come and go. */
+        void sample() {
+            sample(last);
+        }
+
+        void stop() {
+            sample(last);
+            long[] gc = gc();
+            gcCount = gc[0] - gcCountStart;
+            gcTimeMs = gc[1] - gcTimeStart;
+        }
+
+        long bytes() {
+            long total = 0;
+            for (Map.Entry<Long, Long> e : last.entrySet()) {
+                Long base = baseline.get(e.getKey());
+                total += e.getValue() - (base != null ? base : 0);
+            }
+            return total;
+        }
+
+        private synchronized void sample(Map<Long, Long> into) {
+            if (threads == null) {
+                return;
+            }
+            long[] ids = threads.getAllThreadIds();
+            ThreadInfo[] infos = threads.getThreadInfo(ids);
+            List<Long> client = new ArrayList<>();
+            for (ThreadInfo info : infos) {
+                if (info != null && isClient(info.getThreadName())) {
+                    client.add(info.getThreadId());
+                }
+            }
+            long[] clientIds = new long[client.size()];
+            for (int i = 0; i < clientIds.length; i++) {
+                clientIds[i] = client.get(i);
+            }
+            long[] bytes = threads.getThreadAllocatedBytes(clientIds);
+            for (int i = 0; i < clientIds.length; i++) {
+                if (bytes[i] >= 0) {
+                    into.put(clientIds[i], bytes[i]);
+                }
+            }
+        }
+
+        private static boolean isClient(String name) {
+            for (String prefix : CLIENT_THREADS) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long[] gc() {
+            long count = 0;
+            long time = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                time += Math.max(0, gc.getCollectionTime());
+            }
+            return new long[] {count, time};
+        }
+    }
+
+    private final String scenario;
+    // Insertion-ordered so the text and JSON read in the same order
+    private final Map<String, Object> values = new LinkedHashMap<>();
+    private final List<String> failures = new ArrayList<>();
+    private final StringBuilder stagesJson = new StringBuilder();
+    private final StringWriter stagesText = new StringWriter();
+
+    HarnessReport(String scenario) {
+        this.scenario = scenario;
+    }
+
+    HarnessReport put(String key, Object value) {
+        values.put(key, value);
+        return this;
+    }
+
+    Object get(String key) {
+        return values.get(key);
+    }
+
+    /** Adds count, throughput and latency figures for a run of {@code seconds}. */
+    void addDelivery(long published, long delivered, double seconds, LatencyRecorder latency) {
+        put("published", published);
+        put("delivered", delivered);
+        put("delivery_ratio", published > 0 ? (double) delivered / published : 1.0);
+        put("throughput_per_sec", seconds > 0 ? delivered / seconds : 0.0);
+        long[] sorted = latency.sorted();
+        put("latency_samples", sorted.length);
+        put("latency_p50_ms", sorted.length > 0 ? LatencyRecorder.percentile(sorted, 50) / 1000.0 : 0.0);
+        put("latency_p90_ms", sorted.length > 0 ? LatencyRecorder.percentile(sorted, 90) / 1000.0 : 0.0);
+        put("latency_p99_ms", sorted.length > 0 ? LatencyRecorder.percentile(sorted, 99) / 1000.0 : 0.0);
+        put("latency_p999_ms", sorted.length > 0 ? LatencyRecorder.percentile(sorted, 99.9) / 1000.0 : 0.0);
+        put("latency_max_ms", sorted.length > 0 ? sorted[sorted.length - 1] / 1000.0 : 0.0);
+    }
+
+    void addAllocation(AllocationMeter meter, double seconds, long events) {
+        if (!meter.supported()) {
+            put("alloc_supported", false);
+            return;
+        }
+        long bytes = meter.bytes();
+        put("alloc_bytes", bytes);
+        put("alloc_mb_per_sec", seconds > 0 ? bytes / seconds / (1024 * 1024) : 0.0);
+        put("alloc_bytes_per_event", events > 0 ? bytes / events : 0);
+        put("gc_count", meter.gcCount);
+        put("gc_time_ms", meter.gcTimeMs);
+    }
+
+    void addServer(FakeNtfyServer server) {
+        put("server_connections", server.connections.get());
+        put("server_written", server.written.get());
+        put("server_bytes", server.bytesWritten.get());
+        put("server_keepalives", server.keepalives.get());
+        put("server_forced_disconnects", server.forcedDisconnects.get());
+        put("server_stalls", server.stalls.get());
+        put("server_polls", server.polls.get());
+        put("server_overruns", server.overruns.get());
+    }
+
+    void addStages(StageQueue<?>... stages) {
+        PrintWriter pw = new PrintWriter(stagesText);
+        for (StageQueue<?> stage : stages) {
+            if (stagesJson.length() > 0) {
+                stagesJson.append(',');
+            }
+            stagesJson.append(FakeNtfyServer.quote(stage.name)).append(':');
+            stage.appendJson(stagesJson);
+            stage.dump(pw);
+        }
+        pw.flush();
+    }
+
+    /** Fails the run unless {@code ok}; the reason goes in the report. */
+    void check(boolean ok, String reason) {
+        if (!ok) {
+            failures.add(reason);
+        }
+    }
+
+    boolean passed() {
+        return failures.isEmpty();
+    }
+
+    void print(PrintWriter out) {
+        out.println("== " + scenario + " ==");
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            out.println(String.format(Locale.US, "%-28s %s", e.getKey(), format(e.getValue())));
+        }
+        String stages = stagesText.toString();
+        if (!stages.isEmpty()) {
+            out.println("-- stages --");
+            out.print(stages);
+        }
+        if (failures.isEmpty()) {
+            out.println("PASS");
+        } else {
+            for (String failure : failures) {
+                out.println("FAIL: " + failure);
+            }
+        }
+        out.flush();
+    }
+
+    void writeJson(File file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write(toJson());
+            w.write('\n');
+        }
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{\"scenario\":").append(FakeNtfyServer.quote(scenario));
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            sb.append(',').append(FakeNtfyServer.quote(e.getKey())).append(':');
+            Object v = e.getValue();
+            if (v instanceof Number || v instanceof Boolean) {
+                sb.append(format(v));
+            } else {
+                sb.append(FakeNtfyServer.quote(String.valueOf(v)));
+            }
+        }
+        sb.append(",\"stages\":{").append(stagesJson).append('}');
+        sb.append(",\"passed\":").append(passed()).append(",\"failures\":[");
+        for (int i = 0; i < failures.size(); i++) {
+            sb.append(i > 0 ? "," : "").append(FakeNtfyServer.quote(failures.get(i)));
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String format(Object v) {
+        if (v instanceof Double || v instanceof Float) {
+            return String.format(Locale.US, "%.3f", ((Number) v).doubleValue());
+        }
+        return String.valueOf(v);
+    }
+}
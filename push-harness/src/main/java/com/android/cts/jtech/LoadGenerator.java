@@ -0,0 +1,97 @@
+package com.android.cts.jtech;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes forum-like messages to a {@link FakeNtfyServer} at a set rate.
+ *
+ * Messages go out in bursts of {@link Profile#burst} at evenly spaced ticks,
+ * round-robin over the topics. Each one belongs to one of
+ * {@link Profile#conversations} threads (its click URL), so the dispatch
+ * stage's per-conversation merging sees realistic traffic. The schedule is
+ * absolute: a generator that falls behind catches up instead of drifting,
+ * and how far behind it got is reported.
+ */
+final class LoadGenerator implements Runnable {
+
+    static final class Profile {
+        List<String> topics;
+        double ratePerSec = 50;
+        int burst = 1;
+        int payloadBytes = 120;
+        int conversations = 20;
+        long durationMs = 10000;
+        long seed = 1;
+    }
+
+    private final FakeNtfyServer server;
+    private final Profile profile;
+    private final String padding;
+    private volatile boolean stopped;
+
+    final AtomicLong published = new AtomicLong();
+    // Largest delay behind the schedule
+    final AtomicLong maxLagUs = new AtomicLong();
+    private volatile long startedAt;
+    private volatile long endedAt;
+
+    LoadGenerator(FakeNtfyServer server, Profile profile) {
+        this.server = server;
+        this.profile = profile;
+        StringBuilder sb = new StringBuilder(profile.payloadBytes);
+        String words = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor ";
+        while (sb.length() < profile.payloadBytes) {
+            sb.append(words);
+        }
+        padding = sb.substring(0, Math.max(0, profile.payloadBytes));
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    /** Achieved publish rate, messages per second. */
+    double achievedRate() {
+        long end = endedAt != 0 ? endedAt : System.nanoTime();
+        double seconds = (end - startedAt) / 1e9;
+        return seconds > 0 ? published.get() / seconds : 0;
+    }
+
+    @Override
+    public void run() {
+        Random random = new Random(profile.seed);
+        long tickNanos = (long) (TimeUnit.SECONDS.toNanos(1) * profile.burst / profile.ratePerSec);
+        long start = System.nanoTime();
+        startedAt = start;
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(profile.durationMs);
+        long next = start;
+        int topic = 0;
+        while (!stopped && next < deadline) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            long lagUs = -wait / 1000;
+            long max;
+            while (lagUs > (max = maxLagUs.get()) && !maxLagUs.compareAndSet(max, lagUs)) {
+                // Retry until the max sticks
+            }
+            for (int i = 0; i < profile.burst; i++) {
+                int conv = random.nextInt(profile.conversations);
+                long n = published.incrementAndGet();
+                server.publish(profile.topics.get(topic),
+                    "user" + random.nextInt(500) + " replied in thread " + conv,
+                    "#" + n + " " + padding,
+                    "https://forum.test/t/thread-" + conv + "/" + (1000 + conv) + "/" + n);
+                topic = (topic + 1) % profile.topics.size();
+            }
+            next += tickNanos;
+        }
+        endedAt = System.nanoTime();
+    }
+}
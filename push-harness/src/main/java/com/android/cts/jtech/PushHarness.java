@@ -0,0 +1,316 @@
+package com.android.cts.jtech;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the push client against a {@link FakeNtfyServer} on loopback and
+ * reports latency, throughput and allocation. Needs no network or device.
+ *
+ * <pre>
+ * push-harness load [--transport sse|json|ws] [--rate N] [--seconds N] [--payload BYTES]
+ *                   [--burst N] [--conversations N] [--topics a,b]
+ *                   [--keepalive MS] [--heartbeat MS] [--disconnect-every MS]
+ *                   [--stall-every MS] [--stall-for MS] [--reconnect-base MS] [--settle MS]
+ * push-harness poll [--interval MS] [same load options]
+ * push-harness reconfigure-stress [--flips N] [--cycle-every N] [--flip-interval MS]
+ *
+ * Any scenario: [--report FILE.json] [--max-p99-ms N] [--min-delivery RATIO]
+ *               [--max-alloc-per-event BYTES]
+ * </pre>
+ *
+ * Exits 1 if a threshold or a scenario's own checks fail, 2 on bad usage.
+ * Run with -Dharness.verbose=true to see the client's debug logging.
+ */
+public final class PushHarness {
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long JOIN_TIMEOUT_MS = 1000;
+    private static final long SAMPLE_INTERVAL_MS = 200;
+
+    private final Map<String, String> args;
+
+    private PushHarness(Map<String, String> args) {
+        this.args = args;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length == 0) {
+            usage();
+            return;
+        }
+        Map<String, String> args = new HashMap<>();
+        for (int i = 1; i < argv.length; i++) {
+            if (!argv[i].startsWith("--") || i + 1 >= argv.length) {
+                usage();
+                return;
+            }
+            args.put(argv[i].substring(2), argv[++i]);
+        }
+        if (Boolean.getBoolean("harness.verbose")) {
+            PushLog.setSink(new PushLog.Sink() {
+                @Override
+                public boolean isLoggable(String tag, int priority) {
+                    return true;
+                }
+
+                @Override
+                public void println(int priority, String tag, String msg) {
+                    System.err.println("VDIWE".charAt(priority - PushLog.VERBOSE) + "/" + tag + ": " + msg);
+                }
+            });
+        }
+        PushHarness harness = new PushHarness(args);
+        HarnessReport report;
+        switch (argv[0]) {
+            case "load":
+                report = harness.load(false);
+                break;
+            case "poll":
+                report = harness.load(true);
+                break;
+            case "reconfigure-stress":
+                report = harness.reconfigureStress();
+                break;
+            default:
+                usage();
+                return;
+        }
+        harness.applyThresholds(report);
+        report.print(new PrintWriter(System.out));
+        String out = args.get("report");
+        if (out != null) {
+            report.writeJson(new File(out));
+        }
+        System.exit(report.passed() ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: push-harness load|poll|reconfigure-stress [--option value ...]");
+        System.exit(2);
+    }
+
+    /** Publishes at a steady rate and measures delivery over a stream, or over polls. */
+    private HarnessReport load(boolean poll) throws Exception {
+        LoadGenerator.Profile profile = profile();
+        String transport = string("transport", PushTransport.SSE);
+        HarnessReport report = new HarnessReport(poll ? "poll" : "load");
+        File workDir = Files.createTempDirectory("push-harness").toFile();
+
+        try (FakeNtfyServer server = new FakeNtfyServer(serverOptions(45000))) {
+            HarnessPipeline.Settings settings = new HarnessPipeline.Settings(server.baseUrl(), profile.topics,
+                transport, (int) number("heartbeat", 90000));
+            HarnessPipeline pipeline = new HarnessPipeline(server, settings, number("reconnect-base", 2000), workDir);
+            HarnessReport.AllocationMeter meter = new HarnessReport.AllocationMeter();
+            long interval = number("interval", 1000);
+
+            if (poll) {
+                pipeline.startStages();
+            } else {
+                pipeline.start();
+                awaitConnected(pipeline);
+            }
+            LoadGenerator generator = new LoadGenerator(server, profile);
+            Thread publisher = new Thread(generator, "LoadGenerator");
+            meter.start();
+            long start = System.nanoTime();
+            publisher.start();
+            long nextPoll = 0;
+            while (publisher.isAlive()) {
+                if (poll && System.currentTimeMillis() >= nextPoll) {
+                    pipeline.pollOnce(settings);
+                    nextPoll = System.currentTimeMillis() + interval;
+                }
+                meter.sample();
+                publisher.join(poll ? Math.min(SAMPLE_INTERVAL_MS, interval) : SAMPLE_INTERVAL_MS);
+            }
+            // Let what is in flight arrive; across a forced disconnect that includes a reconnect
+            long settleDeadline = System.currentTimeMillis() + number("settle", 10000);
+            while (pipeline.uniqueDelivered() < generator.published.get()
+                    && System.currentTimeMillis() < settleDeadline) {
+                if (poll) {
+                    pipeline.pollOnce(settings);
+                }
+                meter.sample();
+                Thread.sleep(poll ? Math.min(interval, 500) : 20);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            meter.stop();
+            boolean joined = pipeline.stop(JOIN_TIMEOUT_MS, 1000);
+
+            report.put("transport", poll ? "json poll" : transport);
+            report.put("target_rate", profile.ratePerSec);
+            report.put("achieved_rate", generator.achievedRate());
+            report.put("generator_max_lag_ms", generator.maxLagUs.get() / 1000.0);
+            report.put("payload_bytes", profile.payloadBytes);
+            report.put("seconds", seconds);
+            report.addDelivery(generator.published.get(), pipeline.uniqueDelivered(), seconds, pipeline.latency);
+            report.put("delivered_twice", pipeline.deliveredTwice.get());
+            report.put("duplicates_filtered", PushStats.get().eventsDuplicate.get());
+            report.put("unparsable", pipeline.unparsable.get());
+            report.put("streams", pipeline.streams.get());
+            report.put("stale_connections", pipeline.staleConnections.get());
+            report.put("client_bytes", PushStats.get().bytesReceived.get());
+            report.addAllocation(meter, seconds, pipeline.notified.get());
+            report.addServer(server);
+            report.addStages(pipeline.stages());
+            report.check(pipeline.deliveredTwice.get() == 0, "a message reached the sink twice");
+            report.check(joined, "connection worker did not stop within " + JOIN_TIMEOUT_MS + " ms");
+        }
+        return report;
+    }
+
+    /**
+     * Flips topics and transport thousands of times while messages flow,
+     * with start/stop cycles mixed in, then checks that no worker thread,
+     * socket or server-side connection was left behind.
+     */
+    private HarnessReport reconfigureStress() throws Exception {
+        long flips = number("flips", 2000);
+        long cycleEvery = number("cycle-every", 50);
+        long flipInterval = number("flip-interval", 2);
+        List<String> topicsA = Arrays.asList("stress-a", "stress-b");
+        List<String> topicsB = Arrays.asList("stress-b", "stress-c");
+        String[] transports = {PushTransport.SSE, PushTransport.JSON, PushTransport.WEBSOCKET};
+        HarnessReport report = new HarnessReport("reconfigure-stress");
+        File workDir = Files.createTempDirectory("push-harness").toFile();
+        int threadsBefore = connectionThreads();
+
+        // Short keepalives so server threads notice closed clients quickly
+        try (FakeNtfyServer server = new FakeNtfyServer(serverOptions(250))) {
+            HarnessPipeline pipeline = new HarnessPipeline(server,
+                new HarnessPipeline.Settings(server.baseUrl(), topicsA, PushTransport.SSE, 5000), 50, workDir);
+            LoadGenerator.Profile profile = new LoadGenerator.Profile();
+            profile.topics = Arrays.asList("stress-a", "stress-b", "stress-c");
+            profile.ratePerSec = 200;
+            // Runs until stopped after the last flip
+            profile.durationMs = TimeUnit.DAYS.toMillis(1);
+            LoadGenerator generator = new LoadGenerator(server, profile);
+            Thread publisher = new Thread(generator, "LoadGenerator");
+
+            long start = System.nanoTime();
+            pipeline.start();
+            publisher.start();
+            long cycles = 0;
+            for (long i = 1; i <= flips; i++) {
+                pipeline.reconfigure(new HarnessPipeline.Settings(server.baseUrl(), i % 2 == 0 ? topicsA : topicsB,
+                    transports[(int) (i % transports.length)], 5000));
+                if (cycleEvery > 0 && i % cycleEvery == 0) {
+                    pipeline.controller.shutdown(JOIN_TIMEOUT_MS);
+                    pipeline.controller.start();
+                    cycles++;
+                }
+                if (flipInterval > 0) {
+                    Thread.sleep(flipInterval);
+                }
+            }
+            generator.stop();
+            publisher.join();
+            boolean joined = pipeline.stop(JOIN_TIMEOUT_MS, 1000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long closeDeadline = System.currentTimeMillis() + 3000;
+            while (server.openConnections.get() > 0 && System.currentTimeMillis() < closeDeadline) {
+                Thread.sleep(20);
+            }
+
+            report.put("flips", flips);
+            report.put("start_stop_cycles", cycles);
+            report.put("seconds", seconds);
+            report.put("streams", pipeline.streams.get());
+            report.put("stale_discarded", pipeline.controller.staleDiscarded.get());
+            report.put("stale_connection_events", pipeline.staleConnectionEvents.get());
+            report.put("stale_topic_deliveries", pipeline.staleTopicDeliveries.get());
+            report.put("join_timeouts", pipeline.controller.joinTimeouts.get());
+            report.put("live_workers", ConnectionController.liveWorkers());
+            report.put("connection_threads", connectionThreads() - threadsBefore);
+            report.put("server_open_connections", server.openConnections.get());
+            report.addDelivery(generator.published.get(), pipeline.uniqueDelivered(), seconds, pipeline.latency);
+            report.put("delivered_twice", pipeline.deliveredTwice.get());
+            report.addServer(server);
+            report.addStages(pipeline.stages());
+
+            report.check(joined, "connection worker did not stop within " + JOIN_TIMEOUT_MS + " ms");
+            report.check(pipeline.controller.joinTimeouts.get() == 0, "a start/stop cycle timed out joining");
+            report.check(ConnectionController.liveWorkers() == 0, "connection workers still running");
+            report.check(connectionThreads() == threadsBefore, "PushConnection threads left behind");
+            report.check(server.openConnections.get() == 0, "server still has open connections");
+            report.check(pipeline.deliveredTwice.get() == 0, "a message reached the sink twice");
+        }
+        // The stress run's delivery ratio reflects flipping topics, not loss
+        args.remove("min-delivery");
+        return report;
+    }
+
+    private void applyThresholds(HarnessReport report) {
+        if (args.containsKey("max-p99-ms") && report.get("latency_p99_ms") != null) {
+            double max = Double.parseDouble(args.get("max-p99-ms"));
+            report.check((Double) report.get("latency_p99_ms") <= max, "p99 latency above " + max + " ms");
+        }
+        if (args.containsKey("min-delivery") && report.get("delivery_ratio") != null) {
+            double min = Double.parseDouble(args.get("min-delivery"));
+            report.check((Double) report.get("delivery_ratio") >= min, "delivery ratio below " + min);
+        }
+        if (args.containsKey("max-alloc-per-event") && report.get("alloc_bytes_per_event") != null) {
+            long max = Long.parseLong(args.get("max-alloc-per-event"));
+            report.check((Long) report.get("alloc_bytes_per_event") <= max,
+                "allocation above " + max + " bytes per event");
+        }
+    }
+
+    private void awaitConnected(HarnessPipeline pipeline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (PushStats.get().connects.get() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Client did not connect within " + CONNECT_TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private LoadGenerator.Profile profile() {
+        LoadGenerator.Profile profile = new LoadGenerator.Profile();
+        profile.topics = Arrays.asList(string("topics", "dumbcourse-harness").split(","));
+        profile.ratePerSec = Double.parseDouble(string("rate", String.valueOf(profile.ratePerSec)));
+        profile.burst = (int) number("burst", profile.burst);
+        profile.payloadBytes = (int) number("payload", profile.payloadBytes);
+        profile.conversations = (int) number("conversations", profile.conversations);
+        profile.durationMs = number("seconds", profile.durationMs / 1000) * 1000;
+        profile.seed = number("seed", profile.seed);
+        return profile;
+    }
+
+    private FakeNtfyServer.Options serverOptions(long defaultKeepaliveMs) {
+        FakeNtfyServer.Options options = new FakeNtfyServer.Options();
+        options.keepaliveMs = number("keepalive", defaultKeepaliveMs);
+        options.disconnectAfterMs = number("disconnect-every", 0);
+        options.stallEveryMs = number("stall-every", 0);
+        options.stallForMs = number("stall-for", 0);
+        return options;
+    }
+
+    private String string(String key, String fallback) {
+        String value = args.get(key);
+        return value != null ? value : fallback;
+    }
+
+    private long number(String key, long fallback) {
+        String value = args.get(key);
+        return value != null ? Long.parseLong(value) : fallback;
+    }
+
+    private static int connectionThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.getName().startsWith("PushConnection-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,210 @@
+package com.android.cts.jtech;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Runs each {@link PushTransport} against a {@link FakeNtfyServer} on loopback. */
+public class TransportTest {
+    private static final List<String> TRANSPORTS =
+        Arrays.asList(PushTransport.SSE, PushTransport.JSON, PushTransport.WEBSOCKET);
+    private static final int HEARTBEAT_MS = 10000;
+
+    private FakeNtfyServer server;
+
+    /** Collects message events; open and keepalive events are not counted. */
+    private static final class Recorder implements PushTransport.Listener {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final List<String> messages = new ArrayList<>();
+        volatile long bytes;
+
+        @Override
+        public void onOpen() {
+            opened.countDown();
+        }
+
+        @Override
+        public synchronized void onMessage(String json, String id) {
+            if (json.contains("\"event\":\"message\"")) {
+                messages.add(json);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onRetry(long retryMs) {
+        }
+
+        @Override
+        public void onBytes(int count) {
+            bytes += count;
+        }
+
+        synchronized boolean await(int count, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (messages.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        synchronized List<String> ids() {
+            List<String> ids = new ArrayList<>();
+            for (String json : messages) {
+                ids.add(NtfyMessage.parse(json).id);
+            }
+            return ids;
+        }
+    }
+
+    /** Runs connect() on its own thread, keeping whatever it threw. */
+    private static final class Connection {
+        final PushTransport transport;
+        final Recorder recorder = new Recorder();
+        final Thread thread;
+        volatile Exception failure;
+
+        Connection(String type, final String server, final String topics, final String since, final int timeoutMs) {
+            transport = PushTransport.Factory.create(type);
+            thread = new Thread(() -> {
+                try {
+                    transport.connect(server, topics, since, timeoutMs, recorder);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }, "TransportTest-" + type);
+            thread.start();
+        }
+
+        void awaitOpen() throws InterruptedException {
+            assertTrue("stream did not open", recorder.opened.await(5, TimeUnit.SECONDS));
+        }
+
+        void closeAndJoin() throws InterruptedException {
+            transport.close();
+            thread.join(2000);
+            assertTrue("connect() did not return after close()", !thread.isAlive());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private FakeNtfyServer start(FakeNtfyServer.Options options) throws Exception {
+        server = new FakeNtfyServer(options);
+        return server;
+    }
+
+    @Test
+    public void deliversMessagesInOrder() throws Exception {
+        start(new FakeNtfyServer.Options());
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a,b", null, HEARTBEAT_MS);
+            c.awaitOpen();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                expected.add(server.publish(i % 2 == 0 ? "a" : "b", "t" + i, "message " + i, null));
+            }
+            server.publish("other", "t", "not subscribed", null);
+            assertTrue(type + ": messages missing", c.recorder.await(20, 5000));
+            c.closeAndJoin();
+            assertEquals(type, expected, c.recorder.ids());
+            assertTrue(type + ": no bytes counted", c.recorder.bytes > 0);
+        }
+    }
+
+    @Test
+    public void resumesAfterSinceId() throws Exception {
+        start(new FakeNtfyServer.Options());
+        String first = server.publish("a", "t", "one", null);
+        String second = server.publish("a", "t", "two", null);
+        String third = server.publish("a", "t", "three", null);
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a", first, HEARTBEAT_MS);
+            assertTrue(type + ": replay missing", c.recorder.await(2, 5000));
+            c.closeAndJoin();
+            assertEquals(type, Arrays.asList(second, third), c.recorder.ids());
+        }
+    }
+
+    @Test
+    public void largeMessageSpansReads() throws Exception {
+        start(new FakeNtfyServer.Options());
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 100000) {
+            body.append("long body with \"quotes\" and \u00e9 ");
+        }
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a", null, HEARTBEAT_MS);
+            c.awaitOpen();
+            server.publish("a", "t", body.toString(), null);
+            assertTrue(type + ": large message missing", c.recorder.await(1, 5000));
+            c.closeAndJoin();
+            assertEquals(type, body.toString(), NtfyMessage.parse(c.recorder.messages.get(0)).message);
+        }
+    }
+
+    @Test
+    public void keepalivesHoldTheConnectionOpen() throws Exception {
+        FakeNtfyServer.Options options = new FakeNtfyServer.Options();
+        options.keepaliveMs = 100;
+        start(options);
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a", null, 400);
+            c.awaitOpen();
+            Thread.sleep(1200);
+            assertTrue(type + ": ended while keepalives were flowing: " + c.failure, c.thread.isAlive());
+            c.closeAndJoin();
+        }
+    }
+
+    @Test
+    public void silentConnectionTimesOut() throws Exception {
+        FakeNtfyServer.Options options = new FakeNtfyServer.Options();
+        options.keepaliveMs = 100;
+        options.stallEveryMs = 300;
+        options.stallForMs = 5000;
+        start(options);
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a", null, 600);
+            c.awaitOpen();
+            c.thread.join(4000);
+            if (c.thread.isAlive()) {
+                c.transport.close();
+                fail(type + ": stall was not detected");
+            }
+            assertTrue(type + ": expected a timeout, got " + c.failure, c.failure instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void serverDisconnectEndsTheStream() throws Exception {
+        FakeNtfyServer.Options options = new FakeNtfyServer.Options();
+        options.disconnectAfterMs = 300;
+        start(options);
+        for (String type : TRANSPORTS) {
+            Connection c = new Connection(type, server.baseUrl(), "a", null, HEARTBEAT_MS);
+            c.awaitOpen();
+            c.thread.join(3000);
+            assertTrue(type + ": still connected after the server dropped it", !c.thread.isAlive());
+        }
+    }
+}